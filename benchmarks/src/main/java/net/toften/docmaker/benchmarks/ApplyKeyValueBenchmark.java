@@ -0,0 +1,72 @@
+package net.toften.docmaker.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.postprocessors.PropertyResolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the resolution of the keys in the text of a chapter by a {@link PropertyResolver}.
+ * <p>
+ * The text refers to every key, and every key can be resolved, as in a document built with
+ * {@link BuildContext#isStrictKeys() strict keys}. {@link #resolve()} measures the resolver of a TOC,
+ * which has already expanded the properties when it resolves the text of a chapter. {@link #resolveFirst()}
+ * also creates the resolver and expands the properties, which is done once for each TOC.
+ *
+ * @author thomaslarsen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyKeyValueBenchmark {
+	/**
+	 * The number of keys, and the number of references to keys in the text
+	 */
+	@Param({ "10", "1000" })
+	public int keys;
+
+	private Properties props;
+	private String text;
+	private PropertyResolver resolver;
+
+	@Setup
+	public void setUp() {
+		props = SyntheticDocument.properties(keys);
+
+		StringBuilder sb = new StringBuilder("<p>The ${product} manual, version ${version}.</p>\n");
+		for (int i = 0; i < keys; i++) {
+			sb.append("<p>Key ").append(i).append(" is ${key-").append(i).append("}.</p>\n");
+		}
+		text = sb.toString();
+
+		resolver = new PropertyResolver(props, true);
+		resolver.resolve(text);
+	}
+
+	@Benchmark
+	public String resolve() {
+		return resolver.resolve(text);
+	}
+
+	@Benchmark
+	public String resolveFirst() {
+		return new PropertyResolver(props, true).resolve(text);
+	}
+}
@@ -0,0 +1,28 @@
+package net.toften.docmaker.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so the allocation rate of each benchmark is
+ * reported next to its throughput.
+ * <p>
+ * The arguments are the standard JMH command line options, e.g. a regex selecting the
+ * benchmarks to run and <code>-rf json</code> to write the results to a file.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
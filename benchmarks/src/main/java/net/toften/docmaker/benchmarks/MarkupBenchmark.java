@@ -0,0 +1,72 @@
+package net.toften.docmaker.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.csv.CsvProcessor;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversion of fragments by the {@link PegdownProcessor} and {@link CsvProcessor}.
+ *
+ * @author thomaslarsen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkupBenchmark {
+	/**
+	 * The number of paragraphs in the markdown fragment, and of rows in the CSV fragment
+	 */
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private SyntheticDocument doc;
+	private MarkupProcessor pegdown;
+	private MarkupProcessor csv;
+	private String markdown;
+	private String csvText;
+
+	@Setup
+	public void setUp() throws Exception {
+		doc = SyntheticDocument.create(1, 1);
+		pegdown = doc.getMarkupProcessors().get("md");
+		csv = doc.getMarkupProcessors().get("csv");
+		markdown = SyntheticDocument.markdown(size);
+		csvText = SyntheticDocument.csv(size);
+	}
+
+	@TearDown
+	public void tearDown() {
+		doc.delete();
+	}
+
+	@Benchmark
+	public String pegdown() throws IOException {
+		return pegdown.process(markdown, null, doc.getHandler());
+	}
+
+	@Benchmark
+	public String csvTable() throws IOException {
+		// The cells of the Value column are converted as markdown
+		return csv.process(csvText, "t;0;0;md;Key,Heading,Value", doc.getHandler());
+	}
+}
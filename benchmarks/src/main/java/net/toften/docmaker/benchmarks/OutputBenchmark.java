@@ -0,0 +1,94 @@
+package net.toften.docmaker.benchmarks;
+
+import java.io.File;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import net.toften.docmaker.output.SingleInterimFile;
+import net.toften.docmaker.output.pdf.flyingsaucer.FlyingSaucerOutputProcessor;
+import net.toften.docmaker.toc.TOC;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the output of a parsed TOC as a PDF, as it is done by a build.
+ * <p>
+ * {@link #interimDocument()} measures building the interim document the PDF is rendered from, and reading it
+ * back; {@link #flyingSaucer()} measures the whole output, including the interim document.
+ *
+ * @author thomaslarsen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+	/**
+	 * The number of chapters in the document, each with 20 paragraphs
+	 */
+	@Param({ "10", "50" })
+	public int chapters;
+
+	private SyntheticDocument doc;
+	private File outputDir;
+	private InterimDocument interim;
+	private FlyingSaucerOutputProcessor pdf;
+
+	/**
+	 * Gives access to {@link SingleInterimFile#buildInterimDocument(File, String, String, TOC, boolean)}
+	 */
+	private static class InterimDocument extends SingleInterimFile {
+		public long build(File dir, String filename, String encoding, TOC t) throws Exception {
+			Reader reader = buildInterimDocument(dir, filename, encoding, t, t.getBuildContext().isKeepInterimFile());
+			try {
+				char[] buffer = new char[8192];
+				long length = 0;
+				int n;
+				while ((n = reader.read(buffer)) >= 0)
+					length += n;
+
+				return length;
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		doc = SyntheticDocument.create(chapters, 20);
+		outputDir = new File(doc.getDirectory(), "out");
+		outputDir.mkdirs();
+		interim = new InterimDocument();
+		pdf = new FlyingSaucerOutputProcessor();
+	}
+
+	@TearDown
+	public void tearDown() {
+		doc.delete();
+	}
+
+	@Benchmark
+	public long interimDocument() throws Exception {
+		return interim.build(outputDir, "bench", SyntheticDocument.ENCODING, doc.getTOC());
+	}
+
+	@Benchmark
+	public void flyingSaucer() throws Exception {
+		pdf.process(outputDir, "bench", SyntheticDocument.ENCODING, doc.getTOC());
+	}
+}
@@ -0,0 +1,126 @@
+package net.toften.docmaker.benchmarks;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.toften.docmaker.postprocessors.AdjustImageHrefPostProcessor;
+import net.toften.docmaker.postprocessors.ApplyKeyValue;
+import net.toften.docmaker.postprocessors.BQProcessor;
+import net.toften.docmaker.postprocessors.GenericRegexPostProcessor;
+import net.toften.docmaker.postprocessors.HeaderIncrementPostProcessor;
+import net.toften.docmaker.postprocessors.HtmlRewriter;
+import net.toften.docmaker.postprocessors.ImgTableNameInject;
+import net.toften.docmaker.postprocessors.InjectHeaderIdPostProcessor;
+import net.toften.docmaker.postprocessors.PostProcessor;
+import net.toften.docmaker.postprocessors.RegexPostProcessor;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks each {@link RegexPostProcessor} on the HTML of a converted fragment.
+ * <p>
+ * The standard post-processors fused into a single {@link HtmlRewriter} are benchmarked as
+ * <code>HtmlRewriter</code>, for comparison with running them one by one.
+ *
+ * @author thomaslarsen
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostProcessorBenchmark {
+	@Param({ "HeaderIncrementPostProcessor", "InjectHeaderIdPostProcessor", "AdjustImageHrefPostProcessor",
+			"ApplyKeyValue", "BQProcessor", "ImgTableNameInject", "GenericRegexPostProcessor", "HtmlRewriter" })
+	public String processor;
+
+	/**
+	 * The number of paragraphs in the fragment
+	 */
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private SyntheticDocument doc;
+	private PostProcessor pp;
+	private Chapter chapter;
+	private TOC t;
+	private String html;
+
+	@Setup
+	public void setUp() throws Exception {
+		doc = SyntheticDocument.create(1, 1);
+		chapter = doc.getChapter();
+		t = doc.getTOC();
+		html = doc.getMarkupProcessors().get("md").process(SyntheticDocument.markdown(size), null, doc.getHandler());
+		pp = createPostProcessor(processor);
+	}
+
+	private static PostProcessor createPostProcessor(String name) {
+		if (name.equals("HeaderIncrementPostProcessor"))
+			return new HeaderIncrementPostProcessor();
+		if (name.equals("InjectHeaderIdPostProcessor"))
+			return new InjectHeaderIdPostProcessor();
+		if (name.equals("AdjustImageHrefPostProcessor"))
+			return new AdjustImageHrefPostProcessor();
+		if (name.equals("ApplyKeyValue"))
+			return new ApplyKeyValue();
+		if (name.equals("BQProcessor"))
+			return new BQProcessor();
+		if (name.equals("ImgTableNameInject"))
+			return new ImgTableNameInject();
+		if (name.equals("GenericRegexPostProcessor")) {
+			// The regex is normally given by the TOC, but must be known when the processor is created
+			return new GenericRegexPostProcessor() {
+				@Override
+				protected String getRegex() {
+					return "Lorem ipsum";
+				}
+
+				@Override
+				protected String getReplacement(java.util.regex.Matcher m) {
+					return "<em>Lorem ipsum</em>";
+				}
+			};
+		}
+		if (name.equals("HtmlRewriter")) {
+			List<PostProcessor> fused = new LinkedList<PostProcessor>();
+			HtmlRewriter.add(fused, new HeaderIncrementPostProcessor());
+			HtmlRewriter.add(fused, new InjectHeaderIdPostProcessor());
+			HtmlRewriter.add(fused, new AdjustImageHrefPostProcessor());
+			HtmlRewriter.add(fused, new ApplyKeyValue());
+
+			return fused.get(0);
+		}
+
+		throw new IllegalArgumentException("Unknown post-processor " + name);
+	}
+
+	@TearDown
+	public void tearDown() {
+		doc.delete();
+	}
+
+	@Benchmark
+	public StringBuffer processFragment() {
+		StringBuffer out = new StringBuffer(html.length() + html.length() / 8);
+		pp.processFragment(chapter, html, out, t);
+
+		return out;
+	}
+}
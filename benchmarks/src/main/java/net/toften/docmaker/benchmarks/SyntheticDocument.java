@@ -0,0 +1,226 @@
+package net.toften.docmaker.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.standard.StandardHandler;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.csv.CsvProcessor;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.ChapterSection;
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * Generates the synthetic inputs of the benchmarks.
+ * <p>
+ * A document is a temporary directory with a TOC file and a number of markdown fragments, which
+ * has been parsed into a {@link TOC} by the {@link StandardHandler}. The fragments use the markup
+ * the post-processors act on: headers, images, links, block quotes, tables and keys.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class SyntheticDocument {
+	public static final String ENCODING = "UTF-8";
+	private static final Charset UTF8 = Charset.forName(ENCODING);
+
+	private final File dir;
+	private final Map<String, MarkupProcessor> markupProcessors;
+	private final AssemblyHandler handler;
+	private final TOC toc;
+
+	private SyntheticDocument(File dir, Map<String, MarkupProcessor> markupProcessors, AssemblyHandler handler, TOC toc) {
+		this.dir = dir;
+		this.markupProcessors = markupProcessors;
+		this.handler = handler;
+		this.toc = toc;
+	}
+
+	/**
+	 * Create and parse a document.
+	 *
+	 * @param chapters the number of chapters in the document
+	 * @param paragraphs the number of paragraphs in each chapter
+	 * @return the document
+	 * @throws Exception if the document can not be written or parsed
+	 */
+	public static SyntheticDocument create(int chapters, int paragraphs) throws Exception {
+		File dir = File.createTempFile("docmaker-bench-", "");
+		if (!dir.delete() || !dir.mkdirs())
+			throw new IOException("Can not create " + dir.getAbsolutePath());
+
+		File images = new File(dir, "images");
+		images.mkdirs();
+		ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB), "png", new File(images, "figure.png"));
+
+		StringBuilder toc = new StringBuilder()
+				.append("<document>\n")
+				.append("<header title=\"${product} benchmark\" />\n")
+				.append("<properties>\n");
+		for (Map.Entry<Object, Object> p : properties(10).entrySet()) {
+			toc.append("<property key=\"").append(p.getKey()).append("\" value=\"").append(p.getValue()).append("\" />\n");
+		}
+		toc.append("</properties>\n")
+				.append("<repos><repo id=\"bench\" uri=\"").append(dir.toURI()).append("\" /></repos>\n")
+				.append("<section title=\"Benchmark\" level=\"1\">\n")
+				.append("<chapters>\n");
+		for (int c = 0; c < chapters; c++) {
+			write(new File(dir, "chapter-" + c + ".md"), markdown(paragraphs));
+			toc.append("<chapter repo=\"bench\" fragment=\"chapter-").append(c).append("\" level=\"1\" />\n");
+		}
+		toc.append("</chapters>\n")
+				.append("</section>\n")
+				.append("</document>\n");
+
+		Map<String, MarkupProcessor> markupProcessors = markupProcessors();
+		AssemblyHandler handler = new StandardHandler();
+		TOC t = handler.parse(new ByteArrayInputStream(toc.toString().getBytes(UTF8)), "bench", "md", dir.toURI(), markupProcessors, new Properties(), null);
+
+		return new SyntheticDocument(dir, markupProcessors, handler, t);
+	}
+
+	/**
+	 * @return the markup processors for markdown and CSV fragments, by extension
+	 */
+	public static Map<String, MarkupProcessor> markupProcessors() {
+		Map<String, MarkupProcessor> markupProcessors = new HashMap<String, MarkupProcessor>();
+
+		MarkupProcessor md = new PegdownProcessor();
+		md.setEncoding(ENCODING);
+		markupProcessors.put("md", md);
+
+		MarkupProcessor csv = new CsvProcessor();
+		csv.setEncoding(ENCODING);
+		markupProcessors.put("csv", csv);
+
+		return markupProcessors;
+	}
+
+	/**
+	 * Generate the markdown of a fragment.
+	 *
+	 * @param paragraphs the number of paragraphs
+	 * @return the markdown
+	 */
+	public static String markdown(int paragraphs) {
+		StringBuilder md = new StringBuilder("# Chapter\n\n");
+		for (int i = 0; i < paragraphs; i++) {
+			if (i % 10 == 0)
+				md.append("## Section ").append(i / 10).append("\n\n");
+
+			md.append("Paragraph ").append(i).append(" of the **${product}** manual, see [section ").append(i / 10)
+					.append("](#bench-benchmark-chapter-section-").append(i / 10).append(") for version ${version}. ")
+					.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.\n\n");
+
+			switch (i % 5) {
+			case 1:
+				md.append("![Figure ").append(i).append("](images/figure.png)\n\n");
+				break;
+			case 2:
+				md.append("> A note about **info** ").append(i).append("\n\n");
+				break;
+			case 3:
+				md.append("| Key | Value |\n|-----|-------|\n| ").append(i).append(" | ${key-").append(i % 10).append("} |\n\n");
+				break;
+			}
+		}
+
+		return md.toString();
+	}
+
+	/**
+	 * Generate a CSV fragment with a header line and the columns <code>Key,Heading,Value</code>.
+	 *
+	 * @param rows the number of rows, excluding the header line
+	 * @return the CSV
+	 */
+	public static String csv(int rows) {
+		StringBuilder csv = new StringBuilder("Key,Heading,Value\n");
+		for (int i = 0; i < rows; i++) {
+			csv.append(i).append(",Heading ").append(i).append(",\"*Value* ").append(i).append(", with a comma\"\n");
+		}
+
+		return csv.toString();
+	}
+
+	/**
+	 * Generate key/value properties, like those of a Maven filter file. Most of the values are plain text;
+	 * every tenth value refers to <code>product</code> and <code>version</code>.
+	 *
+	 * @param keys the number of keys, in addition to <code>product</code> and <code>version</code>
+	 * @return the properties
+	 */
+	public static Properties properties(int keys) {
+		Properties props = new Properties();
+		props.setProperty("product", "Widget");
+		props.setProperty("version", "${product}-1.0");
+		for (int i = 0; i < keys; i++) {
+			props.setProperty("key-" + i, i % 10 == 0 ? "${product} ${version} setting " + i : "value " + i);
+		}
+
+		return props;
+	}
+
+	private static void write(File f, String text) throws IOException {
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(text.getBytes(UTF8));
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Delete the directory of the document, and any output written to it.
+	 */
+	public void delete() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public Map<String, MarkupProcessor> getMarkupProcessors() {
+		return markupProcessors;
+	}
+
+	public AssemblyHandler getHandler() {
+		return handler;
+	}
+
+	public TOC getTOC() {
+		return toc;
+	}
+
+	/**
+	 * @return the first chapter of the document
+	 */
+	public Chapter getChapter() {
+		List<Chapter> chapters = ((ChapterSection) toc.getSections().get(0)).getChapters();
+		return chapters.get(0);
+	}
+}
@@ -0,0 +1,161 @@
+package net.toften.docmaker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the duration and peak memory use of the previous build of each TOC.
+ * <p>
+ * The history is used to schedule the TOC files of a directory, so the longest builds are
+ * started first and TOCs are only started when their memory use is expected to fit in the heap.
+ * TOCs which have not been built before are estimated from the total size of their fragments,
+ * using the rates of the TOCs in the history, or a default rate if the history is empty.
+ * <p>
+ * The history is kept in a properties file in the output directory.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class BuildHistory {
+	private static final Logger lw = Logger.getLogger(BuildHistory.class.getName());
+
+	/**
+	 * The default estimated build duration per byte of fragment, in milliseconds
+	 */
+	static final double DEFAULT_DURATION_PER_BYTE = 0.01;
+
+	/**
+	 * The default estimated peak memory use per byte of fragment, in bytes
+	 */
+	static final double DEFAULT_MEMORY_PER_BYTE = 50;
+
+	private static final String DURATION = ".duration";
+	private static final String MEMORY = ".memory";
+	private static final String FRAGMENT_BYTES = ".fragmentBytes";
+
+	private final File historyFile;
+	private final Properties history = new Properties();
+
+	/**
+	 * Load the history from a file. If the file does not exist, or can not be read,
+	 * the history is empty.
+	 *
+	 * @param historyFile the file holding the history
+	 */
+	public BuildHistory(File historyFile) {
+		this.historyFile = historyFile;
+
+		if (historyFile.isFile()) {
+			try {
+				InputStream in = new FileInputStream(historyFile);
+				try {
+					history.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				lw.log(Level.WARNING, "Could not read build history " + historyFile.getAbsolutePath(), e);
+			}
+		}
+	}
+
+	/**
+	 * Record a build of a TOC.
+	 *
+	 * @param toc the name of the TOC
+	 * @param duration the duration of the build, in milliseconds
+	 * @param memory the peak memory use of the build, in bytes, or <code>-1</code> if it could not be measured;
+	 * 	the memory use of the previous build is then kept
+	 * @param fragmentBytes the total size of the fragments of the TOC, in bytes
+	 */
+	public synchronized void record(String toc, long duration, long memory, long fragmentBytes) {
+		history.setProperty(toc + DURATION, Long.toString(duration));
+		if (memory >= 0)
+			history.setProperty(toc + MEMORY, Long.toString(memory));
+		history.setProperty(toc + FRAGMENT_BYTES, Long.toString(fragmentBytes));
+	}
+
+	/**
+	 * Estimate the duration of a build of a TOC.
+	 *
+	 * @param toc the name of the TOC
+	 * @param fragmentBytes the total size of the fragments of the TOC, in bytes
+	 * @return the duration of the previous build, or an estimate based on the fragment size
+	 */
+	public synchronized long estimateDuration(String toc, long fragmentBytes) {
+		return estimate(toc, DURATION, fragmentBytes, DEFAULT_DURATION_PER_BYTE);
+	}
+
+	/**
+	 * Estimate the peak memory use of a build of a TOC.
+	 *
+	 * @param toc the name of the TOC
+	 * @param fragmentBytes the total size of the fragments of the TOC, in bytes
+	 * @return the peak memory use of the previous build, or an estimate based on the fragment size
+	 */
+	public synchronized long estimateMemory(String toc, long fragmentBytes) {
+		return estimate(toc, MEMORY, fragmentBytes, DEFAULT_MEMORY_PER_BYTE);
+	}
+
+	private long estimate(String toc, String measure, long fragmentBytes, double defaultRate) {
+		Long known = getLong(toc + measure);
+		if (known != null)
+			return known;
+
+		// Use the average rate of the TOCs in the history
+		long total = 0;
+		long totalBytes = 0;
+		for (String key : history.stringPropertyNames()) {
+			if (key.endsWith(measure)) {
+				String name = key.substring(0, key.length() - measure.length());
+				Long value = getLong(key);
+				Long bytes = getLong(name + FRAGMENT_BYTES);
+				if (value != null && bytes != null && bytes > 0) {
+					total += value;
+					totalBytes += bytes;
+				}
+			}
+		}
+
+		double rate = totalBytes > 0 ? (double) total / totalBytes : defaultRate;
+
+		return (long) (fragmentBytes * rate);
+	}
+
+	private Long getLong(String key) {
+		String value = history.getProperty(key);
+		if (value == null)
+			return null;
+
+		try {
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			lw.fine("Ignoring build history entry " + key + "=" + value);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the history to the file it was loaded from.
+	 */
+	public synchronized void save() {
+		try {
+			historyFile.getAbsoluteFile().getParentFile().mkdirs();
+			OutputStream out = new FileOutputStream(historyFile);
+			try {
+				history.store(out, "DocMaker build history");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			lw.log(Level.WARNING, "Could not write build history " + historyFile.getAbsolutePath(), e);
+		}
+	}
+}
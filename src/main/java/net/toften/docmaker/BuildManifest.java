@@ -0,0 +1,209 @@
+package net.toften.docmaker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.toften.docmaker.cache.CacheKeys;
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.handler.DependencyListener;
+import net.toften.docmaker.handler.OutputListener;
+
+/**
+ * Records what the output of a TOC was built from, so the TOC does not have to be rebuilt
+ * if nothing has changed.
+ * <p>
+ * The manifest holds the hashes of the TOC file, the files the TOC was found to depend on while
+ * it was built, such as fragments and property files, and the options used to build it, together
+ * with the names of the output files. The output of the TOC is up to date if none of the hashes
+ * have changed and all the output files exist.
+ * <p>
+ * The manifest is a {@link DependencyListener} and an {@link OutputListener}, which must be added to
+ * the {@link BuildContext} while the TOC is built.
+ *
+ * @author thomaslarsen
+ *
+ */
+class BuildManifest implements DependencyListener, OutputListener {
+	private static final Logger lw = Logger.getLogger(BuildManifest.class.getName());
+
+	private static final String OPTIONS = "options";
+	private static final String FILE = "file.";
+	private static final String OUTPUT = "output.";
+
+	private final String tocFileName;
+	private final File outputDir;
+	private final Map<String, String> entries = new TreeMap<String, String>();
+
+	/**
+	 * Create a manifest for a build of a TOC.
+	 *
+	 * @param tocFileName the filename of the TOC, without extension
+	 * @param outputDir the directory holding the output files
+	 * @param options a description of the options used to build the TOC
+	 */
+	BuildManifest(String tocFileName, File outputDir, String options) {
+		this.tocFileName = tocFileName;
+		this.outputDir = outputDir.getAbsoluteFile();
+		entries.put(OPTIONS, hash(options));
+	}
+
+	/**
+	 * Check if the output of a TOC is up to date.
+	 * <p>
+	 * If it is, the files in the manifest are reported to the {@link BuildContext#addDependencyListener(DependencyListener) dependency listeners}
+	 * of the context, as they would have been if the TOC had been built.
+	 *
+	 * @param manifestFile the manifest written by the previous build of the TOC
+	 * @param context the context of the build
+	 * @return <code>true</code> if nothing has changed since the manifest was written
+	 */
+	boolean isUpToDate(File manifestFile, BuildContext context) {
+		if (!manifestFile.isFile())
+			return false;
+
+		Properties manifest = new Properties();
+		try {
+			InputStream in = new FileInputStream(manifestFile);
+			try {
+				manifest.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			lw.log(Level.FINE, "Could not read manifest " + manifestFile.getAbsolutePath(), e);
+			return false;
+		}
+
+		if (!entries.get(OPTIONS).equals(manifest.getProperty(OPTIONS))) {
+			lw.fine("Options have changed since " + manifestFile.getName() + " was written");
+			return false;
+		}
+
+		for (String key : manifest.stringPropertyNames()) {
+			if (key.startsWith(FILE)) {
+				URI file = URI.create(key.substring(FILE.length()));
+				if (!manifest.getProperty(key).equals(hash(file))) {
+					lw.fine(file + " has changed since " + manifestFile.getName() + " was written");
+					return false;
+				}
+			} else if (key.startsWith(OUTPUT)) {
+				File output = new File(manifest.getProperty(key));
+				if (!output.isAbsolute())
+					output = new File(outputDir, manifest.getProperty(key));
+				if (!output.isFile()) {
+					lw.fine("Output file " + manifest.getProperty(key) + " is missing");
+					return false;
+				}
+			}
+		}
+
+		for (String key : manifest.stringPropertyNames()) {
+			if (key.startsWith(FILE))
+				context.dependencyFound(tocFileName, URI.create(key.substring(FILE.length())));
+		}
+
+		return true;
+	}
+
+	@Override
+	public void dependencyFound(String tocFileName, URI dependency) {
+		if (this.tocFileName.equals(tocFileName))
+			addFile(dependency);
+	}
+
+	/**
+	 * Add a file the TOC depends on.
+	 *
+	 * @param file the absolute {@link URI} of the file
+	 */
+	void addFile(URI file) {
+		String hash = hash(file);
+		synchronized (entries) {
+			entries.put(FILE + file.toString(), hash);
+		}
+	}
+
+	/**
+	 * Add an output file of the TOC, as it is reported by the output processor writing it.
+	 * <p>
+	 * The file is recorded relative to the output directory if it is in it, so the output directory can be moved.
+	 */
+	@Override
+	public void outputWritten(String tocFileName, File output) {
+		if (!this.tocFileName.equals(tocFileName))
+			return;
+
+		File dir = output.getAbsoluteFile().getParentFile();
+		String name = dir != null && dir.equals(outputDir) ? output.getName() : output.getAbsolutePath();
+		synchronized (entries) {
+			entries.put(OUTPUT + name, name);
+		}
+	}
+
+	/**
+	 * Write the manifest.
+	 *
+	 * @param manifestFile the file to write the manifest to
+	 * @throws IOException if the manifest can not be written
+	 */
+	void write(File manifestFile) throws IOException {
+		Properties manifest = new Properties();
+		synchronized (entries) {
+			manifest.putAll(entries);
+		}
+
+		manifestFile.getAbsoluteFile().getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(manifestFile);
+		try {
+			manifest.store(out, "DocMaker build manifest for " + tocFileName);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String hash(String s) {
+		MessageDigest md = CacheKeys.sha1();
+		try {
+			md.update(s.getBytes("UTF-8"));
+		} catch (IOException e) {
+			// Every Java platform is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+
+		return CacheKeys.toHex(md.digest());
+	}
+
+	/**
+	 * @return the hash of the contents of a file, or an empty string if it can not be read
+	 */
+	private static String hash(URI file) {
+		MessageDigest md = CacheKeys.sha1();
+		try {
+			InputStream in = file.toURL().openStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					md.update(buffer, 0, n);
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			lw.fine("Could not read " + file + ": " + e.getMessage());
+			return "";
+		}
+
+		return CacheKeys.toHex(md.digest());
+	}
+}
@@ -1,5 +1,6 @@
 package net.toften.docmaker;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -9,21 +10,46 @@ import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
+import net.toften.docmaker.cache.ConversionCache;
+import net.toften.docmaker.cache.DiskConversionCache;
+import net.toften.docmaker.cache.MemoryConversionCache;
 import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.BuildContext;
 import net.toften.docmaker.markup.MarkupProcessor;
 import net.toften.docmaker.output.BrokenLinks;
 import net.toften.docmaker.output.OutputProcessor;
+import net.toften.docmaker.plugin.PluginRegistry;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.report.BuildReport.Timer;
 import net.toften.docmaker.toc.TOC;
 
 import com.beust.jcommander.JCommander;
@@ -32,6 +58,11 @@ import com.beust.jcommander.Parameter;
 public class DocMakerMain {
 	private static Logger lw = Logger.getLogger(DocMakerMain.class.getName());	
 
+	/**
+	 * Prefix of the names of the threads processing TOC files in parallel
+	 */
+	public static final String WORKER_THREAD_PREFIX = "docmaker-toc-";
+
 	static void setLogLevel(Level level){
 		Logger log = LogManager.getLogManager().getLogger("");
 		log.setLevel(level);
@@ -130,12 +161,146 @@ public class DocMakerMain {
     @Parameter(names = "-loglevel", description = "The log level to use")
     private String logLevel = Level.INFO.getName();
     
+    /**
+     * The number of TOC files to process in parallel, when the TOC path is a directory.
+     * <p>
+     * Each TOC is processed by its own {@link AssemblyHandler} and {@link OutputProcessor}s.
+     */
+    @Parameter(names = "-threads", description = "The number of TOC files to process in parallel, when the TOC path is a directory.")
+    private int threads = 1;
+    
+    /**
+     * The number of threads used to load and convert the chapter fragments while a TOC is parsed.
+     * <p>
+     * If this is <code>0</code> the fragments are converted synchronously by the thread parsing the TOC.
+     */
+    @Parameter(names = "-chapterThreads", description = "The number of threads used to convert chapter fragments; 0 converts them while the TOC is parsed.")
+    private int chapterThreads = 0;
+    
+    /**
+     * The number of threads used to render the rows of CSV tables.
+     * <p>
+     * If this is <code>0</code> the rows are rendered by the thread converting the chapter.
+     */
+    @Parameter(names = "-csvThreads", description = "The number of threads used to render the rows of CSV tables; 0 renders them while the chapter is converted.")
+    private int csvThreads = 0;
+    
+    /**
+     * The number of chapters held in memory while the chapters of a TOC are streamed to the interim file.
+     * <p>
+     * If this is <code>0</code> all the chapters of a TOC are held in memory until the TOC has been written.
+     */
+    @Parameter(names = "-streamingWindow", description = "The number of chapters held in memory while a TOC is streamed; 0 holds all chapters in memory.")
+    private int streamingWindow = 0;
+    
+    /**
+     * The total size of the chapter HTML of a TOC, in millions of characters, above which the chapters are
+     * moved out of the heap to a memory-mapped file.
+     * <p>
+     * If this is <code>0</code> the chapters are always held in memory. This is not used when the chapters
+     * are {@link #streamingWindow streamed}.
+     */
+    @Parameter(names = "-chapterStoreThreshold", description = "The size of the chapter HTML of a TOC, in millions of characters, above which the chapters are moved to a memory-mapped file; 0 always holds them in memory.")
+    private long chapterStoreThreshold = 256;
+    
+    /**
+     * Keep running after the TOCs have been built, and rebuild the affected TOCs when a TOC file,
+     * fragment, CSS file or key file changes.
+     */
+    @Parameter(names = "-watch", description = "Keep running and rebuild the affected TOCs when their files change.")
+    private boolean watch = false;
+    
+    /**
+     * Cache the converted fragments in a persistent cache under the output directory.
+     * <p>
+     * Fragments are only converted if the fragment file, the markup processor, the chapter config
+     * or the encoding has changed since it was cached.
+     */
+    @Parameter(names = "-conversionCache", description = "Cache the converted fragments in a persistent cache under the output directory.")
+    private boolean conversionCache = false;
+    
+    /**
+     * The maximum size of the conversion cache, in megabytes.
+     * <p>
+     * When the cache exceeds this size, the least recently used conversions are evicted.
+     */
+    @Parameter(names = "-conversionCacheSize", description = "The maximum size of the conversion cache, in megabytes.")
+    private long conversionCacheSize = 256;
+    
+    /**
+     * The maximum size of the in-memory cache of converted fragments, in megabytes.
+     * <p>
+     * Fragments included by several of the TOCs built together are only converted once, as long as
+     * they fit in the cache. If this is <code>0</code> the fragments are converted for each TOC.
+     */
+    @Parameter(names = "-fragmentCacheSize", description = "The maximum size of the in-memory cache of fragments shared between TOCs, in megabytes; 0 disables it.")
+    private long fragmentCacheSize = 64;
+    
+    /**
+     * Time each stage of the build, and write a build report next to the output of each TOC.
+     * <p>
+     * The report is written as JSON, HTML and Chrome trace events.
+     */
+    @Parameter(names = "-buildReport", description = "Write a report of the time spent by each stage of the build next to the output of each TOC.")
+    private boolean buildReport = false;
+    
+    /**
+     * Write the interim HTML file next to the output. Otherwise the interim document is piped straight into
+     * the parser of the output processor, and never written to disk, so the file is only useful when
+     * debugging the output.
+     */
+    @Parameter(names = "-keepInterimFile", description = "Write the interim HTML file next to the output, for debugging.")
+    private boolean keepInterimFile = false;
+    
+    /**
+     * Fail the build if a key can not be resolved, rather than writing a message in its place.
+     */
+    @Parameter(names = "-strictKeys", description = "Fail the build if a key can not be resolved.")
+    private boolean strictKeys = false;
+    
+    /**
+     * Build all the TOCs, even if their output is up to date.
+     * <p>
+     * Without this option, a TOC is skipped if none of the files it was built from, nor the options
+     * used to build it, have changed since its {@link BuildManifest manifest} was written.
+     */
+    @Parameter(names = "-force", description = "Build all the TOCs, even if their output is up to date.")
+    private boolean force = false;
+    
 	private Map<String, MarkupProcessor> processors = new HashMap<String, MarkupProcessor>();
 	private URI baseURI = new File(".").toURI();
 	
     private Map<String, String> markupProcessorsMap;
 	private Properties props;
 	private String actualEncoding;
+	private BuildContext buildContext = new BuildContext();
+	private PluginRegistry plugins = new PluginRegistry();
+	private BuildHistory history;
+	/** The number of TOCs being processed */
+	private final AtomicInteger activeTocs = new AtomicInteger();
+	/** The number of TOCs started, to tell if another TOC was started while a TOC was processed */
+	private final AtomicLong startedTocs = new AtomicLong();
+	private String manifestOptions;
+	
+	/**
+	 * The name of the conversion cache directory, created in the output directory
+	 */
+	public static final String CONVERSION_CACHE_DIR = ".docmaker-cache";
+	
+	/**
+	 * The name of the {@link BuildHistory build history} file, created in the output directory
+	 */
+	public static final String HISTORY_FILE = ".docmaker-history";
+	
+	/**
+	 * The name of the directory holding the {@link BuildManifest build manifests}, created in the output directory
+	 */
+	public static final String MANIFEST_DIR = ".docmaker-manifest";
+	
+	/**
+	 * The share of the maximum heap size which TOC files processed in parallel are expected to use
+	 */
+	private static final double MEMORY_BUDGET = 0.8;
 
     public static void main(final String[] args) throws Exception {
         DocMakerMain mojo = new DocMakerMain();
@@ -158,7 +323,19 @@ public class DocMakerMain {
 					mojo.markupProcessorsMap.put(pm[0], pm[1]);
 				}
 	        }
-	        
+
+	        /*
+	         * jCommander writes the fields directly, so pass the numeric options
+	         * through their setters to have them validated
+	         */
+	        mojo.setThreads(mojo.threads);
+	        mojo.setChapterThreads(mojo.chapterThreads);
+	        mojo.setCsvThreads(mojo.csvThreads);
+	        mojo.setStreamingWindow(mojo.streamingWindow);
+	        mojo.setChapterStoreThreshold(mojo.chapterStoreThreshold);
+	        mojo.setConversionCache(mojo.conversionCache, mojo.conversionCacheSize);
+	        mojo.setFragmentCacheSize(mojo.fragmentCacheSize);
+
 	        setLogLevel(Level.parse(mojo.logLevel));
 	        
 	        mojo.initDocMaker();
@@ -195,6 +372,7 @@ public class DocMakerMain {
 	private void initDocMaker() throws DocMakerException {
 		// Check if encoding is supplied and/or valid
         actualEncoding = checkEncoding();
+        buildContext.setEncoding(actualEncoding);
         // Create the path to the output dir if it doesn't exist
         lw.info("Writing output to: " + outputDir);
         outputDir.mkdirs();
@@ -220,7 +398,7 @@ public class DocMakerMain {
 		if (markupProcessorsMap == null) {
 			MarkupProcessor markupProcessor;
 			try {
-				markupProcessor = newInstance(MarkupProcessor.class, markupProcessorClassname);
+				markupProcessor = plugins.acquire(MarkupProcessor.class, markupProcessorClassname);
 				markupProcessor.setEncoding(actualEncoding);
 				
 				processors.put(defaultExtension, markupProcessor);
@@ -232,7 +410,7 @@ public class DocMakerMain {
 			for (String extension : markupProcessorsMap.keySet()) {
 				MarkupProcessor markupProcessor;
 				try {
-					markupProcessor = newInstance(MarkupProcessor.class, markupProcessorsMap.get(extension));
+					markupProcessor = plugins.acquire(MarkupProcessor.class, markupProcessorsMap.get(extension));
 					markupProcessor.setEncoding(actualEncoding);
 					
 					processors.put(extension, markupProcessor);
@@ -246,19 +424,7 @@ public class DocMakerMain {
         lw.info("Using " + assemblyHandlerClassname + " as " + AssemblyHandler.class.getName() + " for parsing TOCs");
         
         // Load the keys
-        props = new Properties();
-        if (propFilenames != null) {
-        	try {
-        		for (String keyFilename : propFilenames) {
-        			lw.info("Loading propertyfile: " + keyFilename);
-        			InputStream in = new FileInputStream(keyFilename);
-        			props.load(in);
-        			in.close();
-        		}
-        	} catch (IOException e) {
-        		throw new DocMakerException("Can not load key file", e);
-        	}
-        }
+        loadKeys();
         
         // Add default output processors
         outputProcessors = new LinkedList<String>(outputProcessors);
@@ -266,35 +432,629 @@ public class DocMakerMain {
     }
 	
 	/**
+	 * Set the number of TOC files to process in parallel, when {@link #run(String) run} is
+	 * given a directory.
+	 * 
+	 * @param threads the size of the worker pool; <code>1</code> processes the TOC files sequentially
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, was " + threads);
+		
+		this.threads = threads;
+	}
+	
+	/**
+	 * Set the number of threads used to load and convert the chapter fragments.
+	 * 
+	 * @param chapterThreads the size of the chapter conversion pool; <code>0</code> converts the
+	 * 	chapters synchronously while the TOC is parsed
+	 */
+	public void setChapterThreads(int chapterThreads) {
+		if (chapterThreads < 0)
+			throw new IllegalArgumentException("Number of chapter threads can not be negative, was " + chapterThreads);
+		
+		this.chapterThreads = chapterThreads;
+	}
+	
+	/**
+	 * Set the number of threads used to render the rows of CSV tables.
+	 * 
+	 * @param csvThreads the size of the row rendering pool; <code>0</code> renders the rows
+	 * 	while the chapter is converted
+	 */
+	public void setCsvThreads(int csvThreads) {
+		if (csvThreads < 0)
+			throw new IllegalArgumentException("Number of CSV threads can not be negative, was " + csvThreads);
+		
+		this.csvThreads = csvThreads;
+	}
+	
+	/**
+	 * Set the number of chapters held in memory while the chapters of a TOC are streamed.
+	 * 
+	 * @param streamingWindow the number of chapters; <code>0</code> holds all the chapters of a TOC in memory
+	 */
+	public void setStreamingWindow(int streamingWindow) {
+		if (streamingWindow < 0)
+			throw new IllegalArgumentException("Streaming window can not be negative, was " + streamingWindow);
+		
+		this.streamingWindow = streamingWindow;
+	}
+	
+	/**
+	 * Set the size of the chapter HTML of a TOC above which the chapters are moved to a memory-mapped file.
+	 * 
+	 * @param chapterStoreThreshold the size, in millions of characters; <code>0</code> always holds the
+	 * 	chapters in memory
+	 */
+	public void setChapterStoreThreshold(long chapterStoreThreshold) {
+		if (chapterStoreThreshold < 0)
+			throw new IllegalArgumentException("Chapter store threshold can not be negative, was " + chapterStoreThreshold);
+		
+		this.chapterStoreThreshold = chapterStoreThreshold;
+	}
+	
+	/**
+	 * @param watch <code>true</code> to keep rebuilding the TOCs as their files change
+	 * @see #run(String)
+	 */
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+	
+	/**
+	 * Enable the persistent conversion cache.
+	 * 
+	 * @param enabled <code>true</code> to cache the converted fragments under the output directory
+	 * @param maxSizeMb the maximum size of the cache, in megabytes
+	 */
+	public void setConversionCache(boolean enabled, long maxSizeMb) {
+		if (maxSizeMb < 1)
+			throw new IllegalArgumentException("Conversion cache size must be at least 1 MB, was " + maxSizeMb);
+		
+		this.conversionCache = enabled;
+		this.conversionCacheSize = maxSizeMb;
+	}
+	
+	/**
+	 * Set the size of the in-memory cache of converted fragments, shared by the TOCs built together.
+	 * 
+	 * @param fragmentCacheSizeMb the maximum size of the cache, in megabytes; <code>0</code> to disable it
+	 */
+	public void setFragmentCacheSize(long fragmentCacheSizeMb) {
+		if (fragmentCacheSizeMb < 0)
+			throw new IllegalArgumentException("Fragment cache size must not be negative, was " + fragmentCacheSizeMb);
+		
+		this.fragmentCacheSize = fragmentCacheSizeMb;
+	}
+	
+	/**
+	 * Enable the build report.
+	 * 
+	 * @param buildReport <code>true</code> to time each stage of the build, and write a report
+	 * 	next to the output of each TOC
+	 */
+	public void setBuildReport(boolean buildReport) {
+		this.buildReport = buildReport;
+	}
+	
+	/**
+	 * @param keepInterimFile <code>true</code> to write the interim HTML file next to the output
+	 */
+	public void setKeepInterimFile(boolean keepInterimFile) {
+		this.keepInterimFile = keepInterimFile;
+	}
+	
+	/**
+	 * @param strictKeys <code>true</code> to fail the build if a key can not be resolved
+	 */
+	public void setStrictKeys(boolean strictKeys) {
+		this.strictKeys = strictKeys;
+	}
+	
+	/**
+	 * @param force <code>true</code> to build all the TOCs, even if their output is up to date
+	 */
+	public void setForce(boolean force) {
+		this.force = force;
+	}
+	
+	/**
+	 * Build the TOC file, or all the TOC files in a directory.
+	 * <p>
+	 * If {@link #setWatch(boolean) watch} mode is enabled, this method will not return until
+	 * the thread is interrupted.
+	 * 
 	 * @param tocFilename the path of the TOC file, or directory containing TOC files
 	 * @throws DocMakerException
 	 */
 	public void run(String tocFilename) throws DocMakerException {
+		ConversionCache cache = null;
+		if (conversionCache) {
+			try {
+				cache = new DiskConversionCache(new File(outputDir, CONVERSION_CACHE_DIR), conversionCacheSize * 1024 * 1024);
+			} catch (IOException e) {
+				throw new DocMakerException("Can not open conversion cache", e);
+			}
+		}
+		buildContext.setConversionCache(cache);
+		
+
+		ExecutorService chapterExecutor = null;
+		if (chapterThreads > 0) {
+			lw.info("Converting chapters using " + chapterThreads + " threads");
+			chapterExecutor = Executors.newFixedThreadPool(chapterThreads, new NamedThreadFactory("docmaker-chapter-"));
+		}
+		buildContext.setChapterExecutor(chapterExecutor);
+		
+		ExecutorService csvExecutor = null;
+		if (csvThreads > 0) {
+			lw.info("Rendering CSV rows using " + csvThreads + " threads");
+			csvExecutor = new ForkJoinPool(csvThreads, new NamedWorkerThreadFactory("docmaker-csv-"), null, false);
+		}
+		buildContext.setCsvExecutor(csvExecutor);
+		buildContext.setStreamingWindow(streamingWindow);
+		buildContext.setChapterStoreThreshold(chapterStoreThreshold * 1000 * 1000);
+		buildContext.setBuildReport(buildReport ? new BuildReport() : null);
+		buildContext.setKeepInterimFile(keepInterimFile);
+		buildContext.setStrictKeys(strictKeys);
+		history = new BuildHistory(new File(outputDir, HISTORY_FILE));
+		manifestOptions = describeOptions();
+		
+		try {
+			if (watch) {
+				watch(tocFilename);
+			} else {
+				processTocs(listTocFiles(tocFilename));
+			}
+		} finally {
+			if (chapterExecutor != null)
+				chapterExecutor.shutdownNow();
+			buildContext.setChapterExecutor(null);
+			if (csvExecutor != null)
+				csvExecutor.shutdownNow();
+			buildContext.setCsvExecutor(null);
+			
+			if (cache != null)
+				cache.logStatistics();
+			buildContext.setConversionCache(null);
+			if (buildContext.getBuildReport() != null)
+				buildContext.getBuildReport().close();
+			buildContext.setBuildReport(null);
+			history = null;
+			manifestOptions = null;
+		}
+	}
+
+	/**
+	 * @return the context shared by the TOCs of this run
+	 */
+	BuildContext getBuildContext() {
+		return buildContext;
+	}
+
+	/**
+	 * Find the TOC files to process.
+	 * 
+	 * @param tocFilename the path of the TOC file, or directory containing TOC files
+	 * @return the TOC files
+	 */
+	List<File> listTocFiles(String tocFilename) {
         File tocFile = new File(tocFilename);
+    	List<File> tocFiles = new LinkedList<File>();
 
         if (tocFile.isFile() && tocFile.getName().endsWith(tocFileExt)) {
-            parseAndProcessFile(tocFile);
+        	tocFiles.add(tocFile);
         } else if (tocFile.isDirectory()) {
             for (File f : tocFile.listFiles()) {
                 if (f.isFile() && f.getName().endsWith(tocFileExt)) {
-                    parseAndProcessFile(f);
+                	tocFiles.add(f);
                 }
             }
         }
+        
+        return tocFiles;
+	}
+	
+	/**
+	 * Process a number of TOC files, in parallel if more than one {@link #threads thread} has been specified.
+	 * <p>
+	 * The TOC files share a new fragment cache, so a fragment is only converted once even if it is
+	 * included by several TOCs. A new cache is used for each call, as the fragments may have changed
+	 * since the previous call in {@link #setWatch(boolean) watch} mode.
+	 * 
+	 * @param tocFiles the TOC files to process
+	 * @throws DocMakerException
+	 */
+	void processTocs(List<File> tocFiles) throws DocMakerException {
+		ConversionCache fragmentCache = null;
+		if (fragmentCacheSize > 0 && tocFiles.size() > 1)
+			fragmentCache = new MemoryConversionCache(fragmentCacheSize * 1024 * 1024 / 2);
+		buildContext.setFragmentCache(fragmentCache);
+		
+		try {
+	        if (threads > 1 && tocFiles.size() > 1) {
+	        	runParallel(tocFiles);
+	        } else {
+	        	for (File f : tocFiles) {
+	        		parseAndProcessFile(f);
+	        	}
+	        }
+		} finally {
+			if (fragmentCache != null)
+				fragmentCache.logStatistics();
+			buildContext.setFragmentCache(null);
+			
+			if (history != null)
+				history.save();
+		}
     }
+	
+	/**
+	 * Build all the TOC files, and then keep watching the files they depend on, rebuilding
+	 * the affected TOCs whenever a file changes.
+	 * <p>
+	 * This method does not return until the thread is interrupted.
+	 * 
+	 * @param tocFilename the path of the TOC file, or directory containing TOC files
+	 * @throws DocMakerException if the files can not be watched
+	 */
+	private void watch(String tocFilename) throws DocMakerException {
+		DocMakerWatcher watcher = new DocMakerWatcher(this, tocFilename, tocFileExt, baseURI, cssFilePath, propFilenames);
+		buildContext.addDependencyListener(watcher);
+		
+		try {
+			try {
+				processTocs(listTocFiles(tocFilename));
+			} catch (DocMakerException e) {
+				lw.log(Level.SEVERE, e.getMessage(), e);
+			}
+			
+			watcher.watch();
+		} finally {
+			buildContext.removeDependencyListener(watcher);
+		}
+	}
+	
+	/**
+	 * Process a number of TOC files using a bounded pool of {@link #threads} workers.
+	 * <p>
+	 * The TOC files are started longest first, according to the {@link BuildHistory build history}.
+	 * A TOC is only started when its expected memory use fits in the heap, together with the TOCs
+	 * already being processed; a TOC is always started when no other TOCs are being processed.
+	 * <p>
+	 * A failing TOC will not stop the processing of the remaining TOC files. Each failure
+	 * is logged against the TOC file, and once all TOC files have been processed a single
+	 * {@link DocMakerException} is thrown if any of them failed.
+	 * 
+	 * @param tocFiles the TOC files to process
+	 * @throws DocMakerException if one or more TOC files failed
+	 */
+	private void runParallel(final List<File> tocFiles) throws DocMakerException {
+		int poolSize = Math.min(threads, tocFiles.size());
+		lw.info("Processing " + tocFiles.size() + " TOC files using " + poolSize + " threads");
+		
+		List<ScheduledToc> pending = schedule(tocFiles);
+		long memoryBudget = (long) (Runtime.getRuntime().maxMemory() * MEMORY_BUDGET);
+		long memoryInUse = 0;
+		
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize, new NamedThreadFactory(WORKER_THREAD_PREFIX));
+		CompletionService<Object> completion = new ExecutorCompletionService<Object>(pool);
+		Map<Future<Object>, ScheduledToc> running = new HashMap<Future<Object>, ScheduledToc>();
+		try {
+			List<String> failed = new LinkedList<String>();
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				// Start the longest TOCs which fit in the memory budget
+				for (Iterator<ScheduledToc> i = pending.iterator(); i.hasNext() && running.size() < poolSize;) {
+					final ScheduledToc st = i.next();
+					if (running.isEmpty() || memoryInUse + st.memory <= memoryBudget) {
+						i.remove();
+						memoryInUse += st.memory;
+						lw.fine("Starting TOC: " + st.file.getName() + " (estimated " + st.duration + " ms, " + st.memory + " bytes)");
+						running.put(completion.submit(new Callable<Object>() {
+							@Override
+							public Object call() throws Exception {
+								Thread current = Thread.currentThread();
+								String workerName = current.getName();
+								current.setName(workerName + " [" + st.file.getName() + "]");
+								try {
+									parseAndProcessFile(st.file, st.fragmentBytes);
+								} finally {
+									current.setName(workerName);
+								}
+								return null;
+							}
+						}), st);
+					}
+				}
+				
+				Future<Object> result = completion.take();
+				ScheduledToc st = running.remove(result);
+				memoryInUse -= st.memory;
+				
+				String tocName = st.file.getName();
+				try {
+					result.get();
+					lw.info("Finished TOC: " + tocName);
+				} catch (ExecutionException e) {
+					failed.add(tocName);
+					lw.log(Level.SEVERE, "Failed TOC: " + tocName + ": " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+			
+			if (!failed.isEmpty())
+				throw new DocMakerException(failed.size() + " of " + tocFiles.size() + " TOC files failed: " + failed.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocMakerException("Interrupted while processing TOC files", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Estimate the duration and memory use of each TOC file from the build history.
+	 * 
+	 * @param tocFiles the TOC files to process
+	 * @return the TOC files, longest first
+	 */
+	private List<ScheduledToc> schedule(List<File> tocFiles) {
+		List<ScheduledToc> scheduled = new ArrayList<ScheduledToc>();
+		for (File f : tocFiles) {
+			long fragmentBytes = TocFragmentScanner.fragmentBytes(f, baseURI, defaultExtension);
+			scheduled.add(new ScheduledToc(f, fragmentBytes,
+					history.estimateDuration(f.getName(), fragmentBytes),
+					history.estimateMemory(f.getName(), fragmentBytes)));
+		}
+		
+		Collections.sort(scheduled, new Comparator<ScheduledToc>() {
+			@Override
+			public int compare(ScheduledToc o1, ScheduledToc o2) {
+				return o1.duration < o2.duration ? 1 : o1.duration > o2.duration ? -1 : 0;
+			}
+		});
+		
+		return scheduled;
+	}
+	
+	/**
+	 * A TOC file waiting to be processed, with its estimated duration and memory use
+	 */
+	private static class ScheduledToc {
+		private final File file;
+		private final long fragmentBytes;
+		private final long duration;
+		private final long memory;
+		
+		public ScheduledToc(File file, long fragmentBytes, long duration, long memory) {
+			this.file = file;
+			this.fragmentBytes = fragmentBytes;
+			this.duration = duration;
+			this.memory = memory;
+		}
+	}
+	
+	/**
+	 * Names the worker threads, so the log output of parallel runs can be attributed to the
+	 * individual TOC files.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+		
+		public NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Creates the worker threads of a {@link ForkJoinPool}, named like those of a {@link NamedThreadFactory}.
+	 * The worker threads are daemon threads.
+	 */
+	private static class NamedWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+		
+		public NamedWorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+				// The constructor is protected
+			};
+			t.setName(prefix + count.incrementAndGet());
+			return t;
+		}
+	}
 
-    private void parseAndProcessFile(final File tocFile) throws DocMakerException {
+    void parseAndProcessFile(final File tocFile) throws DocMakerException {
+    	parseAndProcessFile(tocFile, -1);
+    }
+    
+    /**
+     * Process a TOC file, and record the build in the {@link BuildHistory build history}.
+     * <p>
+     * The peak memory use is sampled from the heap as the TOC is processed. As the heap is shared,
+     * the memory use is only recorded if no other TOC was processed at the same time.
+     * 
+     * @param tocFile the TOC file
+     * @param fragmentBytes the total size of the fragments of the TOC, or <code>-1</code> if it is not known
+     * @throws DocMakerException
+     */
+    private void parseAndProcessFile(final File tocFile, long fragmentBytes) throws DocMakerException {
         String outputFilename = tocFile.getName().replaceFirst("[.][^.]+$", ""); // remove the extension
+        
+        BuildManifest manifest = null;
+        File manifestFile = new File(new File(outputDir, MANIFEST_DIR), outputFilename + ".properties");
+        if (manifestOptions != null) {
+        	manifest = new BuildManifest(outputFilename, outputDir, manifestOptions);
+        	if (!force && manifest.isUpToDate(manifestFile, buildContext)) {
+        		lw.info("Skipping TOC: " + tocFile.getName() + " is up to date");
+        		return;
+        	}
+        	
+        	// The manifest is only written if the build succeeds
+        	manifestFile.delete();
+        	manifest.addFile(tocFile.toURI());
+        	for (URI dependency : getRunDependencies())
+        		manifest.addFile(dependency);
+        }
 
         // Instantiate the AssemblyHandler
         AssemblyHandler ah;
         try {
-            ah = newInstance(AssemblyHandler.class, assemblyHandlerClassname);
+            ah = plugins.acquire(AssemblyHandler.class, assemblyHandlerClassname);
         } catch (Exception e) {
             throw new DocMakerException("Could not create TOC handler " + tocFile.getAbsolutePath(), e);
         }
+        ah.setBuildContext(buildContext);
         
-        lw.fine("Properties pre TOC parsing: " + props.toString());
+        if (manifest != null) {
+        	buildContext.addDependencyListener(manifest);
+        	buildContext.addOutputListener(manifest);
+        }
+        try {
+        	long start = System.currentTimeMillis();
+        	boolean alone = activeTocs.incrementAndGet() == 1;
+        	long startedBefore = startedTocs.incrementAndGet();
+        	long heapAtStart = usedHeap();
+        	long peakHeap;
+        	try {
+        		peakHeap = parseAndProcessFile(tocFile, ah, outputFilename);
+        		
+        		// The heap only shows the memory use of this TOC if no other TOC was started while it was processed
+        		alone &= startedTocs.get() == startedBefore;
+        	} finally {
+        		activeTocs.decrementAndGet();
+        	}
+        	
+        	if (manifest != null) {
+        		try {
+        			manifest.write(manifestFile);
+        		} catch (IOException e) {
+        			lw.log(Level.WARNING, "Could not write build manifest for " + tocFile.getName(), e);
+        		}
+        	}
+        	
+        	if (history != null) {
+        		if (fragmentBytes < 0)
+        			fragmentBytes = TocFragmentScanner.fragmentBytes(tocFile, baseURI, defaultExtension);
+        		history.record(tocFile.getName(), System.currentTimeMillis() - start, alone ? Math.max(0, peakHeap - heapAtStart) : -1, fragmentBytes);
+        	}
+        } finally {
+        	if (manifest != null) {
+        		buildContext.removeDependencyListener(manifest);
+        		buildContext.removeOutputListener(manifest);
+        	}
+        	
+        	// The report of a TOC is forgotten once it is written, and never written if the TOC fails
+        	if (buildContext.getBuildReport() != null)
+        		buildContext.getBuildReport().discard(outputFilename);
+        	
+        	// Release any resources, such as a chapter store, held by the handler
+        	if (ah instanceof Closeable) {
+        		try {
+        			((Closeable) ah).close();
+        		} catch (IOException e) {
+        			lw.log(Level.WARNING, "Could not close TOC handler for " + tocFile.getName(), e);
+        		}
+        	}
+        }
+    }
+    
+    /**
+     * @return the files all the TOCs depend on; the CSS files and the key files
+     */
+    private List<URI> getRunDependencies() {
+    	List<URI> dependencies = new LinkedList<URI>();
+    	if (cssFilePath != null) {
+    		for (String css : cssFilePath) {
+    			try {
+    				dependencies.add(baseURI.resolve(new URI(css)));
+    			} catch (URISyntaxException e) {
+    				lw.fine("Not recording CSS file " + css + " in the manifest: " + e.getMessage());
+    			}
+    		}
+    	}
+    	if (propFilenames != null) {
+    		for (String keys : propFilenames)
+    			dependencies.add(new File(keys).getAbsoluteFile().toURI());
+    	}
+    	
+    	return dependencies;
+    }
+    
+    /**
+     * Describe the options, and the versions of the classes, which affect the output of the TOCs.
+     * 
+     * @return a description to record in the {@link BuildManifest build manifests}
+     */
+    private String describeOptions() {
+    	StringBuilder sb = new StringBuilder();
+    	sb.append("docmaker=").append(describeClass(DocMakerMain.class)).append('\n');
+    	sb.append("assemblyHandler=").append(describeClass(assemblyHandlerClassname)).append('\n');
+    	for (Entry<String, MarkupProcessor> mp : new TreeMap<String, MarkupProcessor>(processors).entrySet())
+    		sb.append("markupProcessor.").append(mp.getKey()).append('=').append(describeClass(mp.getValue().getClass())).append('\n');
+    	for (String op : outputProcessors)
+    		sb.append("outputProcessor=").append(describeClass(op)).append('\n');
+    	sb.append("encoding=").append(actualEncoding).append('\n');
+    	sb.append("defaultExtension=").append(defaultExtension).append('\n');
+    	sb.append("baseURI=").append(baseURI).append('\n');
+    	sb.append("css=").append(cssFilePath).append('\n');
+    	sb.append("keys=").append(propFilenames).append('\n');
+    	sb.append("buildReport=").append(buildReport).append('\n');
+    	sb.append("keepInterimFile=").append(keepInterimFile).append('\n');
+    	sb.append("strictKeys=").append(strictKeys).append('\n');
+    	
+    	return sb.toString();
+    }
+    
+    private static String describeClass(String className) {
+    	try {
+    		return describeClass(Class.forName(className));
+    	} catch (ClassNotFoundException e) {
+    		return className;
+    	}
+    }
+    
+    /**
+     * @return the name of a class, and the time and size of the jar file or class file it was loaded from
+     */
+    private static String describeClass(Class<?> c) {
+    	String description = c.getName();
+    	try {
+    		File location = new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+    		if (location.isDirectory())
+    			location = new File(location, c.getName().replace('.', '/') + ".class");
+    		description += "@" + location.lastModified() + ":" + location.length();
+    	} catch (Exception e) {
+    		// No code source, for example a class loaded by the bootstrap class loader
+    	}
+    	
+    	return description;
+    }
+    
+    private static long usedHeap() {
+    	Runtime r = Runtime.getRuntime();
+    	return r.totalMemory() - r.freeMemory();
+    }
+    
+    /**
+     * @return the peak heap use sampled while the TOC was processed
+     */
+    private long parseAndProcessFile(File tocFile, AssemblyHandler ah, String outputFilename) throws DocMakerException {
+        if (lw.isLoggable(Level.FINE))
+        	lw.fine("Properties pre TOC parsing: " + props.toString());
         
         // Parse the TOC
         TOC t;
@@ -302,32 +1062,77 @@ public class DocMakerMain {
             FileInputStream fis = new FileInputStream(tocFile);
 
             lw.info("Parsing TOC: " + tocFile.getName());
-            t = ah.parse(fis, tocFile.getName(), defaultExtension, baseURI, processors, props, cssFilePath);
+            try {
+            	Timer timer = BuildReport.start(buildContext.getBuildReport(), outputFilename, BuildReport.PARSE, null, null);
+            	t = ah.parse(fis, tocFile.getName(), defaultExtension, baseURI, processors, props, cssFilePath);
+            	timer.stop(tocFile.length(), -1);
+            } finally {
+            	fis.close();
+            }
         } catch (Exception e) {
             throw new DocMakerException("Could not parse file " + tocFile.getAbsolutePath(), e);
         }
         
-        lw.fine("Properties post TOC parsing: " + t.getMetaData().toString());
+        if (lw.isLoggable(Level.FINE))
+        	lw.fine("Properties post TOC parsing: " + t.getMetaData().toString());
+        long peakHeap = usedHeap();
         
         // Process the output		
         for (String op : outputProcessors) {
         	// Instantiate the outputprocessor
         	OutputProcessor outputProcessor;
 	        try {
-	            outputProcessor = newInstance(OutputProcessor.class, op);
-	            lw.info("Using " + op + " as the " + OutputProcessor.class.getName());
+	            outputProcessor = plugins.acquire(OutputProcessor.class, op);
+	            lw.info("Using " + op + " as the " + OutputProcessor.class.getName() + " for " + tocFile.getName());
 	        } catch (Exception e) {
 	            throw new DocMakerException("Can not create OutputProcessor", e);
 	        }
 	
 	        try {
+	        	Timer timer = BuildReport.start(buildContext.getBuildReport(), outputFilename, BuildReport.OUTPUT, null, op);
 	            outputProcessor.process(outputDir, outputFilename, actualEncoding, t);
+	            timer.stop();
+	            peakHeap = Math.max(peakHeap, usedHeap());
 	        } catch (Exception e) {
 	            throw new DocMakerException("Could not post process file " + tocFile.getAbsolutePath(), e);
 	        }
         }
+        
+        if (buildContext.getBuildReport() != null) {
+        	try {
+        		for (File report : buildContext.getBuildReport().write(outputFilename, outputDir))
+        			buildContext.outputWritten(outputFilename, report);
+        	} catch (IOException e) {
+        		lw.log(Level.WARNING, "Could not write build report for " + tocFile.getName(), e);
+        	}
+        }
+        
+        return peakHeap;
     }
 
+    /**
+     * Load the property files used for key/value replacement.
+     * 
+     * @throws DocMakerException if a property file can not be loaded
+     */
+    void loadKeys() throws DocMakerException {
+        Properties keys = new Properties();
+        if (propFilenames != null) {
+        	try {
+        		for (String keyFilename : propFilenames) {
+        			lw.info("Loading propertyfile: " + keyFilename);
+        			InputStream in = new FileInputStream(keyFilename);
+        			keys.load(in);
+        			in.close();
+        		}
+        	} catch (IOException e) {
+        		throw new DocMakerException("Can not load key file", e);
+        	}
+        }
+        
+        props = keys;
+    }
+    
     /**
      * Checks if an encoding is defined in the POM. If it is and valid, returns. Otherwise sets the encoding variable
      * to the platform encoding.
@@ -361,16 +1166,4 @@ public class DocMakerMain {
                 + " actually) to read doc files, i.e. build is platform dependent!");
         return platformEncoding;
     }
-
-    /**
-     * Utility method to instantiate a class, given an interface.
-     *
-     * @param type the interface type to use as return type
-     * @param className the name of the class (implementing the interface) to instantiate
-     * @return an instance of the class, returned as the interface type
-     * @throws Exception
-     */
-    private static <K> K newInstance(final Class<K> type, final String className) throws Exception {
-    	return ((Class<K>) Class.forName(className)).newInstance();
-    }
 }
@@ -0,0 +1,307 @@
+package net.toften.docmaker;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.toften.docmaker.handler.DependencyListener;
+
+/**
+ * Watches the files the TOCs of a {@link DocMakerMain} run depend on, and rebuilds
+ * only the affected TOCs when a file changes.
+ * <p>
+ * The following files are watched:
+ * <ul>
+ * <li>The TOC files; a changed TOC file is rebuilt</li>
+ * <li>The fragments and property files found while the TOCs were parsed; the TOCs
+ * using a changed file are rebuilt</li>
+ * <li>The CSS files and key files; all TOCs are rebuilt</li>
+ * </ul>
+ *
+ * @author thomaslarsen
+ *
+ */
+class DocMakerWatcher implements DependencyListener {
+	private static final Logger lw = Logger.getLogger(DocMakerWatcher.class.getName());
+
+	/**
+	 * Time to wait for further changes before rebuilding, in milliseconds.
+	 * Editors often write a file in several steps.
+	 */
+	private static final long SETTLE_TIME = 200;
+
+	private final DocMakerMain docMaker;
+	private final String tocFilename;
+	private final String tocFileExt;
+	private final Path tocDir;
+	private final Set<Path> cssFiles = new HashSet<Path>();
+	private final Set<Path> keyFiles = new HashSet<Path>();
+
+	/** The TOCs, by filename without extension, depending on each file */
+	private final Map<Path, Set<String>> dependants = new HashMap<Path, Set<String>>();
+	/** The files each TOC, by filename without extension, depends on */
+	private final Map<String, Set<Path>> dependencies = new HashMap<String, Set<Path>>();
+
+	private final Set<Path> watchedDirs = new HashSet<Path>();
+
+	DocMakerWatcher(DocMakerMain docMaker, String tocFilename, String tocFileExt, URI baseURI, List<String> cssFilePaths, List<String> keyFilenames) throws DocMakerException {
+		this.docMaker = docMaker;
+		this.tocFilename = tocFilename;
+		this.tocFileExt = tocFileExt;
+
+		File tocFile = new File(tocFilename).getAbsoluteFile();
+		this.tocDir = toPath(tocFile.isDirectory() ? tocFile : tocFile.getParentFile());
+
+		if (cssFilePaths != null) {
+			for (String css : cssFilePaths) {
+				try {
+					URI cssURI = new URI(css);
+					if (!cssURI.isAbsolute())
+						cssURI = baseURI.resolve(cssURI);
+
+					if ("file".equals(cssURI.getScheme()))
+						cssFiles.add(toPath(new File(cssURI)));
+				} catch (URISyntaxException e) {
+					throw new DocMakerException("Can not watch CSS file " + css, e);
+				}
+			}
+		}
+
+		if (keyFilenames != null) {
+			for (String keys : keyFilenames) {
+				keyFiles.add(toPath(new File(keys)));
+			}
+		}
+	}
+
+	@Override
+	public synchronized void dependencyFound(String tocFileName, URI dependency) {
+		if (!"file".equals(dependency.getScheme()))
+			return;
+
+		Path file = toPath(new File(dependency));
+
+		Set<String> tocs = dependants.get(file);
+		if (tocs == null) {
+			tocs = new HashSet<String>();
+			dependants.put(file, tocs);
+		}
+		tocs.add(tocFileName);
+
+		Set<Path> files = dependencies.get(tocFileName);
+		if (files == null) {
+			files = new HashSet<Path>();
+			dependencies.put(tocFileName, files);
+		}
+		files.add(file);
+	}
+
+	/**
+	 * Forget the dependencies of a TOC, before it is rebuilt.
+	 * 
+	 * @return the files the TOC depended on, or <code>null</code> if none were known
+	 */
+	private synchronized Set<Path> forget(String tocFileName) {
+		Set<Path> files = dependencies.remove(tocFileName);
+		if (files != null) {
+			for (Path file : files) {
+				Set<String> tocs = dependants.get(file);
+				tocs.remove(tocFileName);
+				if (tocs.isEmpty())
+					dependants.remove(file);
+			}
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Restore the dependencies a TOC had before a rebuild, in addition to those found by the rebuild.
+	 */
+	private synchronized void restore(String tocFileName, Set<Path> files) {
+		for (Path file : files)
+			dependencyFound(tocFileName, file.toUri());
+	}
+	
+	/**
+	 * @return <code>true</code> if a TOC, by filename without extension, is rebuilt when a file changes
+	 */
+	synchronized boolean isDependant(Path file, String tocFileName) {
+		Set<String> tocs = dependants.get(toPath(file.toFile()));
+		return tocs != null && tocs.contains(tocFileName);
+	}
+
+	private synchronized Set<Path> getWatchDirs() {
+		Set<Path> dirs = new HashSet<Path>();
+		dirs.add(tocDir);
+		for (Path file : dependants.keySet())
+			dirs.add(file.getParent());
+		for (Path file : cssFiles)
+			dirs.add(file.getParent());
+		for (Path file : keyFiles)
+			dirs.add(file.getParent());
+
+		return dirs;
+	}
+
+	/**
+	 * Watch the files, and rebuild the affected TOCs when they change.
+	 * <p>
+	 * This method does not return until the thread is interrupted.
+	 *
+	 * @throws DocMakerException if the files can not be watched
+	 */
+	void watch() throws DocMakerException {
+		WatchService ws;
+		try {
+			ws = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			throw new DocMakerException("Can not create watch service", e);
+		}
+
+		try {
+			registerDirs(ws);
+			lw.info("Watching " + watchedDirs.size() + " directories for changes");
+
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = ws.take();
+
+				// Collect the changes until the files settle
+				Set<Path> changed = new HashSet<Path>();
+				boolean overflow = false;
+				while (key != null) {
+					Path dir = (Path) key.watchable();
+					for (WatchEvent<?> e : key.pollEvents()) {
+						if (e.kind() == OVERFLOW) {
+							overflow = true;
+						} else {
+							changed.add(dir.resolve((Path) e.context()));
+						}
+					}
+					if (!key.reset())
+						watchedDirs.remove(dir);
+
+					key = ws.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+				}
+
+				rebuild(changed, overflow);
+				registerDirs(ws);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				ws.close();
+			} catch (IOException e) {
+				lw.log(Level.WARNING, "Could not close watch service", e);
+			}
+		}
+
+		lw.info("Stopped watching for changes");
+	}
+
+	private void registerDirs(WatchService ws) {
+		for (Path dir : getWatchDirs()) {
+			if (!watchedDirs.contains(dir)) {
+				try {
+					dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+					watchedDirs.add(dir);
+					lw.fine("Watching " + dir);
+				} catch (IOException e) {
+					lw.log(Level.WARNING, "Can not watch directory " + dir, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the TOCs affected by a number of changed files.
+	 * <p>
+	 * If the rebuild fails, the TOCs keep the dependencies they had before the rebuild, as a TOC
+	 * failing early may not have found all of its files.
+	 * 
+	 * @param changed the changed files
+	 * @param overflow <code>true</code> if changes may have been lost, in which case all TOCs are rebuilt
+	 */
+	void rebuild(Set<Path> changed, boolean overflow) {
+		boolean all = overflow;
+		Set<String> affected = new HashSet<String>();
+
+		for (Path file : changed) {
+			if (keyFiles.contains(file)) {
+				lw.info("Key file changed: " + file);
+				try {
+					docMaker.loadKeys();
+				} catch (DocMakerException e) {
+					lw.log(Level.SEVERE, e.getMessage(), e);
+					return;
+				}
+				all = true;
+			} else if (cssFiles.contains(file)) {
+				lw.info("CSS file changed: " + file);
+				all = true;
+			} else if (file.getParent().equals(tocDir) && file.getFileName().toString().endsWith(tocFileExt)) {
+				String tocFileName = file.getFileName().toString().replaceFirst("[.][^.]+$", "");
+				lw.info("TOC file changed: " + file);
+				affected.add(tocFileName);
+			}
+
+			synchronized (this) {
+				Set<String> tocs = dependants.get(file);
+				if (tocs != null) {
+					lw.info("File changed: " + file + ", used by " + tocs.toString());
+					affected.addAll(tocs);
+				}
+			}
+		}
+
+		List<File> tocFiles = new LinkedList<File>();
+		Map<String, Set<Path>> previous = new HashMap<String, Set<Path>>();
+		for (File tocFile : docMaker.listTocFiles(tocFilename)) {
+			String tocFileName = tocFile.getName().replaceFirst("[.][^.]+$", "");
+			if (all || affected.contains(tocFileName)) {
+				Set<Path> files = forget(tocFileName);
+				if (files != null)
+					previous.put(tocFileName, files);
+				tocFiles.add(tocFile);
+			}
+		}
+
+		if (!tocFiles.isEmpty()) {
+			long start = System.currentTimeMillis();
+			try {
+				docMaker.processTocs(tocFiles);
+				lw.info("Rebuilt " + tocFiles.size() + " TOC files in " + (System.currentTimeMillis() - start) + " ms");
+			} catch (DocMakerException e) {
+				lw.log(Level.SEVERE, e.getMessage(), e);
+				
+				for (Map.Entry<String, Set<Path>> p : previous.entrySet())
+					restore(p.getKey(), p.getValue());
+			}
+		}
+	}
+
+	private static Path toPath(File f) {
+		return f.getAbsoluteFile().toPath().normalize();
+	}
+}
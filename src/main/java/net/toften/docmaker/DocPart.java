@@ -1,5 +1,6 @@
 package net.toften.docmaker;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -46,23 +47,26 @@ public enum DocPart {
 	private String name;
 	private String tag;
 	private boolean writeDiv;
-	private static Map<String, DocPart> lookup;
+	private final String preElement;
+	private final String postElement;
+	private static final Map<String, DocPart> lookup = new HashMap<String, DocPart>();
+	
+	static {
+		// Populated eagerly, as TOCs can be parsed concurrently
+		for (DocPart dp : DocPart.values()) {
+			lookup.put(dp.getName(), dp);
+		}
+	}
 
 	private DocPart(String name, String tag, boolean writeDiv) {
 		this.name = name;
 		this.tag = tag;
 		this.writeDiv = writeDiv;
+		this.preElement = concat(writeDiv ? "<div class=\"" + name + "\">" : null, tag, "");
+		this.postElement = concat(writeDiv ? "</div>" : null, tag, "/");
 	}
 
 	public static DocPart valueOfString(String qName) {
-		if (lookup == null) {
-			lookup = new HashMap<String, DocPart>();
-
-			for (DocPart dp : DocPart.values()) {
-				lookup.put(dp.getName(), dp);
-			}
-		}
-
 		return lookup.get(qName);
 	}
 
@@ -97,7 +101,19 @@ public enum DocPart {
 	 * @see #getName()
 	 */
 	public String preElement() {
-		return concat(writeDiv ? "<div class=\"" + getName() + "\">" : null, getTag(), "");
+		return preElement;
+	}
+
+	/**
+	 * Append the {@link #preElement() pre element} to the output, if there is one.
+	 * 
+	 * @param out the output
+	 * @throws IOException if the output can not be written
+	 */
+	public void appendPreElement(Appendable out) throws IOException {
+		String pre = preElement();
+		if (pre != null)
+			out.append(pre);
 	}
 
 	public String preElement(DocPartCallback c, Attributes a) {
@@ -132,8 +148,51 @@ public enum DocPart {
 		return null;
 	}
 
+	/**
+	 * Append the {@link #preElement(String[][], boolean) pre element} with attributes to the output,
+	 * without building it as a string first.
+	 * 
+	 * @param out the output
+	 * @param e the attributes of the <div> tag, as name and value pairs
+	 * @param includeClass <code>true</code> to include the element name as the class of the <div> tag
+	 * @throws IOException if the output can not be written
+	 */
+	public void appendPreElement(Appendable out, String[][] e, boolean includeClass) throws IOException {
+		if (!writeDiv)
+			return;
+		
+		if (e != null) {
+			out.append("<div");
+			if (includeClass)
+				out.append(" class=\"").append(getName()).append('"');
+			for (String[] ee : e) {
+				out.append(' ').append(ee[0]).append("=\"").append(ee[1]).append('"');
+			}
+			out.append('>');
+		} else if (getTag() == null) {
+			return;
+		}
+		
+		if (getTag() == null) {
+			out.append('\n');
+		} else {
+			out.append('<').append(getTag()).append(">\n");
+		}
+	}
+
 	public String postElement() {
-		return concat(writeDiv ? "</div>" : null, getTag(), "/");
+		return postElement;
+	}
+
+	/**
+	 * Append the {@link #postElement() post element} to the output, if there is one.
+	 * 
+	 * @param out the output
+	 * @throws IOException if the output can not be written
+	 */
+	public void appendPostElement(Appendable out) throws IOException {
+		if (postElement != null)
+			out.append(postElement);
 	}
 
 	public static String concat(String div, String tag, String postElement) {
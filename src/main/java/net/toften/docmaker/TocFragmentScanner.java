@@ -0,0 +1,93 @@
+package net.toften.docmaker;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import net.toften.docmaker.handler.AssemblyHandlerAdapter;
+import net.toften.docmaker.handler.Repo;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Finds the total size of the fragment files included by a TOC, without building the TOC.
+ * <p>
+ * The size is used to estimate the cost of building a TOC which has not been built before.
+ *
+ * @author thomaslarsen
+ *
+ * @see BuildHistory
+ */
+class TocFragmentScanner extends DefaultHandler {
+	private static final Logger lw = Logger.getLogger(TocFragmentScanner.class.getName());
+
+	private final URI baseURI;
+	private final String defaultExtension;
+	private final Map<String, URI> repos = new HashMap<String, URI>();
+	private long fragmentBytes;
+
+	private TocFragmentScanner(URI baseURI, String defaultExtension) {
+		this.baseURI = baseURI;
+		this.defaultExtension = defaultExtension;
+	}
+
+	/**
+	 * Find the total size of the fragment files of a TOC.
+	 * <p>
+	 * Only local fragment files are included. If the TOC can not be read, the size found
+	 * so far is returned.
+	 *
+	 * @param tocFile the TOC file
+	 * @param baseURI the base URI of relative repos
+	 * @param defaultExtension the extension of fragments specified without one
+	 * @return the total size of the fragment files, in bytes
+	 */
+	static long fragmentBytes(File tocFile, URI baseURI, String defaultExtension) {
+		TocFragmentScanner scanner = new TocFragmentScanner(baseURI, defaultExtension);
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(tocFile, scanner);
+		} catch (Exception e) {
+			lw.log(Level.FINE, "Could not scan the fragments of " + tocFile.getName(), e);
+		}
+
+		return scanner.fragmentBytes;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		DocPart dp = DocPart.valueOfString(qName);
+
+		if (dp == DocPart.REPO) {
+			String repoURIPath = attributes.getValue(AssemblyHandlerAdapter.REPO_URI);
+			if (repoURIPath != null) {
+				try {
+					repos.put(attributes.getValue(AssemblyHandlerAdapter.REPO_ID), Repo.resolveURI(baseURI, repoURIPath));
+				} catch (Exception e) {
+					lw.fine("Ignoring repo " + repoURIPath + ": " + e.getMessage());
+				}
+			}
+		} else if (dp == DocPart.CHAPTER) {
+			URI repoURI = repos.get(attributes.getValue(AssemblyHandlerAdapter.CHAPTER_REPO));
+			String fragment = attributes.getValue(AssemblyHandlerAdapter.CHAPTER_FRAGMENT);
+			if (repoURI == null || fragment == null)
+				return;
+
+			// Normalise the fragment file extension, as the chapter does
+			fragment = Repo.getFragmentFilename(fragment, defaultExtension);
+
+			try {
+				URI fragmentURI = Repo.getFragmentURI(repoURI, fragment);
+				if ("file".equals(fragmentURI.getScheme()))
+					fragmentBytes += new File(fragmentURI).length();
+			} catch (Exception e) {
+				lw.fine("Ignoring fragment " + fragment + ": " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package net.toften.docmaker.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.markup.Fingerprinted;
+import net.toften.docmaker.markup.MarkupProcessor;
+
+/**
+ * Utility methods to create the keys of the {@link ConversionCache}.
+ * 
+ * @author thomaslarsen
+ *
+ */
+public final class CacheKeys {
+	/**
+	 * Incremented when the format of the cached conversions changes, to invalidate
+	 * conversions cached by previous versions.
+	 */
+	private static final String CACHE_VERSION = "1";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private CacheKeys() {
+		// Utility class
+	}
+	
+	/**
+	 * Create the content-addressed key of a fragment conversion.
+	 * <p>
+	 * The key is the SHA-1 hash of the fragment bytes combined with everything else
+	 * that influences the output of the conversion.
+	 * 
+	 * @param fragment the raw bytes of the fragment file
+	 * @param mp the {@link MarkupProcessor} converting the fragment
+	 * @param config the chapter config, can be <code>null</code>
+	 * @param encoding the encoding of the fragment file
+	 * @param handler the handler of the TOC the fragment is converted for
+	 * @return the key, as a hex string
+	 * @see #fingerprint(MarkupProcessor, String, AssemblyHandler)
+	 */
+	public static String forFragment(byte[] fragment, MarkupProcessor mp, String config, String encoding, AssemblyHandler handler) {
+		MessageDigest md = sha1();
+		md.update(fragment);
+		
+		return finish(md, mp, config, encoding, handler);
+	}
+	
+	/**
+	 * Create the content-addressed key of the conversion of a fragment file.
+	 * <p>
+	 * The file is read through a small buffer, so its contents are never held in memory. The key is the same as the
+	 * {@link #forFragment(byte[], MarkupProcessor, String, String, AssemblyHandler) key} of the bytes of the file.
+	 * 
+	 * @param fragment the fragment file
+	 * @param mp the {@link MarkupProcessor} converting the fragment
+	 * @param config the chapter config, can be <code>null</code>
+	 * @param encoding the encoding of the fragment file
+	 * @param handler the handler of the TOC the fragment is converted for
+	 * @return the key, as a hex string
+	 * @throws IOException if the file can not be read
+	 */
+	public static String forFragment(File fragment, MarkupProcessor mp, String config, String encoding, AssemblyHandler handler) throws IOException {
+		MessageDigest md = sha1();
+		FileChannel channel = new FileInputStream(fragment).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		
+		return finish(md, mp, config, encoding, handler);
+	}
+	
+	private static String finish(MessageDigest md, MarkupProcessor mp, String config, String encoding, AssemblyHandler handler) {
+		md.update(UTF8.encode("\0" + CACHE_VERSION 
+				+ "\0" + fingerprint(mp, config, handler) 
+				+ "\0" + (config == null ? "" : config) 
+				+ "\0" + encoding));
+		
+		return toHex(md.digest());
+	}
+	
+	/**
+	 * Create the key of a fragment conversion, identifying the fragment by its location.
+	 * <p>
+	 * Unlike {@link #forFragment(byte[], MarkupProcessor, String, String, AssemblyHandler)} the key does not depend
+	 * on the contents of the fragment, so it can be looked up without reading the fragment file. It
+	 * must therefore only be used while the fragment files can be assumed not to change, such as
+	 * during a single build.
+	 * 
+	 * @param fragmentURI the URI of the fragment file
+	 * @param mp the {@link MarkupProcessor} converting the fragment
+	 * @param config the chapter config, can be <code>null</code>
+	 * @param encoding the encoding of the fragment file
+	 * @param handler the handler of the TOC the fragment is converted for
+	 * @return the key
+	 */
+	public static String forSource(URI fragmentURI, MarkupProcessor mp, String config, String encoding, AssemblyHandler handler) {
+		return fragmentURI.toString()
+				+ "\0" + fingerprint(mp, config, handler)
+				+ "\0" + (config == null ? "" : config)
+				+ "\0" + encoding;
+	}
+	
+	/**
+	 * Describe the settings, other than the fragment and the chapter config, which the output of a
+	 * {@link MarkupProcessor} depends on.
+	 * 
+	 * @param mp the processor
+	 * @param config the chapter config, can be <code>null</code>
+	 * @param handler the handler of the TOC the fragment is converted for
+	 * @return the {@link Fingerprinted#getFingerprint(String, AssemblyHandler) fingerprint} of the processor,
+	 * 	or its class name if it has none
+	 */
+	public static String fingerprint(MarkupProcessor mp, String config, AssemblyHandler handler) {
+		if (mp instanceof Fingerprinted)
+			return ((Fingerprinted) mp).getFingerprint(config, handler);
+		
+		return mp.getClass().getName();
+	}
+	
+	/**
+	 * @return a new SHA-1 {@link MessageDigest}
+	 */
+	public static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @param bytes the bytes to convert
+	 * @return the bytes as a lower case hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		
+		return new String(out);
+	}
+}
@@ -0,0 +1,34 @@
+package net.toften.docmaker.cache;
+
+import net.toften.docmaker.markup.MarkupProcessor;
+
+/**
+ * A cache of the HTML produced by a {@link MarkupProcessor} for a fragment.
+ * <p>
+ * Implementations must be thread-safe, as chapters can be converted concurrently.
+ * 
+ * @author thomaslarsen
+ *
+ */
+public interface ConversionCache {
+	/**
+	 * Look up the converted HTML of a fragment.
+	 * 
+	 * @param key the key of the fragment conversion
+	 * @return the cached HTML, or <code>null</code> if the conversion is not cached
+	 */
+	String get(String key);
+	
+	/**
+	 * Store the converted HTML of a fragment.
+	 * 
+	 * @param key the key of the fragment conversion
+	 * @param html the HTML produced by the {@link MarkupProcessor}; not cached if <code>null</code>
+	 */
+	void put(String key, String html);
+	
+	/**
+	 * Write the hit and miss counters of the cache to the log.
+	 */
+	void logStatistics();
+}
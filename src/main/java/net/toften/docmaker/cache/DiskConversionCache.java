@@ -0,0 +1,223 @@
+package net.toften.docmaker.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent {@link ConversionCache} storing each conversion as a file in a cache directory.
+ * <p>
+ * The cache is limited to a maximum total size. When the limit is exceeded, the least recently
+ * used conversions are evicted. The recency of a conversion is kept in the last modified time
+ * of its file, so it survives between runs.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class DiskConversionCache implements ConversionCache {
+	private static final Logger lw = Logger.getLogger(DiskConversionCache.class.getName());
+
+	private static final String EXTENSION = ".html";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File cacheDir;
+	private final long maxSize;
+
+	/** Size of the cached files, in least recently used order */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Open, or create, a cache in the given directory.
+	 *
+	 * @param cacheDir the directory of the cache
+	 * @param maxSize the maximum total size of the cached conversions, in bytes
+	 * @throws IOException if the cache directory can not be created
+	 */
+	public DiskConversionCache(File cacheDir, long maxSize) throws IOException {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Maximum cache size must be positive, was " + maxSize);
+
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+			throw new IOException("Can not create conversion cache directory " + cacheDir.getAbsolutePath());
+
+		// Load the existing entries, least recently used first
+		File[] files = cacheDir.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+
+		for (File f : files) {
+			if (f.isFile() && f.getName().endsWith(".tmp")) {
+				// Left behind by an interrupted run
+				f.delete();
+			} else if (f.isFile() && f.getName().endsWith(EXTENSION)) {
+				String key = f.getName().substring(0, f.getName().length() - EXTENSION.length());
+				entries.put(key, f.length());
+				totalSize += f.length();
+			}
+		}
+
+		lw.info("Opened conversion cache " + cacheDir.getAbsolutePath() + " with " + entries.size()
+				+ " entries (" + totalSize + " of " + maxSize + " bytes)");
+
+		synchronized (this) {
+			evict();
+		}
+	}
+
+	@Override
+	public String get(String key) {
+		File f = getFile(key);
+
+		synchronized (this) {
+			if (entries.get(key) == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+
+		try {
+			String html = read(f);
+			f.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+
+			return html;
+		} catch (IOException e) {
+			// Evicted in the meantime, or unreadable; treat as a miss
+			lw.log(Level.FINE, "Could not read cached conversion " + f.getAbsolutePath(), e);
+			synchronized (this) {
+				remove(key);
+			}
+			misses.incrementAndGet();
+
+			return null;
+		}
+	}
+
+	@Override
+	public void put(String key, String html) {
+		// The processor gave up, which may not happen the next time
+		if (html == null)
+			return;
+		
+		File f = getFile(key);
+		File tmp = new File(cacheDir, key + "." + Thread.currentThread().getId() + ".tmp");
+
+		try {
+			write(tmp, html);
+
+			synchronized (this) {
+				remove(key);
+				if (!tmp.renameTo(f)) {
+					tmp.delete();
+					return;
+				}
+
+				entries.put(key, f.length());
+				totalSize += f.length();
+				evict();
+			}
+		} catch (IOException e) {
+			lw.log(Level.WARNING, "Could not write cached conversion " + f.getAbsolutePath(), e);
+			tmp.delete();
+		}
+	}
+
+	@Override
+	public void logStatistics() {
+		long h = hits.get();
+		long m = misses.get();
+
+		synchronized (this) {
+			lw.info("Conversion cache " + cacheDir.getAbsolutePath() + ": "
+					+ h + " hits, " + m + " misses" + (h + m > 0 ? " (" + (100 * h / (h + m)) + "% hit rate)" : "")
+					+ ", " + evictions.get() + " evictions, "
+					+ entries.size() + " entries (" + totalSize + " of " + maxSize + " bytes)");
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDir, key + EXTENSION);
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache is within its size limit.
+	 * <p>
+	 * Must be called holding the lock of the cache.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+		while (totalSize > maxSize && i.hasNext()) {
+			Map.Entry<String, Long> e = i.next();
+			getFile(e.getKey()).delete();
+			totalSize -= e.getValue();
+			i.remove();
+			evictions.incrementAndGet();
+
+			lw.fine("Evicted conversion " + e.getKey() + " (" + e.getValue() + " bytes)");
+		}
+	}
+
+	/**
+	 * Must be called holding the lock of the cache.
+	 */
+	private void remove(String key) {
+		Long size = entries.remove(key);
+		if (size != null) {
+			totalSize -= size;
+			getFile(key).delete();
+		}
+	}
+
+	private static String read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			byte[] bytes = new byte[(int) f.length()];
+			int read = 0;
+			while (read < bytes.length) {
+				int n = is.read(bytes, read, bytes.length - read);
+				if (n < 0)
+					throw new IOException("Unexpected end of cached conversion " + f.getAbsolutePath());
+				read += n;
+			}
+
+			return new String(bytes, UTF8);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void write(File f, String html) throws IOException {
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(html.getBytes(UTF8));
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package net.toften.docmaker.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory {@link ConversionCache}, used to share the converted fragments between the
+ * TOCs built by a run.
+ * <p>
+ * The cache is limited to a maximum total length of the cached HTML. When the limit is exceeded,
+ * the least recently used conversions are evicted.
+ *
+ * @author thomaslarsen
+ *
+ * @see CacheKeys#forSource(java.net.URI, net.toften.docmaker.markup.MarkupProcessor, String, String, net.toften.docmaker.handler.AssemblyHandler)
+ */
+public class MemoryConversionCache implements ConversionCache {
+	private static final Logger lw = Logger.getLogger(MemoryConversionCache.class.getName());
+
+	private final long maxSize;
+
+	/** The cached HTML, in least recently used order */
+	private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+	private long totalSize;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param maxSize the maximum total length of the cached HTML, in characters
+	 */
+	public MemoryConversionCache(long maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Maximum cache size must be positive, was " + maxSize);
+
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public synchronized String get(String key) {
+		String html = entries.get(key);
+		if (html == null)
+			misses++;
+		else
+			hits++;
+
+		return html;
+	}
+
+	@Override
+	public synchronized void put(String key, String html) {
+		// The processor gave up, which may not happen the next time
+		if (html == null)
+			return;
+		
+		String previous = entries.remove(key);
+		if (previous != null)
+			totalSize -= previous.length();
+
+		// A conversion larger than the cache would evict everything else, and still not fit
+		if (html.length() > maxSize)
+			return;
+
+		entries.put(key, html);
+		totalSize += html.length();
+
+		Iterator<Map.Entry<String, String>> i = entries.entrySet().iterator();
+		while (totalSize > maxSize && i.hasNext()) {
+			Map.Entry<String, String> e = i.next();
+			totalSize -= e.getValue().length();
+			i.remove();
+			evictions++;
+
+			lw.fine("Evicted conversion " + e.getKey() + " (" + e.getValue().length() + " characters)");
+		}
+	}
+
+	/**
+	 * @return the total length of the cached HTML, in characters
+	 */
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	@Override
+	public synchronized void logStatistics() {
+		lw.info("Fragment cache: "
+				+ hits + " hits, " + misses + " misses" + (hits + misses > 0 ? " (" + (100 * hits / (hits + misses)) + "% hit rate)" : "")
+				+ ", " + evictions + " evictions, "
+				+ entries.size() + " entries (" + totalSize + " of " + maxSize + " characters)");
+	}
+}
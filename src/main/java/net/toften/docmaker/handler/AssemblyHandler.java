@@ -70,4 +70,18 @@ public interface AssemblyHandler {
 	 * @return the default fragment file extension
 	 */
 	String getDefaultExtension();
+	
+	/**
+	 * Set the {@link BuildContext} shared by all the handlers of the current run.
+	 * <p>
+	 * This must be called before the TOC is {@link #parse(InputStream, String, String, URI, Map, Properties, List) parsed}.
+	 * 
+	 * @param buildContext the run context
+	 */
+	void setBuildContext(BuildContext buildContext);
+	
+	/**
+	 * @return the {@link BuildContext} of the current run; never <code>null</code>
+	 */
+	BuildContext getBuildContext();
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.SAXParser;
@@ -15,7 +16,11 @@ import javax.xml.parsers.SAXParserFactory;
 
 import net.toften.docmaker.DocPart;
 import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.postprocessors.HtmlRewriter;
 import net.toften.docmaker.postprocessors.PostProcessor;
+import net.toften.docmaker.postprocessors.PropertyResolver;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.toc.AnchorIndex;
 import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.ChapterSection;
 import net.toften.docmaker.toc.Section;
@@ -53,6 +58,7 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 	public static final String CHAPTER_LEVEL = "level";
 	public static final String CHAPTER_REPO = "repo";
 	public static final String CHAPTER_FRAGMENT = "fragment";
+	public static final String CHAPTER_PASSTHROUGH = "passthrough";
 	
 	private static final Logger lw = Logger.getLogger(AssemblyHandlerAdapter.class.getName());
 	
@@ -69,12 +75,30 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 	private URI baseURI;
 	private Map<String, MarkupProcessor> markupProcessor;
 	private String defaultExtension;
+	private BuildContext buildContext = new BuildContext();
+	private AnchorIndex anchorIndex;
+	private PropertyResolver propertyResolver;
 	
 	@Override
 	public Properties getMetaData() {
 		return metaData;
 	}
 
+	@Override
+	public synchronized PropertyResolver getPropertyResolver() {
+		if (propertyResolver == null)
+			propertyResolver = new PropertyResolver(metaData, getBuildContext().isStrictKeys());
+		
+		return propertyResolver;
+	}
+	
+	/**
+	 * Discard the expanded values of the properties, after the metadata has changed.
+	 */
+	private synchronized void metaDataChanged() {
+		propertyResolver = null;
+	}
+
 	@Override
 	public Map<String, Map<String, String>> getHtmlMeta() {
 		return htmlMeta;
@@ -111,13 +135,14 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 			throw new IllegalArgumentException("The base URI " + baseURI.toString() + " is not absolute");
 		
 		lw.info("Parsing " + tocName);
-		lw.fine("Parameters\n"
-				+ "TOC InputStream: " + tocStream.toString() + "\n"
-				+ "Default extension: " + defaultExtension + "\n"
-				+ "Base URI: " + baseURI.toString() + "\n"
-				+ "Markup Processors: " + markupProcessor.toString() + "\n"
-				+ "Properties (key/values): " + (baseProperties == null ? "empty" : baseProperties.toString()) + "\n"
-				+ "CSS files: " + (cssFiles == null ? "empty" : cssFiles.toString()));
+		if (lw.isLoggable(Level.FINE))
+			lw.fine("Parameters\n"
+					+ "TOC InputStream: " + tocStream.toString() + "\n"
+					+ "Default extension: " + defaultExtension + "\n"
+					+ "Base URI: " + baseURI.toString() + "\n"
+					+ "Markup Processors: " + markupProcessor.toString() + "\n"
+					+ "Properties (key/values): " + (baseProperties == null ? "empty" : baseProperties.toString()) + "\n"
+					+ "CSS files: " + (cssFiles == null ? "empty" : cssFiles.toString()));
 		
 		// Initialise handler
 		htmlMeta = new HashMap<String, Map<String, String>>();
@@ -126,6 +151,7 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 
 		if (baseProperties != null)
 			this.metaData.putAll(baseProperties);
+		metaDataChanged();
 		this.baseURI = baseURI;
 		this.markupProcessor = markupProcessor;
 		this.defaultExtension = defaultExtension;
@@ -143,6 +169,32 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 	public String getDefaultExtension() {
 		return defaultExtension;
 	}
+	
+	@Override
+	public BuildContext getBuildContext() {
+		return buildContext;
+	}
+	
+	@Override
+	public void setBuildContext(BuildContext buildContext) {
+		if (buildContext == null)
+			throw new NullPointerException("Build context is null");
+		
+		this.buildContext = buildContext;
+	}
+
+	@Override
+	public BuildReport getBuildReport() {
+		return buildContext.getBuildReport();
+	}
+
+	@Override
+	public synchronized AnchorIndex getAnchorIndex() {
+		if (anchorIndex == null)
+			anchorIndex = new AnchorIndex(this);
+		
+		return anchorIndex;
+	}
 
 	@Override
 	public String getDocumentTitle() {
@@ -270,7 +322,7 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 		
 		lw.info("Adding PostProcessor: " + postProcessorClassname);
 		
-		postProcessors.add(pp);
+		HtmlRewriter.add(postProcessors, pp);
 	}
 
 	protected void handleRepoElement(Attributes attributes) throws Exception {
@@ -297,12 +349,15 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 				propFileURI = getBaseURI().resolve(propFileURI);
 			}
 			
+			getBuildContext().dependencyFound(getTocFileName(), propFileURI);
+			
 			// Load properties
 			InputStream is = propFileURI.toURL().openStream();
 			Properties fileProps = new Properties();
 			fileProps.load(is);
 			is.close();
 			metaData.putAll(fileProps);
+			metaDataChanged();
 		} else {
 			/*
 			 * A single property has been specified
@@ -316,6 +371,7 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 				throw new SAXException("Value for property " + key + " not specified");
 			
 			metaData.put(key, attributes.getValue(PROPERTY_VALUE));
+			metaDataChanged();
 		}
 	}
 
@@ -332,6 +388,7 @@ public abstract class AssemblyHandlerAdapter extends DefaultHandler implements
 	protected void handleHeaderElement(Attributes attributes) throws Exception {
 		documentTitle = attributes.getValue(HEADER_TITLE);
 		metaData.put(HEADER_TITLE, getDocumentTitle());
+		metaDataChanged();
 	}
 	
 	protected Map<String, Repo> getRepos() {
@@ -0,0 +1,276 @@
+package net.toften.docmaker.handler;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+import net.toften.docmaker.cache.ConversionCache;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.toc.Chapter;
+
+/**
+ * This class holds the settings and services that are shared by all the
+ * {@link AssemblyHandler}s created during a single run.
+ * <p>
+ * A handler that has not been given a context will use a default instance,
+ * which processes everything synchronously on the parsing thread.
+ * 
+ * @author thomaslarsen
+ *
+ * @see AssemblyHandler#setBuildContext(BuildContext)
+ */
+public class BuildContext {
+	private ExecutorService chapterExecutor;
+	private ExecutorService csvExecutor;
+	private ConversionCache conversionCache;
+	private ConversionCache fragmentCache;
+	private String encoding;
+	private final List<DependencyListener> dependencyListeners = new CopyOnWriteArrayList<DependencyListener>();
+	private final List<OutputListener> outputListeners = new CopyOnWriteArrayList<OutputListener>();
+	private int streamingWindow;
+	private long chapterStoreThreshold;
+	private BuildReport buildReport;
+	private boolean keepInterimFile;
+	private boolean strictKeys;
+
+	/**
+	 * Return the {@link ExecutorService} used to load and convert the fragments of
+	 * the {@link Chapter}s while the TOC is parsed.
+	 * 
+	 * @return the executor, or <code>null</code> if the chapters must be converted
+	 * 	synchronously by the parsing thread
+	 */
+	public ExecutorService getChapterExecutor() {
+		return chapterExecutor;
+	}
+
+	/**
+	 * @param chapterExecutor the executor to use for asynchronous chapter conversion;
+	 * 	<code>null</code> to convert the chapters synchronously
+	 * @see #getChapterExecutor()
+	 */
+	public void setChapterExecutor(ExecutorService chapterExecutor) {
+		this.chapterExecutor = chapterExecutor;
+	}
+
+	/**
+	 * Return the {@link ExecutorService} used to render the rows of CSV tables in parallel.
+	 * <p>
+	 * The tasks converting the chapters wait for the rows to be rendered, so this must not be
+	 * the {@link #getChapterExecutor() chapter executor}.
+	 * 
+	 * @return the executor, or <code>null</code> if the rows must be rendered by the thread
+	 * 	converting the chapter
+	 */
+	public ExecutorService getCsvExecutor() {
+		return csvExecutor;
+	}
+
+	/**
+	 * @param csvExecutor the executor to render the rows of CSV tables with;
+	 * 	<code>null</code> to render them by the thread converting the chapter
+	 * @see #getCsvExecutor()
+	 */
+	public void setCsvExecutor(ExecutorService csvExecutor) {
+		this.csvExecutor = csvExecutor;
+	}
+
+	/**
+	 * Return the cache of {@link MarkupProcessor} output.
+	 * 
+	 * @return the cache, or <code>null</code> if conversions are not cached
+	 */
+	public ConversionCache getConversionCache() {
+		return conversionCache;
+	}
+
+	/**
+	 * @param conversionCache the cache of fragment conversions; <code>null</code> to disable caching
+	 */
+	public void setConversionCache(ConversionCache conversionCache) {
+		this.conversionCache = conversionCache;
+	}
+	
+	/**
+	 * Return the in-memory cache of {@link MarkupProcessor} output, shared by the TOCs built together.
+	 * <p>
+	 * The cache is keyed by the location of the fragment rather than its contents, so it is looked up
+	 * before the fragment file is read, and before the {@link #getConversionCache() conversion cache}.
+	 * 
+	 * @return the cache, or <code>null</code> if conversions are not shared between TOCs
+	 */
+	public ConversionCache getFragmentCache() {
+		return fragmentCache;
+	}
+
+	/**
+	 * @param fragmentCache the cache of fragment conversions shared by the TOCs built together;
+	 * 	<code>null</code> to disable sharing
+	 * @see #getFragmentCache()
+	 */
+	public void setFragmentCache(ConversionCache fragmentCache) {
+		this.fragmentCache = fragmentCache;
+	}
+	
+	/**
+	 * @return the encoding of the fragment files, or <code>null</code> if it has not been specified
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @param encoding the encoding of the fragment files
+	 */
+	public void setEncoding(String encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * @param dependencyListener a listener to notify of the files the TOCs depend on
+	 */
+	public void addDependencyListener(DependencyListener dependencyListener) {
+		dependencyListeners.add(dependencyListener);
+	}
+
+	/**
+	 * @param dependencyListener the listener to stop notifying of the files the TOCs depend on
+	 */
+	public void removeDependencyListener(DependencyListener dependencyListener) {
+		dependencyListeners.remove(dependencyListener);
+	}
+
+	/**
+	 * @param outputListener a listener to notify of the output files written for the TOCs
+	 */
+	public void addOutputListener(OutputListener outputListener) {
+		outputListeners.add(outputListener);
+	}
+
+	/**
+	 * @param outputListener the listener to stop notifying of the output files written for the TOCs
+	 */
+	public void removeOutputListener(OutputListener outputListener) {
+		outputListeners.remove(outputListener);
+	}
+	
+	/**
+	 * Return the number of chapters that are held in memory while the chapters of a TOC are streamed.
+	 * <p>
+	 * When streaming, the chapters are converted and post-processed in TOC order after the TOC has
+	 * been parsed, and the HTML of each chapter is spooled to disk once it has been processed.
+	 * Only the chapters within the window are converted ahead of the chapter being processed.
+	 * 
+	 * @return the size of the window, or <code>0</code> if all the chapters are held in memory
+	 */
+	public int getStreamingWindow() {
+		return streamingWindow;
+	}
+
+	/**
+	 * @param streamingWindow the number of chapters held in memory while streaming; <code>0</code> to
+	 * 	hold all the chapters in memory
+	 * @see #getStreamingWindow()
+	 */
+	public void setStreamingWindow(int streamingWindow) {
+		this.streamingWindow = streamingWindow;
+	}
+	
+	/**
+	 * Return the total size of the chapter HTML of a TOC, in characters, above which the chapters are
+	 * moved out of the heap to a memory-mapped chapter store.
+	 * 
+	 * @return the threshold, or <code>0</code> if the chapters are always held in memory
+	 */
+	public long getChapterStoreThreshold() {
+		return chapterStoreThreshold;
+	}
+
+	/**
+	 * @param chapterStoreThreshold the size of the chapter HTML of a TOC, in characters, above which the
+	 * 	chapters are moved to a memory-mapped chapter store; <code>0</code> to always hold the chapters in memory
+	 */
+	public void setChapterStoreThreshold(long chapterStoreThreshold) {
+		this.chapterStoreThreshold = chapterStoreThreshold;
+	}
+	
+	/**
+	 * Return the report recording the time spent by each stage of the build.
+	 * 
+	 * @return the report, or <code>null</code> if the build is not timed
+	 */
+	public BuildReport getBuildReport() {
+		return buildReport;
+	}
+
+	/**
+	 * @param buildReport the report to record the stages of the build in; <code>null</code> to
+	 * 	not time the build
+	 */
+	public void setBuildReport(BuildReport buildReport) {
+		this.buildReport = buildReport;
+	}
+	
+	/**
+	 * Return whether the interim HTML file is written next to the output, rather than piped straight into
+	 * the parser. The file is not needed to render the output, but is useful when debugging it.
+	 * 
+	 * @return <code>true</code> if the interim file is written
+	 */
+	public boolean isKeepInterimFile() {
+		return keepInterimFile;
+	}
+
+	/**
+	 * @param keepInterimFile <code>true</code> to write the interim HTML file
+	 * @see #isKeepInterimFile()
+	 */
+	public void setKeepInterimFile(boolean keepInterimFile) {
+		this.keepInterimFile = keepInterimFile;
+	}
+	
+	/**
+	 * Return whether a key of a property which does not exist fails the build. Otherwise the key is
+	 * replaced by a message in the output.
+	 * 
+	 * @return <code>true</code> if an unresolved key fails the build
+	 * @see net.toften.docmaker.postprocessors.PropertyResolver
+	 */
+	public boolean isStrictKeys() {
+		return strictKeys;
+	}
+
+	/**
+	 * @param strictKeys <code>true</code> to fail the build on an unresolved key
+	 * @see #isStrictKeys()
+	 */
+	public void setStrictKeys(boolean strictKeys) {
+		this.strictKeys = strictKeys;
+	}
+	
+	/**
+	 * Notify the {@link #addDependencyListener(DependencyListener) dependency listeners}, if any, that a TOC depends on a file.
+	 * 
+	 * @param tocFileName the filename of the TOC, without extension
+	 * @param dependency the absolute {@link URI} of the file
+	 */
+	public void dependencyFound(String tocFileName, URI dependency) {
+		for (DependencyListener l : dependencyListeners)
+			l.dependencyFound(tocFileName, dependency);
+	}
+	
+	/**
+	 * Notify the {@link #addOutputListener(OutputListener) output listeners}, if any, that a file has been written
+	 * as the output of a TOC.
+	 * 
+	 * @param tocFileName the filename of the TOC, without extension
+	 * @param output the file written
+	 */
+	public void outputWritten(String tocFileName, File output) {
+		for (OutputListener l : outputListeners)
+			l.outputWritten(tocFileName, output);
+	}
+}
@@ -0,0 +1,22 @@
+package net.toften.docmaker.handler;
+
+import java.net.URI;
+
+/**
+ * Listener notified of the files a TOC depends on, as they are found while the TOC is parsed.
+ * <p>
+ * Implementations must be thread-safe, as TOCs can be parsed concurrently.
+ * 
+ * @author thomaslarsen
+ *
+ * @see BuildContext#addDependencyListener(DependencyListener)
+ */
+public interface DependencyListener {
+	/**
+	 * Called when a TOC is found to depend on a file, for example a fragment or a properties file.
+	 * 
+	 * @param tocFileName the {@link AssemblyHandler#getTocFileName() filename} of the TOC, without extension
+	 * @param dependency the absolute {@link URI} of the file
+	 */
+	void dependencyFound(String tocFileName, URI dependency);
+}
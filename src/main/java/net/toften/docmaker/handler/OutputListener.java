@@ -0,0 +1,23 @@
+package net.toften.docmaker.handler;
+
+import java.io.File;
+
+/**
+ * Listener notified of the files written as the output of a TOC.
+ * <p>
+ * Implementations must be thread-safe, as TOCs can be built concurrently.
+ * 
+ * @author thomaslarsen
+ *
+ * @see BuildContext#addOutputListener(OutputListener)
+ */
+public interface OutputListener {
+	/**
+	 * Called when a file has been written as the output of a TOC, for example by an
+	 * {@link net.toften.docmaker.output.OutputProcessor}.
+	 * 
+	 * @param tocFileName the {@link AssemblyHandler#getTocFileName() filename} of the TOC, without extension
+	 * @param output the file written
+	 */
+	void outputWritten(String tocFileName, File output);
+}
@@ -33,7 +33,22 @@ public class Repo {
 	 */
 	public Repo(String id, URI baseURI, String repoURIPath) throws DocMakerException, URISyntaxException {
 		this.id = id;
-		this.repoURI = new URI(repoURIPath);
+		this.repoURI = resolveURI(baseURI, repoURIPath);
+		
+		lw.info("Added repo: " + id + " with (full) URI: " + repoURI.toString());
+	}
+	
+	/**
+	 * Resolve the path of a repo, as it is specified in the repo attribute, to its absolute URI.
+	 * 
+	 * @param baseURI the base URI the path is resolved against, if it is relative
+	 * @param repoURIPath the path to the repo. Can be absolute or releative
+	 * @return the absolute URI of the repo
+	 * @throws URISyntaxException
+	 * @throws DocMakerException if the URI of the repo is not absolute
+	 */
+	public static URI resolveURI(URI baseURI, String repoURIPath) throws DocMakerException, URISyntaxException {
+		URI repoURI = new URI(repoURIPath);
 		
 		// If the path to the repo is not absolute, append it to the baseURI
 		if (!repoURI.isAbsolute()) {
@@ -48,7 +63,29 @@ public class Repo {
 			throw new DocMakerException("Repo URI " + repoURI.toString() + " is not absolute, given " + repoURIPath);
 		}
 		
-		lw.info("Added repo: " + id + " with (full) URI: " + repoURI.toString());
+		return repoURI;
+	}
+	
+	/**
+	 * Get the filename of a fragment, as it is specified in the fragment attribute of a chapter.
+	 * 
+	 * @param fragmentName the relative path of the fragment, with or without extension
+	 * @param defaultExtension the extension of a fragment specified without one
+	 * @return the relative path of the fragment file, with the default extension added if it has none
+	 */
+	public static String getFragmentFilename(String fragmentName, String defaultExtension) {
+		return fragmentName.lastIndexOf('.') > 0 ? fragmentName : fragmentName + "." + defaultExtension;
+	}
+	
+	/**
+	 * Get the {@link URI} of a fragment in a repo.
+	 * 
+	 * @param repoURI the absolute URI of the repo
+	 * @param fragmentFilename the relative path of the fragment file
+	 * @return the normalised URI of the fragment file
+	 */
+	public static URI getFragmentURI(URI repoURI, String fragmentFilename) {
+		return repoURI.resolve(fragmentFilename).normalize();
 	}
 
 	public String getId() {
@@ -67,7 +104,7 @@ public class Repo {
 	 * @throws URISyntaxException
 	 */
 	public URI getFragmentURI(String fragmentName) throws URISyntaxException {
-		return getURI().resolve(fragmentName).normalize();
+		return getFragmentURI(getURI(), fragmentName);
 	}
 	
 	/**
@@ -1,5 +1,7 @@
 package net.toften.docmaker.handler.standard;
 
+import java.io.IOException;
+
 import net.toften.docmaker.toc.Section;
 import net.toften.docmaker.toc.TOC;
 
@@ -35,6 +37,17 @@ public abstract class BaseSection implements Section {
 		return "</div>" + "\n";
 	}
 	
+	public void appendDivOpenTag(TOC t, Appendable out) throws IOException {
+		out.append("<div class=\"").append(getDivClassName());
+		if (isRotated())
+			out.append(" rotate");
+		out.append("\" id=\"").append(getIdAttr(t)).append("\" title=\"").append(getName()).append("\">\n");
+	}
+	
+	public void appendDivCloseTag(Appendable out) throws IOException {
+		out.append("</div>\n");
+	}
+	
 	public String getIdAttr(TOC t) {
 		return (t.getTocFileName() + "-" + getName()).trim().toLowerCase().replaceAll("[ _]",  "-").replaceAll("[^\\dA-Za-z\\-]", "");
 	}
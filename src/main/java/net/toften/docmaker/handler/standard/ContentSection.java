@@ -26,6 +26,15 @@ public class ContentSection extends MetaSection implements ChapterSection {
 		chapters.add(new FragmentChapter(this, fragmentName, config, handler, repo, chapterLevelOffset, isRotated));
 	}
 	
+	/**
+	 * Add a chapter with a fragment which is already in the interim format, and is included as it is.
+	 * 
+	 * @see PassthroughFragmentChapter
+	 */
+	public void addPassthroughChapter(String fragmentName, AssemblyHandler handler, Repo repo, int chapterLevelOffset, boolean isRotated) {
+		chapters.add(new PassthroughFragmentChapter(this, fragmentName, handler, repo, chapterLevelOffset, isRotated));
+	}
+	
 	public List<Chapter> getChapters() {
 		return chapters;
 	}
@@ -1,16 +1,33 @@
 package net.toften.docmaker.handler.standard;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import net.toften.docmaker.DocPart;
+import net.toften.docmaker.cache.CacheKeys;
+import net.toften.docmaker.cache.ConversionCache;
 import net.toften.docmaker.handler.AssemblyHandler;
 import net.toften.docmaker.handler.Repo;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.postprocessors.HtmlRewriter;
 import net.toften.docmaker.postprocessors.PostProcessor;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.report.BuildReport.Timer;
+import net.toften.docmaker.store.ChapterStore;
 import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.Heading;
 import net.toften.docmaker.toc.TOC;
 
 public class FragmentChapter extends BaseSection implements Chapter {
@@ -21,6 +38,11 @@ public class FragmentChapter extends BaseSection implements Chapter {
 	private final Repo repo;
 	private final int chapterLevelOffset;
 	private String fragmentAsHtml;
+	private Callable<String> deferredFragmentAsHtml;
+	private Future<String> pendingFragmentAsHtml;
+	private ChapterStore store;
+	private long storeHandle;
+	private List<Heading> headings;
 	private String fragmentFilename;
 
 	public FragmentChapter(ContentSection section, String name, String config, AssemblyHandler handler, Repo repo, int chapterLevelOffset, boolean isRotated) throws Exception {
@@ -40,14 +62,8 @@ public class FragmentChapter extends BaseSection implements Chapter {
 		this.chapterLevelOffset = chapterLevelOffset;
 		
 		// Normalise the fragment file extension
-		fragmentFilename = name;
-		String extension = handler.getDefaultExtension();
-		int i = name.lastIndexOf('.');
-		if (i > 0) {
-		    extension = name.substring(i + 1);
-		} else {
-			fragmentFilename += "." + extension;
-		}
+		fragmentFilename = Repo.getFragmentFilename(name, handler.getDefaultExtension());
+		String extension = fragmentFilename.substring(fragmentFilename.lastIndexOf('.') + 1);
 		
 		lw.fine("Chapter " + name + " has been initialised\n"
 				+ "File name: " + fragmentFilename + "\n"
@@ -57,10 +73,169 @@ public class FragmentChapter extends BaseSection implements Chapter {
 				+ "Effective level: " + calcEffectiveLevel() + "\n"
 				+ "Rotated: " + isRotated);
 		
-		// Load and process the fragment
+		final MarkupProcessor mp = handler.getMarkupProcessor(extension);
+		if (mp == null)
+			throw new IllegalArgumentException("No markup processor for extension " + extension + " of chapter " + name);
+		
+		final String chapterConfig = config;
+		final AssemblyHandler chapterHandler = handler;
+		deferredFragmentAsHtml = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return loadFragment(mp, chapterConfig, chapterHandler);
+			}
+		};
+		
+		// Load and process the fragment, either now, by the build context executor or when streamed
+		if (handler.getBuildContext().getStreamingWindow() == 0)
+			startFragment(handler.getBuildContext().getChapterExecutor());
+	}
+	
+	/**
+	 * Start loading and converting the fragment of the chapter, if it has not already been started.
+	 * 
+	 * @param executor the executor to convert the fragment with; <code>null</code> to convert it
+	 * 	synchronously
+	 * @throws Exception the exception thrown while the fragment was loaded or converted synchronously
+	 */
+	public synchronized void startFragment(ExecutorService executor) throws Exception {
+		if (deferredFragmentAsHtml != null) {
+			Callable<String> loader = deferredFragmentAsHtml;
+			deferredFragmentAsHtml = null;
+			
+			if (executor == null)
+				fragmentAsHtml = loader.call();
+			else
+				pendingFragmentAsHtml = executor.submit(loader);
+		}
+	}
+	
+	private String loadFragment(MarkupProcessor mp, String config, AssemblyHandler handler) throws IOException, URISyntaxException {
+		// Fragments shared with a TOC built earlier are only converted once
+		ConversionCache fragmentCache = handler.getBuildContext().getFragmentCache();
+		if (fragmentCache == null)
+			return convertFragment(mp, config, handler);
+		
+		Timer timer = BuildReport.start(handler.getBuildContext().getBuildReport(), handler.getTocFileName(), BuildReport.CONVERT, getName(), "fragment cache");
+		String key = CacheKeys.forSource(getFragmentURI(), mp, config, handler.getBuildContext().getEncoding(), handler);
+		String html = fragmentCache.get(key);
+		if (html == null) {
+			html = convertFragment(mp, config, handler);
+			fragmentCache.put(key, html);
+		} else {
+			lw.fine("Chapter " + getName() + " found in fragment cache");
+			timer.stop(null, html);
+		}
+		
+		return html;
+	}
+	
+	private String convertFragment(MarkupProcessor mp, String config, AssemblyHandler handler) throws IOException, URISyntaxException {
+		URI fragmentURI = getFragmentURI();
+		if ("file".equals(fragmentURI.getScheme()))
+			return convertFragment(new File(fragmentURI), mp, config, handler);
+		
+		BuildReport report = handler.getBuildContext().getBuildReport();
+		
+		Timer timer = BuildReport.start(report, handler.getTocFileName(), BuildReport.FETCH, getName(), null);
+		byte[] fragment;
 		InputStream fragmentIs = getRepo().getFragmentInputStream(fragmentFilename);
-		fragmentAsHtml = handler.getMarkupProcessor(extension).process(fragmentIs, config, handler);
-		fragmentIs.close();
+		try {
+			fragment = readFully(fragmentIs);
+		} finally {
+			fragmentIs.close();
+		}
+		timer.stop(fragment.length, fragment.length);
+		
+		timer = BuildReport.start(report, handler.getTocFileName(), BuildReport.CONVERT, getName(), mp.getClass().getName());
+		ConversionCache cache = handler.getBuildContext().getConversionCache();
+		if (cache == null) {
+			String html = mp.process(new ByteArrayInputStream(fragment), config, handler);
+			timer.stop(null, html);
+			
+			return html;
+		}
+		
+		// Only convert the fragment if this exact conversion has not been cached
+		String key = CacheKeys.forFragment(fragment, mp, config, handler.getBuildContext().getEncoding(), handler);
+		String html = cache.get(key);
+		if (html == null) {
+			html = mp.process(new ByteArrayInputStream(fragment), config, handler);
+			cache.put(key, html);
+		} else {
+			lw.fine("Chapter " + getName() + " found in conversion cache: " + key);
+		}
+		timer.stop(null, html);
+		
+		return html;
+	}
+	
+	/**
+	 * Convert a local fragment file. The file is handed to the {@link MarkupProcessor}, which reads it in one go,
+	 * memory-mapping large files, so the fragment is not copied before it is converted.
+	 * <p>
+	 * If the conversions are cached, the file is first read to find the key of its conversion; the reading is
+	 * reported as the {@link BuildReport#FETCH fetch} of the fragment. Otherwise the file is read while it is converted.
+	 */
+	private String convertFragment(File fragmentFile, MarkupProcessor mp, String config, AssemblyHandler handler) throws IOException {
+		BuildReport report = handler.getBuildContext().getBuildReport();
+		ConversionCache cache = handler.getBuildContext().getConversionCache();
+		
+		String key = null;
+		if (cache != null) {
+			Timer timer = BuildReport.start(report, handler.getTocFileName(), BuildReport.FETCH, getName(), null);
+			key = CacheKeys.forFragment(fragmentFile, mp, config, handler.getBuildContext().getEncoding(), handler);
+			timer.stop(fragmentFile.length(), fragmentFile.length());
+		}
+		
+		Timer timer = BuildReport.start(report, handler.getTocFileName(), BuildReport.CONVERT, getName(), mp.getClass().getName());
+		String html = key == null ? null : cache.get(key);
+		if (html == null) {
+			html = mp.process(fragmentFile, config, handler);
+			if (key != null)
+				cache.put(key, html);
+		} else {
+			lw.fine("Chapter " + getName() + " found in conversion cache: " + key);
+		}
+		timer.stop(null, html);
+		
+		return html;
+	}
+	
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Wait for the fragment of the chapter to be loaded and converted.
+	 * <p>
+	 * If the chapter was converted while the TOC was parsed, this method returns immediately.
+	 * If the conversion has not been {@link #startFragment(ExecutorService) started}, the fragment is
+	 * converted by the calling thread.
+	 * 
+	 * @throws Exception the exception thrown while the fragment was loaded or converted
+	 */
+	public synchronized void awaitFragment() throws Exception {
+		startFragment(null);
+		
+		if (pendingFragmentAsHtml != null) {
+			try {
+				fragmentAsHtml = pendingFragmentAsHtml.get();
+				pendingFragmentAsHtml = null;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				
+				throw e;
+			}
+		}
 	}
 		
 	public int calcEffectiveLevel() {
@@ -76,7 +251,63 @@ public class FragmentChapter extends BaseSection implements Chapter {
 	}
 	
 	public String getAsHtml(TOC t) {
-		return fragmentAsHtml;
+		try {
+			awaitFragment();
+		} catch (Exception e) {
+			throw new IllegalStateException("Chapter " + getName() + " could not be converted", e);
+		}
+		
+		synchronized (this) {
+			if (store == null)
+				return fragmentAsHtml;
+			
+			try {
+				return store.get(storeHandle);
+			} catch (IOException e) {
+				throw new IllegalStateException("Chapter " + getName() + " could not be read from the chapter store", e);
+			}
+		}
+	}
+	
+	/**
+	 * @param html the post processed HTML of the chapter
+	 * @param outline the headers recorded while the HTML was written, or <code>null</code> if they were not recorded
+	 */
+	private synchronized void setAsHtml(String html, List<Heading> outline) {
+		// Index the headers while the HTML is in memory, unless they were recorded by the last pass
+		headings = outline != null ? outline : Heading.scan(html);
+		
+		if (store == null) {
+			fragmentAsHtml = html;
+		} else {
+			try {
+				storeHandle = store.put(html);
+			} catch (IOException e) {
+				throw new IllegalStateException("Chapter " + getName() + " could not be written to the chapter store", e);
+			}
+		}
+	}
+	
+	/**
+	 * Move the HTML of the chapter to a {@link ChapterStore}, so it is no longer held in memory.
+	 * 
+	 * @param store the store to keep the HTML in
+	 * @throws IOException if the HTML can not be stored
+	 */
+	public synchronized void moveTo(ChapterStore store) throws IOException {
+		String html = getAsHtml(null);
+		
+		this.storeHandle = store.put(html);
+		this.store = store;
+		this.fragmentAsHtml = null;
+	}
+	
+	@Override
+	public synchronized List<Heading> getHeadings(TOC t) {
+		if (headings == null)
+			headings = Heading.scan(getAsHtml(t));
+		
+		return headings;
 	}
 	
 	public Repo getRepo() {
@@ -84,7 +315,7 @@ public class FragmentChapter extends BaseSection implements Chapter {
 	}
 	
 	public URI getFragmentURI() throws URISyntaxException {
-		return getRepo().getFragmentURI(getName());
+		return getRepo().getFragmentURI(fragmentFilename);
 	}
 	
 	@Override
@@ -101,16 +332,29 @@ public class FragmentChapter extends BaseSection implements Chapter {
 	public String runPostProcessors(List<PostProcessor> postProcessors, TOC t, boolean apply) {
 		String htmlFragment = getAsHtml(t);
 		
+		// The headers recorded by the last pass, if it was an HtmlRewriter
+		List<Heading> outline = null;
+		
 		// Run postprocessors
 		for (PostProcessor pp : postProcessors) {
-			StringBuffer out = new StringBuffer();
-			pp.processFragment(this, htmlFragment, out, t);
+			// The rewrites fused into an HtmlRewriter are timed together, and named by the rewriter
+			Timer timer = BuildReport.start(t.getBuildReport(), t.getTocFileName(), BuildReport.POST_PROCESS, getName(), pp instanceof HtmlRewriter ? pp.toString() : pp.getClass().getName());
+			StringBuffer out = new StringBuffer(htmlFragment.length() + htmlFragment.length() / 8);
+			if (pp instanceof HtmlRewriter) {
+				outline = new ArrayList<Heading>();
+				((HtmlRewriter) pp).processFragment(this, htmlFragment, out, t, outline);
+			} else {
+				outline = null;
+				pp.processFragment(this, htmlFragment, out, t);
+			}
 			
+			String in = htmlFragment;
 			htmlFragment = out.toString();
+			timer.stop(in, htmlFragment);
 		}
 		
 		if (apply)
-			fragmentAsHtml = htmlFragment;
+			setAsHtml(htmlFragment, outline);
 
 		return htmlFragment;
 	}
@@ -1,5 +1,7 @@
 package net.toften.docmaker.handler.standard;
 
+import java.io.IOException;
+
 import net.toften.docmaker.toc.TOC;
 
 import org.xml.sax.Attributes;
@@ -20,6 +22,14 @@ public class HeaderSection extends PseudoSection {
 		return null;
 	}
 	
+	@Override
+	public void appendDivOpenTag(TOC t, Appendable out) throws IOException {
+	}
+	
+	@Override
+	public void appendDivCloseTag(Appendable out) throws IOException {
+	}
+	
 	@Override
 	protected String getDivClassName() {
 		return "header-section";
@@ -0,0 +1,162 @@
+package net.toften.docmaker.handler.standard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.toften.docmaker.DocPart;
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.Repo;
+import net.toften.docmaker.postprocessors.PostProcessor;
+import net.toften.docmaker.toc.Heading;
+import net.toften.docmaker.toc.PassthroughChapter;
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * A {@link PassthroughChapter} of a {@link ContentSection}, included by a chapter element with the
+ * {@link net.toften.docmaker.handler.AssemblyHandlerAdapter#CHAPTER_PASSTHROUGH passthrough} attribute set.
+ * <p>
+ * The HTML of the chapter is never held by the chapter; it is read from the fragment whenever it is needed.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class PassthroughFragmentChapter extends BaseSection implements PassthroughChapter {
+	private static final Logger lw = Logger.getLogger(PassthroughFragmentChapter.class.getName());
+
+	private final ContentSection section;
+	private final Repo repo;
+	private final int chapterLevelOffset;
+	private final String fragmentFilename;
+	private final Charset encoding;
+	private List<Heading> headings;
+
+	public PassthroughFragmentChapter(ContentSection section, String name, AssemblyHandler handler, Repo repo, int chapterLevelOffset, boolean isRotated) {
+		super(name, isRotated);
+
+		if (section == null)
+			throw new NullPointerException("Parent section for chapter " + name + " is null");
+
+		if (repo == null)
+			throw new NullPointerException("Repo for chapter " + name + " is null");
+
+		this.section = section;
+		this.repo = repo;
+		this.chapterLevelOffset = chapterLevelOffset;
+		this.fragmentFilename = Repo.getFragmentFilename(name, handler.getDefaultExtension());
+
+		String encodingString = handler.getBuildContext().getEncoding();
+		this.encoding = encodingString == null ? Charset.defaultCharset() : Charset.forName(encodingString);
+
+		lw.fine("Passthrough chapter " + name + " has been initialised\n"
+				+ "File name: " + fragmentFilename + "\n"
+				+ "Parent: " + section.getName() + "\n"
+				+ "Repo: " + repo.getId());
+	}
+
+	public int calcEffectiveLevel() {
+		return getChapterLevelOffset() + getSection().getSectionLevel() - FragmentChapter.EFFECTIVE_LEVEL_ADJUSTMENT;
+	}
+
+	public int getChapterLevelOffset() {
+		return chapterLevelOffset;
+	}
+
+	public ContentSection getSection() {
+		return section;
+	}
+
+	/**
+	 * Read the HTML of the chapter from the fragment.
+	 */
+	public String getAsHtml(TOC t) {
+		try {
+			InputStream is = getRepo().getFragmentInputStream(fragmentFilename);
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = is.read(buffer)) >= 0) {
+					out.write(buffer, 0, n);
+				}
+
+				return new String(out.toByteArray(), encoding);
+			} finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Chapter " + getName() + " could not be read", e);
+		}
+	}
+
+	/**
+	 * The {@link PostProcessor}s are not run over a passthrough chapter.
+	 *
+	 * @return the HTML of the chapter, as it is
+	 */
+	@Override
+	public String runPostProcessors(List<PostProcessor> postProcessors, TOC t, boolean apply) {
+		return getAsHtml(t);
+	}
+
+	/**
+	 * As the HTML of a passthrough chapter is not changed, no ids are injected into its headers. Only the headers
+	 * which already have an id can be linked to, so only those are returned.
+	 * <p>
+	 * The level of each header is adjusted by the {@link #calcEffectiveLevel() effective level} of the chapter, as
+	 * the {@link net.toften.docmaker.postprocessors.HeaderIncrementPostProcessor} does for a {@link FragmentChapter}.
+	 */
+	@Override
+	public synchronized List<Heading> getHeadings(TOC t) {
+		if (headings == null) {
+			headings = new ArrayList<Heading>();
+			for (Heading h : Heading.scan(getAsHtml(t))) {
+				if (h.getId() != null)
+					headings.add(new Heading(h.getLevel() + calcEffectiveLevel(), h.getId(), h.getText()));
+			}
+		}
+
+		return headings;
+	}
+
+	@Override
+	public File getFragmentFile() {
+		try {
+			URI uri = getFragmentURI();
+
+			return "file".equals(uri.getScheme()) ? new File(uri) : null;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public Charset getEncoding() {
+		return encoding;
+	}
+
+	public Repo getRepo() {
+		return repo;
+	}
+
+	public URI getFragmentURI() throws URISyntaxException {
+		return getRepo().getFragmentURI(fragmentFilename);
+	}
+
+	@Override
+	public String getIdAttr(TOC t) {
+		return (getSection().getIdAttr(t) + "-" + getName()).trim().toLowerCase().replaceAll("[ _]",  "-").replaceAll("[^\\dA-Za-z\\-]", "");
+	}
+
+	@Override
+	public DocPart getDocPart() {
+		return DocPart.CHAPTER;
+	}
+}
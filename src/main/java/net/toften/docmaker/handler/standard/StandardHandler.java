@@ -1,15 +1,31 @@
 package net.toften.docmaker.handler.standard;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
 
+import net.toften.docmaker.DocPart;
 import net.toften.docmaker.handler.AssemblyHandler;
 import net.toften.docmaker.handler.AssemblyHandlerAdapter;
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.handler.Repo;
+import net.toften.docmaker.postprocessors.HtmlRewriter;
+import net.toften.docmaker.store.ChapterStore;
+import net.toften.docmaker.store.MappedChapterStore;
+import net.toften.docmaker.store.SpoolChapterStore;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.ChapterSection;
 import net.toften.docmaker.toc.GeneratedSection;
+import net.toften.docmaker.toc.PassthroughChapter;
 import net.toften.docmaker.toc.Section;
 import net.toften.docmaker.toc.TOC;
 
 import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
 
 /**
  * This is the standard implementation of the {@link AssemblyHandler}.
@@ -23,32 +39,156 @@ import org.xml.sax.Attributes;
  * <li>{@link net.toften.docmaker.postprocessors.AdjustImageHrefPostProcessor}</li>
  * <li>{@link net.toften.docmaker.postprocessors.ApplyKeyValue}</li>
  * </ul>
+ * These are all run in a single pass over each chapter by an {@link HtmlRewriter}. They are not run over
+ * {@link PassthroughFragmentChapter passthrough chapters}, which are included as they are.
+ * <p>
+ * If the {@link BuildContext} provides a {@link BuildContext#getChapterExecutor() chapter executor}, the
+ * chapters are converted asynchronously while the TOC is parsed. The postprocessors are run over each
+ * chapter, in the order of the chapters, once it has been converted.
+ * <p>
+ * If the {@link BuildContext} specifies a {@link BuildContext#getStreamingWindow() streaming window}, the
+ * chapters are instead converted and post-processed in TOC order once the TOC has been parsed. Each chapter
+ * is moved to a {@link ChapterStore} as soon as it has been processed, so only the chapters within the window
+ * are held in memory. Without a streaming window, the chapters are moved to a ChapterStore once their
+ * total size exceeds the {@link BuildContext#getChapterStoreThreshold() chapter store threshold}.
+ * <p>
+ * The handler must be {@link #close() closed} when the TOC has been written.
  * 
  * @author thomaslarsen
  *
  */
-public class StandardHandler extends AssemblyHandlerAdapter implements TOC, AssemblyHandler {
+public class StandardHandler extends AssemblyHandlerAdapter implements TOC, AssemblyHandler, Closeable {
+	private static final Logger lw = Logger.getLogger(StandardHandler.class.getName());
+
 	private List<Section> sections = new LinkedList<Section>();
 	private List<GeneratedSection> headerSections = new LinkedList<GeneratedSection>();
+	private ChapterStore chapterStore;
 
 	public StandardHandler() {
 		super();
 		
-		getPostProcessors().add(new net.toften.docmaker.postprocessors.HeaderIncrementPostProcessor());
-		getPostProcessors().add(new net.toften.docmaker.postprocessors.InjectHeaderIdPostProcessor());
-		getPostProcessors().add(new net.toften.docmaker.postprocessors.AdjustImageHrefPostProcessor());
-		getPostProcessors().add(new net.toften.docmaker.postprocessors.ApplyKeyValue());
+		HtmlRewriter.add(getPostProcessors(), new net.toften.docmaker.postprocessors.HeaderIncrementPostProcessor());
+		HtmlRewriter.add(getPostProcessors(), new net.toften.docmaker.postprocessors.InjectHeaderIdPostProcessor());
+		HtmlRewriter.add(getPostProcessors(), new net.toften.docmaker.postprocessors.AdjustImageHrefPostProcessor());
+		HtmlRewriter.add(getPostProcessors(), new net.toften.docmaker.postprocessors.ApplyKeyValue());
 	}
 	
 	@Override
-	public void endDocument() {
+	public void endDocument() throws SAXException {
 		/*
 		 * Run all the postprocessors for the document
 		 * 
 		 * Each postprocessor will be run over each chapter.
 		 * This is done in the order of the chapters
 		 */
-		runPostProcessors(true);
+		processChapters();
+	}
+	
+	/**
+	 * Wait for each chapter of the TOC to be converted, and run the postprocessors over it, in the order
+	 * of the chapters. Only the conversion of the fragments is done by the
+	 * {@link BuildContext#getChapterExecutor() chapter executor}; the postprocessors are run by the calling thread.
+	 * <p>
+	 * When the chapters are streamed, at most the chapters within the {@link BuildContext#getStreamingWindow() window}
+	 * are being converted, or held converted, ahead of the chapter being processed, and each chapter is moved to
+	 * a {@link SpoolChapterStore} once it has been processed.
+	 * <p>
+	 * Otherwise the chapters are held in memory, until the total size of their HTML exceeds the
+	 * {@link BuildContext#getChapterStoreThreshold() chapter store threshold}. From then on, the chapters are
+	 * moved to a {@link MappedChapterStore}.
+	 * 
+	 * @throws SAXException if a chapter could not be loaded, converted or stored
+	 */
+	protected void processChapters() throws SAXException {
+		List<Chapter> chapters = new ArrayList<Chapter>();
+		LinkedList<FragmentChapter> unstarted = new LinkedList<FragmentChapter>();
+		for (Section s : getSections()) {
+			if (s.getDocPart() == DocPart.SECTION) {
+				for (Chapter c : ((ChapterSection)s).getChapters()) {
+					chapters.add(c);
+					if (c instanceof FragmentChapter)
+						unstarted.add((FragmentChapter)c);
+				}
+			}
+		}
+		
+		int window = getBuildContext().getStreamingWindow();
+		long threshold = getBuildContext().getChapterStoreThreshold();
+		if (window > 0) {
+			lw.info("Streaming " + unstarted.size() + " chapters with a window of " + window);
+			try {
+				chapterStore = new SpoolChapterStore(getTocFileName());
+			} catch (IOException e) {
+				throw new SAXException("Can not create chapter store", e);
+			}
+		}
+		
+		ExecutorService executor = getBuildContext().getChapterExecutor();
+		// The conversions are only started here when streaming with an executor; otherwise they were
+		// started while the TOC was parsed, or are done by the calling thread
+		boolean startConversions = window > 0 && executor != null;
+		int inFlight = 0;
+		List<FragmentChapter> processed = new ArrayList<FragmentChapter>();
+		long inMemory = 0;
+		for (Chapter c : chapters) {
+			try {
+				if (c instanceof PassthroughChapter)
+					continue; // Passthrough chapters are included as they are
+				
+				if (!(c instanceof FragmentChapter)) {
+					c.runPostProcessors(getPostProcessors(), this, true);
+					continue;
+				}
+				
+				FragmentChapter fc = (FragmentChapter) c;
+				
+				// Keep the chapters within the window converting; the first of them is this chapter
+				while (startConversions && inFlight < window && !unstarted.isEmpty()) {
+					unstarted.removeFirst().startFragment(executor);
+					inFlight++;
+				}
+				
+				fc.awaitFragment();
+				fc.runPostProcessors(getPostProcessors(), this, true);
+				if (startConversions)
+					inFlight--;
+				
+				if (chapterStore == null && threshold > 0) {
+					inMemory += fc.getAsHtml(this).length();
+					if (inMemory > threshold) {
+						lw.info("Chapters of " + getTocFileName() + " exceed " + threshold + " characters; moving them to a memory-mapped chapter store");
+						
+						chapterStore = new MappedChapterStore(getTocFileName());
+						for (FragmentChapter p : processed) {
+							p.moveTo(chapterStore);
+						}
+					}
+				}
+				
+				if (chapterStore != null)
+					fc.moveTo(chapterStore);
+				else
+					processed.add(fc);
+			} catch (Exception e) {
+				throw new SAXException("Chapter " + c.getName() + " in section " + c.getSection().getName() + " failed", e);
+			}
+		}
+		
+		// Index the headers of the document, while those of the chapters are at hand
+		getAnchorIndex();
+	}
+	
+	/**
+	 * Release the {@link ChapterStore} used to hold the chapters, if any.
+	 * <p>
+	 * The HTML of the chapters can not be read after the handler has been closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (chapterStore != null) {
+			chapterStore.close();
+			chapterStore = null;
+		}
 	}
 	
 	@Override
@@ -84,6 +224,7 @@ public class StandardHandler extends AssemblyHandlerAdapter implements TOC, Asse
 		String fragmentLevel		= attributes.getValue(CHAPTER_LEVEL);
 		String chapterConfig		= attributes.getValue(CHAPTER_CONFIG);
 		boolean chapterRotate		= attributes.getValue(CHAPTER_ROTATE) != null;
+		boolean chapterPassthrough	= Boolean.parseBoolean(attributes.getValue(CHAPTER_PASSTHROUGH));
 		
 		if (currentFragmentName == null)
 			throw new IllegalArgumentException("Chapter fragment attribute not specified");
@@ -95,8 +236,24 @@ public class StandardHandler extends AssemblyHandlerAdapter implements TOC, Asse
 			throw new IllegalArgumentException("Chapter repo " + fragmentRepo + " does not exist");
 		
 		int chapterLevelOffset = fragmentLevel == null ? 0 : Integer.valueOf(fragmentLevel);
+		Repo repo = getRepos().get(fragmentRepo);
 		
-		getCurrentContentSection().addChapter(currentFragmentName, chapterConfig, this, getRepos().get(fragmentRepo), chapterLevelOffset, chapterRotate);
+		// The fragment is a dependency even if it can not be loaded, so the TOC is rebuilt once it has been fixed
+		getBuildContext().dependencyFound(getTocFileName(), repo.getFragmentURI(getFragmentFilename(currentFragmentName)));
+		
+		ContentSection section = getCurrentContentSection();
+		if (chapterPassthrough)
+			section.addPassthroughChapter(currentFragmentName, this, repo, chapterLevelOffset, chapterRotate);
+		else
+			section.addChapter(currentFragmentName, chapterConfig, this, repo, chapterLevelOffset, chapterRotate);
+	}
+	
+	/**
+	 * @param fragmentName the fragment attribute of a chapter element
+	 * @return the filename of the fragment, with the {@link #getDefaultExtension() default extension} added if it has none
+	 */
+	protected String getFragmentFilename(String fragmentName) {
+		return Repo.getFragmentFilename(fragmentName, getDefaultExtension());
 	}
 
 	@Override
@@ -1,13 +1,10 @@
 package net.toften.docmaker.headersections;
 
-import java.util.regex.Matcher;
-
-import net.toften.docmaker.DocPart;
-import net.toften.docmaker.postprocessors.RegexPostProcessor;
 import net.toften.docmaker.pseudosections.TOCPseudoSection;
+import net.toften.docmaker.toc.AnchorIndex;
 import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.ChapterSection;
-import net.toften.docmaker.toc.Section;
+import net.toften.docmaker.toc.Heading;
 import net.toften.docmaker.toc.TOC;
 
 public class TOCBookmarkSection extends TOCPseudoSection {
@@ -16,26 +13,28 @@ public class TOCBookmarkSection extends TOCPseudoSection {
 	public String getSectionAsHtml(TOC t) {
 		StringBuffer asHtml = new StringBuffer("<bookmarks>\n");
 
-		for (Section metaSection : t.getSections()) {
-			if (metaSection.getDocPart() == DocPart.SECTION) {
-				ChapterSection s = (ChapterSection)metaSection;
-				int sectionLevel = s.getSectionLevel();
-
-				if (sectionLevel <= getMaxLevel()) {
+		// The headers are nested in the bookmark of their section
+		boolean inSection = false;
+		for (AnchorIndex.Entry e : t.getAnchorIndex().getEntries()) {
+			if (e.isSection()) {
+				if (inSection)
+					asHtml.append("</bookmark>\n");
+				
+				ChapterSection s = e.getSection();
+				inSection = s.getSectionLevel() <= getMaxLevel();
+				if (inSection) {
 					asHtml.
 					append("<bookmark name=\"" + s.getName() + "\" href=\"#").
-					append(s.getIdAttr(t)).
+					append(e.getId()).
 					append("\">\n");
-					
-					for (Chapter c : s.getChapters()) {
-						processFragment(c, c.getAsHtml(t), asHtml, t);
-					}
-					
-					asHtml.append("</bookmark>\n");
 				}
-
+			} else if (inSection) {
+				appendHeading(e.getChapter(), e.getHeading(), asHtml, t);
 			}
 		}
+		
+		if (inSection)
+			asHtml.append("</bookmark>\n");
 
 		asHtml.append("</bookmarks>\n");
 		
@@ -43,24 +42,14 @@ public class TOCBookmarkSection extends TOCPseudoSection {
 	}
 
 	@Override
-	public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t) {
-		Matcher m = p.matcher(fragmentAsHtml);
-		int chapterEffectiveLevel = chapter.calcEffectiveLevel();
-
-		while (m.find()) {
-			if (m.group(0).charAt(1) != '/') {	// Check it is not the close tag
-				int hLevel = Integer.parseInt(m.group(1));
-				String headerText = m.group(2);
-				
-				int effectiveLevel = hLevel + chapterEffectiveLevel;
-
-				if (effectiveLevel <= getMaxLevel()) {
-					out.
-					append("<bookmark name=\"" + headerText + "\" href=\"#").
-					append(RegexPostProcessor.calcHeaderId(t, chapter, headerText)).
-					append("\" />\n");
-				}
-			}
+	protected void appendHeading(Chapter chapter, Heading h, StringBuffer out, TOC t) {
+		int effectiveLevel = h.getLevel() + chapter.calcEffectiveLevel();
+
+		if (effectiveLevel <= getMaxLevel()) {
+			out.
+			append("<bookmark name=\"" + h.getText() + "\" href=\"#").
+			append(getHeadingId(chapter, h, t)).
+			append("\" />\n");
 		}
 	}
 }
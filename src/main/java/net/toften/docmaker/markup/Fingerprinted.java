@@ -0,0 +1,29 @@
+package net.toften.docmaker.markup;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+
+/**
+ * Optionally implemented by a {@link MarkupProcessor} whose output depends on more than its class, the
+ * fragment and the chapter config.
+ * <p>
+ * The fingerprint of a processor not implementing this interface is its class name.
+ * 
+ * @author thomaslarsen
+ *
+ * @see net.toften.docmaker.cache.CacheKeys#fingerprint(MarkupProcessor, String, AssemblyHandler)
+ */
+public interface Fingerprinted {
+	/**
+	 * Describe the settings, other than the fragment and the chapter config, which the output of
+	 * converting a fragment depends on, such as the class of the processor and any other
+	 * {@link AssemblyHandler#getMarkupProcessor(String) markup processors} it uses.
+	 * <p>
+	 * The fingerprint is part of the key of {@link net.toften.docmaker.cache.ConversionCache cached}
+	 * conversions, so it must change whenever the output of a conversion may change.
+	 * 
+	 * @param config the chapter config, can be <code>null</code>
+	 * @param handler the handler of the TOC the fragment is converted for
+	 * @return the fingerprint
+	 */
+	String getFingerprint(String config, AssemblyHandler handler);
+}
@@ -0,0 +1,153 @@
+package net.toften.docmaker.markup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads the whole contents of a fragment into a string.
+ * <p>
+ * The bytes are read into a buffer sized from the length of the fragment, and decoded in one go into a
+ * buffer sized from the number of bytes. Files larger than the {@link #DEFAULT_MAP_THRESHOLD map threshold}
+ * are memory-mapped instead of read. Each thread reuses its own {@link CharsetDecoder}, so a reader can be
+ * shared by the threads converting the chapters.
+ * <p>
+ * Malformed input is replaced, as it is by an {@link java.io.InputStreamReader}.
+ * <p>
+ * A fragment which is processed as it is read, rather than read into a string, is {@link #open(InputStream) opened}
+ * as a {@link Reader} decoding it the same way.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class FragmentReader {
+	/**
+	 * The default size, in bytes, above which files are memory-mapped
+	 */
+	public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+	private final Charset charset;
+	private final long mapThreshold;
+	private final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+		@Override
+		protected CharsetDecoder initialValue() {
+			return charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	/**
+	 * @param encoding the encoding of the fragments; <code>null</code> for the platform default
+	 */
+	public FragmentReader(String encoding) {
+		this(encoding, DEFAULT_MAP_THRESHOLD);
+	}
+
+	/**
+	 * @param encoding the encoding of the fragments; <code>null</code> for the platform default
+	 * @param mapThreshold the size, in bytes, above which files are memory-mapped
+	 */
+	public FragmentReader(String encoding, long mapThreshold) {
+		this.charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+		this.mapThreshold = mapThreshold;
+	}
+
+	/**
+	 * Read a file.
+	 *
+	 * @param file the file
+	 * @return the contents of the file; empty if the file is empty
+	 * @throws IOException if the file can not be read
+	 */
+	public String read(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Fragment " + file + " is too large: " + size + " bytes");
+
+			if (size > mapThreshold)
+				return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+
+			ByteBuffer bytes = ByteBuffer.allocate((int) size);
+			while (bytes.hasRemaining() && channel.read(bytes) >= 0);
+			bytes.flip();
+
+			return decode(bytes);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read a stream to the end. The stream is not closed.
+	 *
+	 * @param is the stream
+	 * @return the contents of the stream; empty if the stream is empty
+	 * @throws IOException if the stream can not be read
+	 */
+	public String read(InputStream is) throws IOException {
+		// The available bytes are all of them for the in-memory fragments, and a good guess for files
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 32) + 1);
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+
+		return decode(ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	/**
+	 * Open a stream as a reader, for a processor reading the fragment as it processes it.
+	 * <p>
+	 * The reader decodes the stream using the same encoding, and replacing malformed input in the same way,
+	 * as the other read methods. Closing the reader closes the stream.
+	 *
+	 * @param is the stream
+	 * @return a reader of the stream
+	 */
+	public Reader open(InputStream is) {
+		return new InputStreamReader(is, charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE));
+	}
+
+	private String decode(ByteBuffer in) throws CharacterCodingException {
+		CharsetDecoder decoder = decoders.get();
+		decoder.reset();
+
+		CharBuffer out = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+		CoderResult result;
+		while ((result = decoder.decode(in, out, true)).isOverflow())
+			out = grow(out);
+		if (result.isError())
+			result.throwException();
+
+		while (decoder.flush(out).isOverflow())
+			out = grow(out);
+
+		return new String(out.array(), 0, out.position());
+	}
+
+	private static CharBuffer grow(CharBuffer out) {
+		CharBuffer larger = CharBuffer.allocate(out.capacity() * 2 + 1);
+		out.flip();
+		larger.put(out);
+
+		return larger;
+	}
+}
@@ -10,6 +10,13 @@ import net.toften.docmaker.handler.AssemblyHandler;
  * Interface for implementation of a markup processor.
  * <p>
  * The implementing class will likely wrap an external library providing the actual processing.
+ * <p>
+ * A single instance is shared by all the chapters of a run, and when chapters are converted
+ * asynchronously the process methods will be invoked concurrently. Implementations must therefore
+ * be thread-safe.
+ * <p>
+ * A processor whose output depends on more than its class, the fragment and the chapter config must
+ * also implement {@link Fingerprinted}, so its conversions are cached correctly.
  * 
  * @author thomaslarsen
  *
@@ -1,12 +1,8 @@
 package net.toften.docmaker.markup;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 
 import net.toften.docmaker.handler.AssemblyHandler;
 
@@ -20,27 +16,20 @@ import net.toften.docmaker.handler.AssemblyHandler;
  */
 public class NoMarkupProcessor implements MarkupProcessor {
 
-	private String encoding;
+	private FragmentReader fragmentReader = new FragmentReader(null);
 
 	@Override
 	public String process(File inFile, String config, AssemblyHandler handler) throws IOException {
-		return process(new FileInputStream(inFile), config, handler);
+		return fragmentReader.read(inFile);
 	}
 	
 	@Override
 	public String process(InputStream is, String config, AssemblyHandler handler) throws IOException {
-		InputStreamReader fileReader = new InputStreamReader(is, Charset.forName(this.encoding));
-		BufferedReader reader = new BufferedReader(fileReader);
-
-		StringBuffer asHTML = new StringBuffer();
-		String line;
-		while( ( line = reader.readLine() ) != null ) {
-			asHTML.append(line);
+		try {
+			return fragmentReader.read(is);
+		} finally {
+			is.close();
 		}
-
-		reader.close();
-
-		return asHTML.toString();
 	}
 
 	@Override
@@ -50,7 +39,7 @@ public class NoMarkupProcessor implements MarkupProcessor {
 	
 	@Override
 	public void setEncoding(final String encodingString) {
-		this.encoding = encodingString;
+		this.fragmentReader = new FragmentReader(encodingString);
 	}
 
 	@Override
@@ -0,0 +1,231 @@
+package net.toften.docmaker.markup.csv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.markup.MarkupProcessor;
+
+/**
+ * Buffers the HTML of the rows written by the {@link CsvProcessor}, so the markup of the cells can be
+ * converted in batches rather than one cell at a time.
+ * <p>
+ * The cells of a batch are joined with a separator, which is passed through by the {@link MarkupProcessor}
+ * as an HTML comment, converted in one call and split again. If the batch can not be converted, or the result
+ * can not be split into the cells, for example because a code block swallowed a separator, the cells are
+ * converted one at a time.
+ * This is also the case if a cell might define a link reference, as that would be seen by the other cells.
+ * <p>
+ * Cells containing only letters, digits and a few punctuation characters are not converted at all. Instead
+ * they are wrapped in the same HTML as the processor wraps a plain word in.
+ *
+ * @author thomaslarsen
+ *
+ */
+class CellBatch implements Appendable {
+	private static final Logger lw = Logger.getLogger(CellBatch.class.getName());
+	
+	/**
+	 * The number of cells converted in one call to the {@link MarkupProcessor}
+	 */
+	static final int DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * The number of characters buffered before they are written, when there are no cells to convert
+	 */
+	private static final int FLUSH_LENGTH = 64 * 1024;
+	
+	private static final String SEPARATOR_TOKEN = "docmaker-cell-separator";
+	private static final String SEPARATOR = "<!--" + SEPARATOR_TOKEN + "-->";
+	private static final Pattern SEPARATOR_PATTERN = Pattern.compile(Pattern.quote(SEPARATOR));
+	private static final String PROBE = "docmakerplaincell";
+	
+	private static class Cell {
+		final int position;
+		final String markup;
+		String html;
+		
+		Cell(int position, String markup) {
+			this.position = position;
+			this.markup = markup;
+		}
+	}
+
+	private final MarkupProcessor mp;
+	private final AssemblyHandler handler;
+	private final int batchSize;
+	private final StringBuilder text = new StringBuilder();
+	private final List<Cell> cells = new ArrayList<Cell>();
+	private String plainPrefix;
+	private String plainSuffix;
+	
+	/**
+	 * @param mp the processor to convert the markup of the cells with; <code>null</code> to write the cells as they are
+	 * @param handler the handler of the TOC
+	 * @param batchSize the number of cells to convert in one call to the processor
+	 * @throws IOException if the processor fails
+	 */
+	CellBatch(MarkupProcessor mp, AssemblyHandler handler, int batchSize) throws IOException {
+		this.mp = mp;
+		this.handler = handler;
+		this.batchSize = batchSize;
+		
+		if (mp != null) {
+			// Find the HTML the processor wraps plain text in
+			String probe = mp.process(PROBE, null, handler);
+			int i = probe == null ? -1 : probe.indexOf(PROBE);
+			if (i >= 0) {
+				plainPrefix = probe.substring(0, i).trim();
+				plainSuffix = probe.substring(i + PROBE.length()).trim();
+			}
+		}
+	}
+
+	/**
+	 * Create a batch using the same processor as another batch, without converting the probe again.
+	 * 
+	 * @param template the other batch
+	 */
+	CellBatch(CellBatch template) {
+		this.mp = template.mp;
+		this.handler = template.handler;
+		this.batchSize = template.batchSize;
+		this.plainPrefix = template.plainPrefix;
+		this.plainSuffix = template.plainSuffix;
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) {
+		text.append(csq);
+		return this;
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		text.append(csq, start, end);
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) {
+		text.append(c);
+		return this;
+	}
+	
+	/**
+	 * Append a cell, which markup is converted when the batch is {@link #flush(Appendable) written}.
+	 * 
+	 * @param markup the markup of the cell
+	 */
+	void appendCell(String markup) {
+		if (mp == null) {
+			text.append(markup);
+		} else if (plainPrefix != null && isPlain(markup)) {
+			text.append(plainPrefix).append(markup).append(plainSuffix);
+		} else {
+			cells.add(new Cell(text.length(), markup));
+		}
+	}
+	
+	/**
+	 * Write the buffered HTML to the output, if the batch is full. This must only be called between rows.
+	 * 
+	 * @param out the output
+	 * @throws IOException if the cells can not be converted, or the output can not be written
+	 */
+	void flushIfFull(Appendable out) throws IOException {
+		if (cells.size() >= batchSize || (cells.isEmpty() && text.length() >= FLUSH_LENGTH))
+			flush(out);
+	}
+	
+	/**
+	 * Convert the buffered cells, and write the buffered HTML to the output.
+	 * 
+	 * @param out the output
+	 * @throws IOException if the cells can not be converted, or the output can not be written
+	 */
+	void flush(Appendable out) throws IOException {
+		convert();
+		
+		int written = 0;
+		for (Cell c : cells) {
+			out.append(text, written, c.position).append(c.html);
+			written = c.position;
+		}
+		out.append(text, written, text.length());
+		
+		text.setLength(0);
+		cells.clear();
+	}
+	
+	private void convert() throws IOException {
+		if (cells.isEmpty())
+			return;
+		
+		// The config of the chapter is the CSV config, and does not apply to the cell markup
+		
+		boolean batch = cells.size() > 1;
+		for (Cell c : cells) {
+			if (c.markup.contains("]:") || c.markup.contains(SEPARATOR_TOKEN)) {
+				batch = false;
+				break;
+			}
+		}
+		
+		if (batch) {
+			StringBuilder joined = new StringBuilder();
+			for (Cell c : cells) {
+				if (joined.length() > 0)
+					joined.append("\n\n").append(SEPARATOR).append("\n\n");
+				joined.append(c.markup);
+			}
+			
+			// The processor returns null if it gives up, for example when its parsing time runs out
+			String converted = mp.process(joined.toString(), null, handler);
+			String[] html = converted == null ? null : SEPARATOR_PATTERN.split(converted, -1);
+			if (html != null && html.length == cells.size()) {
+				for (int i = 0; i < html.length; i++) {
+					cells.get(i).html = html[i].trim();
+				}
+				
+				return;
+			}
+			
+			lw.fine("Batch of " + cells.size() + " cells could not be " + (html == null ? "converted" : "split") + "; converting the cells one at a time");
+		}
+		
+		for (Cell c : cells) {
+			String html = mp.process(c.markup, null, handler);
+			c.html = html == null ? null : html.trim();
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if the cell is a single line of words, which is not changed by the conversion
+	 * 	apart from being wrapped
+	 */
+	static boolean isPlain(String markup) {
+		if (markup.length() == 0 || !Character.isLetter(markup.charAt(0)) || Character.isWhitespace(markup.charAt(markup.length() - 1)))
+			return false;
+		
+		char previous = 0;
+		for (int i = 0; i < markup.length(); i++) {
+			char c = markup.charAt(i);
+			if (!Character.isLetterOrDigit(c)) {
+				if (" ,.;:?()%-".indexOf(c) < 0)
+					return false;
+				
+				// Ellipses and dashes might be converted
+				if ((c == '.' || c == '-') && c == previous)
+					return false;
+			}
+			previous = c;
+		}
+		
+		// Might be an autolink
+		return !markup.toLowerCase().contains("www.");
+	}
+}
@@ -1,22 +1,27 @@
 package net.toften.docmaker.markup.csv;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
+import net.toften.docmaker.cache.CacheKeys;
 import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.markup.Fingerprinted;
 import net.toften.docmaker.markup.MarkupProcessor;
 import net.toften.docmaker.markup.markdown.MarkupProcessorAdapter;
 import au.com.bytecode.opencsv.CSVReader;
@@ -48,16 +53,29 @@ import au.com.bytecode.opencsv.CSVReader;
  * <li>Output type: <b>t</b>: tables; <b>h</b>: hierarchy of headers. Defaults to <b>t</b></li>
  * <li>Top row skip. Specifies the number of rows to ignore in the beginning of the file</li>
  * <li>Bottom row skip. Specifies the number of rows to ignore at the end of the file</li>
+ * <li>Text processor. The extension of the {@link MarkupProcessor} to convert the contents of the cells with.
+ * If it is empty, the contents are included as they are</li>
  * <li>List of headings to include (in the order they should appear). For <code>h</code> output type, the 
  * heading level can be provided as the second element, for example <code>Heading:2</code>. 
  * If it is not provided, the contents will be included
- * in a <code>p</code> section</li>
+ * in a <code>p</code> section. If the list is empty, all the columns are included</li>
  * <li>List of filters. See below</li>
+ * </ol>
+ * A malformed config is rejected with an {@link IllegalArgumentException}. The config is compiled the first
+ * time it is used, and the compiled config is reused by the chapters with the same config.
  *  
  * <h3>Filters</h3>
- * Filters are declared as a Regex, which will be applied to a cell specified by a heading name.
+ * Filters are applied to a cell specified by a heading name, and are one of:
+ * <ul>
+ * <li>A numeric comparison: <code>num:&gt;N</code>, <code>num:&gt;=N</code>, <code>num:&lt;N</code>, <code>num:&lt;=N</code> or <code>num:==N</code></li>
+ * <li>An inclusive numeric range: <code>num:[N..M]</code></li>
+ * <li>A Regex, which must match the whole cell</li>
+ * </ul>
+ * A filter is only numeric if it starts with <code>num:</code>. Without the prefix, a filter such as
+ * <code>[1..3]</code> or <code>&gt;=5</code> is a Regex, as it has always been.
+ * Cells which are not numbers never match the numeric filters.
  * Filters will be applied in an <i>and</i> manner, i.e. all filters must be true for a row to
- * be included.
+ * be included. The filters most likely to exclude a row cheaply are checked first.
  * <p>
  * The syntax is: <code>heading:filter</code>, for example:
  * <p>
@@ -65,28 +83,43 @@ import au.com.bytecode.opencsv.CSVReader;
  * of the column <code>Heading</code>, and only include the row if the pattern matches.
  *
  * <h3>Example</h3>
- * <code>h;3;2;Summary:2,Description;Component/s:.*Platform.*</code>
+ * <code>h;3;2;md;Summary:2,Description;Component/s:.*Platform.*,Priority:num:[1..3]</code>
  * <ul>
  * <li>Output type is a hierachy of <b>headings</b></li>
  * <li>The first 3 rows will be skipped</li>
  * <li>The last 2 rows will be ignored</li>
+ * <li>The contents of the cells will be converted as Markdown</li>
  * <li>The contents of the <i>Summary</i> column will be inserted as a level 2 heading</li>
  * <li>The contents of the <i>Description</i> column will be inserted as text</li>
  * <li>Only rows where the contents of the <i>Component/s</i> column matches the 
- * <code>.*Platform.*</code> Regex will be included</li>
+ * <code>.*Platform.*</code> Regex, and the <i>Priority</i> column is between 1 and 3, will be included</li>
  * </ul>
  */
-public class CsvProcessor extends MarkupProcessorAdapter implements MarkupProcessor {
+public class CsvProcessor extends MarkupProcessorAdapter implements MarkupProcessor, Fingerprinted {
 	private static Logger lw = Logger.getLogger(CsvProcessor.class.getName());
 	
+	/**
+	 * The number of rows rendered by each task, when the rows are rendered in parallel
+	 */
+	static final int CHUNK_ROWS = 1000;
+	
+	/**
+	 * The number of chunks of rows being rendered at a time, which bounds the rows held in memory
+	 */
+	private static final int MAX_PENDING_CHUNKS = 2 * Runtime.getRuntime().availableProcessors();
+	
+	/** The compiled view of each config */
+	private final ConcurrentMap<String, CsvView> views = new ConcurrentHashMap<String, CsvView>();
+	
 	@Override
 	public String process(File inFile, String config, AssemblyHandler handler) throws IOException {
-		return process(new CSVReader(new FileReader(inFile)), config, handler);
+		return process(new FileInputStream(inFile), config, handler);
 	}
 	
 	@Override
 	public String process(InputStream is, String config, AssemblyHandler handler) throws IOException {
-		return process(new CSVReader(new InputStreamReader(is, getEncoding())), config, handler);
+		// The rows are processed as they are read, so the fragment is not read into a string
+		return process(new CSVReader(getFragmentReader().open(is)), config, handler);
 	}
 
 	@Override
@@ -95,170 +128,260 @@ public class CsvProcessor extends MarkupProcessorAdapter implements MarkupProces
 	}
 	
 	public String process(CSVReader reader, String config, AssemblyHandler handler) throws IOException {
+		StringBuilder asHtml = new StringBuilder();
+		process(reader, config, handler, asHtml);
+		
+		return asHtml.toString();
+	}
+	
+	/**
+	 * Convert the CSV read by a {@link CSVReader} and write the HTML to an {@link Appendable}.
+	 * <p>
+	 * The rows are read, filtered and written one at a time. Only the rows which might be skipped at the end
+	 * of the file are held back, so the memory used does not depend on the size of the file.
+	 * <p>
+	 * If the {@link net.toften.docmaker.handler.BuildContext#getCsvExecutor() CSV executor} of the build is set,
+	 * the rows are instead filtered and rendered in chunks of {@link #CHUNK_ROWS} rows by the executor, and the
+	 * chunks are written in the order of the rows.
+	 * 
+	 * @param reader the reader of the CSV; it is closed when the CSV has been converted
+	 * @param config the config of the chapter, as described {@link CsvProcessor above}
+	 * @param handler the handler of the TOC
+	 * @param out the output
+	 * @throws IOException if the CSV can not be read, or the output can not be written
+	 */
+	public void process(CSVReader reader, String config, AssemblyHandler handler, Appendable out) throws IOException {
+		
+		CsvView view = getView(config);
+		if (lw.isLoggable(Level.FINE))
+			lw.fine("CSV view: " + view);
+		int startSkip = view.getStartSkip();
+		int endSkip = view.getEndSkip();
+		String format = view.getFormat();
+		
+		MarkupProcessor mp = null;
+		if (view.getTextProcessor() != null) {
+			mp = handler.getMarkupProcessor(view.getTextProcessor());
+		}
+		
+		ExecutorService executor = handler == null ? null : handler.getBuildContext().getCsvExecutor();
 		
-		/*
-		 * Extract config
-		 * 
-		 * Example:
-		 * 0: ,,
-		 * 1: ,,
-		 * 2: Key,Heading,Value
-		 * 3: 1,Stuff,Gold
-		 * 4: 2,Piles,Silver
-		 * 5: ,,
-		 * 
-		 * Size: 6
-		 */
-		int startSkip = 0;
-		int endSkip = 0;
-		String format = "t";
-		List<String> columns = null;
-		Map<String, Pattern> filters = null;
-		String textProcessor = null;
+		out.append(format.equals("t") ? "<table class=\"csv\">\n" : "");
 		
-		if (config != null) {
-			String[] settings = config.split(";");
-			lw.fine(settings.length + " settings");			
-			if (settings.length > 0) {
-				format = settings[0];
-				if (settings.length > 1) {
-					startSkip = Integer.parseInt(settings[1]);
-					if (settings.length > 2) {
-						endSkip = Integer.parseInt(settings[2]);
-						if (settings.length > 3) {
-							textProcessor = settings[3];
-							if (settings.length > 4) {
-								columns = new ArrayList<String>(Arrays.asList(settings[4].split("\\s*,\\s*")));
-								if (settings.length > 5) {
-									// Filters
-									filters = new HashMap<String, Pattern>();
-									for (String f : settings[5].split("\\s*,\\s*")) {
-										String[] colRegex = f.split("\\s*:\\s*");
-										filters.put(colRegex[0], Pattern.compile(colRegex[1]));
-									}
-								}
-							}
-						}
+		LinkedList<Future<String>> pendingChunks = new LinkedList<Future<String>>();
+		try {
+			// The markup of the cells is converted in batches
+			CellBatch batch = new CellBatch(mp, handler, CellBatch.DEFAULT_BATCH_SIZE);
+			
+			int lineCount = 0;
+			while (lineCount < startSkip && reader.readNext() != null) {
+				lineCount++;
+			}
+			
+			/*
+			 * A row is only known not to be one of the last endSkip rows once endSkip more rows
+			 * have been read, so the rows are held back in a ring buffer until then
+			 */
+			String[][] heldBack = new String[endSkip][];
+			int heldBackCount = 0;
+			int oldest = 0;
+			
+			RowRenderer renderer = null;
+			List<String[]> chunk = new ArrayList<String[]>(CHUNK_ROWS);
+			String[] nextLine;
+			while ((nextLine = reader.readNext()) != null) {
+				String[] currentLine = nextLine;
+				if (endSkip > 0) {
+					currentLine = heldBack[oldest];
+					heldBack[oldest] = nextLine;
+					oldest = (oldest + 1) % endSkip;
+					if (heldBackCount < endSkip) {
+						heldBackCount++;
+						continue;
 					}
 				}
+				
+				if (lw.isLoggable(Level.FINE))
+					lw.fine("Line " + lineCount + ": " + Arrays.toString(currentLine));
+		        if (renderer == null) { // We are at the header line
+		        	renderer = new RowRenderer(format, view.bind(currentLine));
+		        	renderer.writeHeader(currentLine, batch);
+		        } else if (executor == null) {
+		        	renderer.writeRow(currentLine, batch);
+		        } else {
+		        	chunk.add(currentLine);
+		        	if (chunk.size() == CHUNK_ROWS) {
+		        		submitChunk(executor, renderer, chunk, batch, pendingChunks, out);
+		        		chunk = new ArrayList<String[]>(CHUNK_ROWS);
+		        	}
+		        }
+		        
+		        lineCount++;
+		        batch.flushIfFull(out);
+		    }
+			
+			if (!chunk.isEmpty())
+				submitChunk(executor, renderer, chunk, batch, pendingChunks, out);
+			while (!pendingChunks.isEmpty()) {
+				out.append(awaitChunk(pendingChunks.removeFirst()));
+			}
+			batch.flush(out);
+			lw.fine("Rows read: " + (lineCount + heldBackCount));
+		} finally {
+			for (Future<String> f : pendingChunks) {
+				f.cancel(true);
 			}
+		    reader.close();
+		}
+		out.append(format.equals("t") ? "</tbody>\n</table>\n" : "");
+	}
+	
+	/**
+	 * Submit a chunk of rows to be rendered by the executor. If too many chunks are being rendered,
+	 * the oldest chunk is waited for and written to the output first.
+	 */
+	private void submitChunk(ExecutorService executor, final RowRenderer renderer, final List<String[]> chunk, final CellBatch template, 
+			LinkedList<Future<String>> pendingChunks, Appendable out) throws IOException {
+		// The rows before the chunk
+		template.flush(out);
+		while (pendingChunks.size() >= MAX_PENDING_CHUNKS) {
+			out.append(awaitChunk(pendingChunks.removeFirst()));
 		}
-		lw.fine("Format: " + format);
-		lw.fine("Start skip: " + startSkip);
-		lw.fine("End skip: " + endSkip);
-		lw.fine("Text processor: " + textProcessor);
-		lw.fine("Columns: " + columns.toString());
-		lw.fine("Filters: " + (filters == null ? "none" : filters.toString()));
 		
-		MarkupProcessor mp = null;
-		if (textProcessor != null && !textProcessor.equals("")) {
-			mp = handler.getMarkupProcessor(textProcessor);
+		pendingChunks.add(executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				CellBatch batch = new CellBatch(template);
+				StringBuilder html = new StringBuilder();
+				for (String[] row : chunk) {
+					renderer.writeRow(row, batch);
+					batch.flushIfFull(html);
+				}
+				batch.flush(html);
+				
+				return html.toString();
+			}
+		}));
+	}
+	
+	private static String awaitChunk(Future<String> chunk) throws IOException {
+		try {
+			return chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while rendering CSV rows");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			
+			throw new IOException("CSV rows could not be rendered", e.getCause());
 		}
+	}
+	
+	/**
+	 * The output also depends on the {@link MarkupProcessor} the text processor element of the config
+	 * is mapped to by the handler.
+	 */
+	@Override
+	public String getFingerprint(String config, AssemblyHandler handler) {
+		String textProcessor = getView(config).getTextProcessor();
+		if (textProcessor == null)
+			return getClass().getName();
 		
-        List<String[]> contents = reader.readAll();
-        lw.fine("Contents size: " + contents.size());
-
-		StringBuffer asHtml = new StringBuffer().append(format.equals("t") ? "<table class=\"csv\">\n" : "");
-		List<Integer> headerColumnIndex = new LinkedList<Integer>();
-		List<Integer> headerLevelIndex = new LinkedList<Integer>();
-		Map<Integer, Pattern> filterColumnIndex = new HashMap<Integer, Pattern>();
+		MarkupProcessor mp = handler == null ? null : handler.getMarkupProcessor(textProcessor);
+		return getClass().getName() + "[" + textProcessor + "=" + (mp == null ? "" : CacheKeys.fingerprint(mp, null, handler)) + "]";
+	}
+	
+	/**
+	 * Return the compiled view of a config, compiling it the first time the config is used.
+	 * 
+	 * @param config the config of the chapter; can be <code>null</code>
+	 * @return the view
+	 * @throws IllegalArgumentException if the config is malformed
+	 */
+	CsvView getView(String config) {
+		String key = config == null ? "" : config;
 		
-	    int lineCount = startSkip;
-		while (lineCount < contents.size() - endSkip) {
-			String[] currentLine = contents.get(lineCount);
-			lw.fine("Line " + lineCount + ": " + Arrays.toString(currentLine));
-	        if (lineCount == startSkip) { // We are at the header line
-		        List<String> headersAsList = Arrays.asList(currentLine);
-		        // Find the header columns to include
-	        	if (columns != null) {
-		        	for (String columnName : columns) {
-		        		String[] headerInfo = columnName.split("\\s*:\\s*");
-		        		int index = headersAsList.indexOf(headerInfo[0]);
-		        		lw.fine("Looking for header: " + headerInfo[0] + " in " + headersAsList.toString() + "[" + index + "]");
-		        		if (index >= 0) {
-		        			headerColumnIndex.add(index);
-		        			headerLevelIndex.add(headerInfo.length < 2 ? -1 : Integer.parseInt(headerInfo[1]));
-		        		}
-					}
-	        	} else {
-	        		// If we haven't provided a list of columns, add them all
-	        		for (int i = 0; i < currentLine.length; i++) {
-	        			headerColumnIndex.add(i);
-		        		headerLevelIndex.add(-1);
-	        		}
-	        	}
-	        	
-	        	// Find the filter header columns
-	        	if (filters != null) {
-		        	for (String columnName : filters.keySet()) {
-		        		int index = headersAsList.indexOf(columnName);
-		        		if (index > 0)
-		        			filterColumnIndex.put(index, filters.get(columnName));
-					}
-	        	}
+		CsvView view = views.get(key);
+		if (view == null) {
+			view = CsvView.compile(config);
+			views.putIfAbsent(key, view);
+		}
+		
+		return view;
+	}
+	
+	/**
+	 * Renders the rows of a CSV file, once the view has been bound to the header row.
+	 * <p>
+	 * The renderer is not changed by rendering a row, so it can render rows in parallel.
+	 */
+	private static class RowRenderer {
+		private final String format;
+		private final CsvView.Bound view;
+		private final int[] columns;
+		private final int[] levels;
+		
+		RowRenderer(String format, CsvView.Bound view) {
+			this.format = format;
+			this.view = view;
+			this.columns = view.getColumns();
+			this.levels = view.getLevels();
+			
+			lw.fine("Headers to output: " + Arrays.toString(columns));
+		}
+		
+		void writeHeader(String[] headerLine, Appendable out) throws IOException {
+        	if (format.equals("t")) {
+	        	// Write column headers
+		        out.append("<thead>\n");
+		        out.append("<tr>\n");
+		        
+	        	for (int c : columns) {
+					out.append("<th>").append(headerLine[c]).append("</th>\n");
+				}
 	        	
-	        	if (format.equals("t")) {
-		        	// Write column headers
-			        asHtml.append("<thead>\n");
-			        asHtml.append("<tr>\n");
-			        
-		        	for (Integer c : headerColumnIndex) {
-						asHtml.append("<th>" + currentLine[c] + "</th>\n");
-					}
-		        	
-			        asHtml.append("</tr>\n");
-			        asHtml.append("</thead>\n");
-			        asHtml.append("<tbody>\n");
-	        	}
-	        	lw.fine("Headers to output: " + headerColumnIndex.toString());
-	        } else {
-	        	boolean include = true;
-	        	// Check filters
-	        	for (Entry<Integer, Pattern> f : filterColumnIndex.entrySet()) {
-					if (!f.getValue().matcher(currentLine[f.getKey()]).matches()) {
-						include = false;
-						break;
-					}
+		        out.append("</tr>\n");
+		        out.append("</thead>\n");
+		        out.append("<tbody>\n");
+        	}
+		}
+		
+		void writeRow(String[] currentLine, CellBatch batch) throws IOException {
+        	if (!view.accept(currentLine))
+        		return;
+        	
+        	if (format.equals("t")) {
+        		batch.append("<tr>\n");
+		        
+	        	for (int c : columns) {
+	        		if (c < currentLine.length) {
+	        			batch.append("<td>");
+	        			batch.appendCell(currentLine[c]);
+	        			batch.append("</td>\n");
+	        		} else
+	        			batch.append("<td></td>\n");
 				}
 	        	
-	        	if (include) {
-		        	if (format.equals("t")) {
-		        		asHtml.append("<tr>\n");
-				        
-			        	for (Integer c : headerColumnIndex) {
-			        		if (c < currentLine.length)
-			        			asHtml.append("<td>" + processMarkup(currentLine[c], mp, config, handler) + "</td>\n");
-			        		else
-			        			asHtml.append("<td></td>\n");
-						}
-			        	
-				        asHtml.append("</tr>\n");
-		        	} else if (format.equals("h")) {
-		        		for (int i = 0; i < headerColumnIndex.size(); i++) {
-		        			if (headerLevelIndex.get(i) > 0) {
-		        				asHtml.append("<h").append(headerLevelIndex.get(i)).append(">\n");
-		        				asHtml.append(currentLine[headerColumnIndex.get(i)] + "\n");
-		        				asHtml.append("</h").append(headerLevelIndex.get(i)).append(">\n");
-		        			} else {
-		        				asHtml.append("<p>" + processMarkup(currentLine[headerColumnIndex.get(i)], mp, config, handler) + "</p>\n");
-		        			}
-		        		}
-		        	}
-	        	}
-	        }
-	        
-	        lineCount++;
-	    }
-		asHtml.append(format.equals("t") ? "</tbody>\n</table>\n" : "");
-	    reader.close();
-	    lw.fine("Final output: " + asHtml.toString());
-	    return asHtml.toString();
+		        batch.append("</tr>\n");
+        	} else {
+        		for (int i = 0; i < columns.length; i++) {
+        			if (levels[i] > 0) {
+        				batch.append("<h").append(String.valueOf(levels[i])).append(">\n");
+        				batch.append(currentLine[columns[i]]).append("\n");
+        				batch.append("</h").append(String.valueOf(levels[i])).append(">\n");
+        			} else {
+        				batch.append("<p>");
+        				batch.appendCell(currentLine[columns[i]]);
+        				batch.append("</p>\n");
+        			}
+        		}
+        	}
+		}
 	}
 	
-	private String processMarkup(String markup, MarkupProcessor mp, String config, AssemblyHandler handler) throws IOException {
-		return mp == null ? markup : mp.process(markup, config, handler);
-	}
-
 	@Override
 	public String getFileExtension() {
 		return "cvs";
@@ -0,0 +1,483 @@
+package net.toften.docmaker.markup.csv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The compiled config of a CSV chapter, as described by the {@link CsvProcessor}.
+ * <p>
+ * A view is compiled once for each config, and is immutable. Once the header row of a file has been read, the view
+ * is {@link #bind(String[]) bound} to the columns of the file.
+ *
+ * @author thomaslarsen
+ *
+ */
+class CsvView {
+	private static final Logger lw = Logger.getLogger(CsvView.class.getName());
+
+	private static final Pattern LIST_SEPARATOR = Pattern.compile("\\s*,\\s*");
+	private static final Pattern COLON = Pattern.compile("\\s*:\\s*");
+	private static final Pattern REGEX_META = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+	private static final String NUMBER = "([-+]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?)";
+	private static final Pattern RANGE = Pattern.compile("\\[\\s*" + NUMBER + "\\s*\\.\\.\\s*" + NUMBER + "\\s*\\]");
+	private static final Pattern COMPARISON = Pattern.compile("(<=|>=|==|<|>)\\s*" + NUMBER);
+	private static final String NUMERIC_PREFIX = "num:";
+
+	private final String format;
+	private final int startSkip;
+	private final int endSkip;
+	private final String textProcessor;
+	private final List<String> columnNames;
+	private final List<Integer> columnLevels;
+	private final List<Predicate> predicates;
+
+	private CsvView(String format, int startSkip, int endSkip, String textProcessor, List<String> columnNames, List<Integer> columnLevels, List<Predicate> predicates) {
+		this.format = format;
+		this.startSkip = startSkip;
+		this.endSkip = endSkip;
+		this.textProcessor = textProcessor;
+		this.columnNames = columnNames;
+		this.columnLevels = columnLevels;
+		this.predicates = predicates;
+	}
+
+	/**
+	 * Compile a config.
+	 *
+	 * @param config the config; <code>null</code> for the defaults
+	 * @return the view
+	 * @throws IllegalArgumentException if the config is malformed
+	 */
+	static CsvView compile(String config) {
+		String format = "t";
+		int startSkip = 0;
+		int endSkip = 0;
+		String textProcessor = null;
+		List<String> columnNames = null;
+		List<Integer> columnLevels = null;
+		List<Predicate> predicates = new ArrayList<Predicate>();
+
+		String[] settings = config == null ? new String[0] : config.split(";");
+		if (settings.length > 6)
+			throw new IllegalArgumentException("CSV config \"" + config + "\" has " + settings.length + " elements; at most 6 are allowed");
+
+		if (settings.length > 0 && settings[0].trim().length() > 0) {
+			format = settings[0].trim();
+			if (!format.equals("t") && !format.equals("h"))
+				throw new IllegalArgumentException("Unknown output type \"" + format + "\" in CSV config \"" + config + "\"; must be t or h");
+		}
+		if (settings.length > 1)
+			startSkip = parseSkip(settings[1], "Top row skip", config);
+		if (settings.length > 2)
+			endSkip = parseSkip(settings[2], "Bottom row skip", config);
+		if (settings.length > 3 && settings[3].trim().length() > 0)
+			textProcessor = settings[3].trim();
+
+		if (settings.length > 4 && settings[4].trim().length() > 0) {
+			columnNames = new ArrayList<String>();
+			columnLevels = new ArrayList<Integer>();
+			for (String column : LIST_SEPARATOR.split(settings[4].trim())) {
+				String[] headerInfo = COLON.split(column, 2);
+				columnNames.add(headerInfo[0]);
+				try {
+					columnLevels.add(headerInfo.length < 2 ? -1 : Integer.parseInt(headerInfo[1]));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Heading level of column \"" + column + "\" in CSV config \"" + config + "\" is not a number");
+				}
+			}
+		}
+
+		if (settings.length > 5 && settings[5].trim().length() > 0) {
+			for (String filter : LIST_SEPARATOR.split(settings[5].trim())) {
+				String[] colRegex = COLON.split(filter, 2);
+				if (colRegex.length < 2 || colRegex[0].length() == 0)
+					throw new IllegalArgumentException("Filter \"" + filter + "\" in CSV config \"" + config + "\" must be heading:filter");
+
+				predicates.add(Predicate.compile(colRegex[0], colRegex[1], config));
+			}
+		}
+
+		return new CsvView(format, startSkip, endSkip, textProcessor, columnNames, columnLevels, predicates);
+	}
+
+	private static int parseSkip(String setting, String name, String config) {
+		if (setting.trim().length() == 0)
+			return 0;
+
+		try {
+			int skip = Integer.parseInt(setting.trim());
+			if (skip >= 0)
+				return skip;
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+
+		throw new IllegalArgumentException(name + " \"" + setting + "\" in CSV config \"" + config + "\" must be a number of rows");
+	}
+
+	String getFormat() {
+		return format;
+	}
+
+	int getStartSkip() {
+		return startSkip;
+	}
+
+	int getEndSkip() {
+		return endSkip;
+	}
+
+	/**
+	 * @return the extension of the processor converting the markup of the cells, or <code>null</code> if the cells are not converted
+	 */
+	String getTextProcessor() {
+		return textProcessor;
+	}
+
+	/**
+	 * Bind the view to the columns of a file.
+	 *
+	 * @param header the header row of the file
+	 * @return the bound view
+	 */
+	Bound bind(String[] header) {
+		Map<String, Integer> headerIndex = new HashMap<String, Integer>();
+		for (int i = header.length - 1; i >= 0; i--) {
+			headerIndex.put(header[i], i);
+		}
+
+		int[] columns;
+		int[] levels;
+		if (columnNames == null) {
+			// If we haven't provided a list of columns, add them all
+			columns = new int[header.length];
+			levels = new int[header.length];
+			for (int i = 0; i < header.length; i++) {
+				columns[i] = i;
+				levels[i] = -1;
+			}
+		} else {
+			List<Integer> found = new ArrayList<Integer>();
+			List<Integer> foundLevels = new ArrayList<Integer>();
+			for (int i = 0; i < columnNames.size(); i++) {
+				Integer index = headerIndex.get(columnNames.get(i));
+				if (index == null) {
+					lw.warning("Column " + columnNames.get(i) + " not found in " + Arrays.toString(header));
+				} else {
+					found.add(index);
+					foundLevels.add(columnLevels.get(i));
+				}
+			}
+
+			columns = new int[found.size()];
+			levels = new int[found.size()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = found.get(i);
+				levels[i] = foundLevels.get(i);
+			}
+		}
+
+		List<BoundPredicate> bound = new ArrayList<BoundPredicate>();
+		for (Predicate p : predicates) {
+			Integer index = headerIndex.get(p.column);
+			if (index == null)
+				lw.warning("Filter column " + p.column + " not found in " + Arrays.toString(header) + "; the filter is ignored");
+			else
+				bound.add(new BoundPredicate(p, index));
+		}
+
+		return new Bound(columns, levels, bound);
+	}
+
+	@Override
+	public String toString() {
+		return "format: " + format + ", start skip: " + startSkip + ", end skip: " + endSkip + ", text processor: " + textProcessor
+				+ ", columns: " + (columnNames == null ? "all" : columnNames.toString())
+				+ ", filters: " + (predicates.isEmpty() ? "none" : predicates.toString());
+	}
+
+	/**
+	 * A view bound to the columns of a file.
+	 * <p>
+	 * The filters are checked in order of how many rows they have rejected per unit of cost, so the filter most likely to
+	 * reject a row cheaply is checked first. The order is adjusted as rows are checked; as all the filters must accept a
+	 * row, the order does not change which rows are included. A bound view can check rows in parallel.
+	 */
+	static class Bound {
+		/** The number of rows checked between adjustments of the order of the filters */
+		private static final int REORDER_INTERVAL = 1024;
+
+		private final int[] columns;
+		private final int[] levels;
+		private volatile BoundPredicate[] order;
+		private final AtomicInteger checked = new AtomicInteger();
+
+		private Bound(int[] columns, int[] levels, List<BoundPredicate> predicates) {
+			this.columns = columns;
+			this.levels = levels;
+
+			// Until the filters have been seen in action, the cheapest is checked first
+			Collections.sort(predicates, new Comparator<BoundPredicate>() {
+				@Override
+				public int compare(BoundPredicate a, BoundPredicate b) {
+					return a.predicate.cost() - b.predicate.cost();
+				}
+			});
+			this.order = predicates.toArray(new BoundPredicate[predicates.size()]);
+		}
+
+		/**
+		 * @return the indexes of the columns to include, in the order to include them
+		 */
+		int[] getColumns() {
+			return columns;
+		}
+
+		/**
+		 * @return the heading level of each {@link #getColumns() included column}; <code>-1</code> if the column is not a heading
+		 */
+		int[] getLevels() {
+			return levels;
+		}
+
+		/**
+		 * @param row the row
+		 * @return <code>true</code> if all the filters accept the row
+		 */
+		boolean accept(String[] row) {
+			BoundPredicate[] predicates = order;
+			if (predicates.length == 0)
+				return true;
+
+			boolean accepted = true;
+			for (BoundPredicate p : predicates) {
+				if (!p.test(row)) {
+					accepted = false;
+					break;
+				}
+			}
+
+			// Only the thread checking the last row of an interval reorders the filters
+			if (predicates.length > 1 && checked.incrementAndGet() % REORDER_INTERVAL == 0)
+				reorder();
+
+			return accepted;
+		}
+
+		private void reorder() {
+			BoundPredicate[] predicates = order.clone();
+			final Map<BoundPredicate, Double> scores = new HashMap<BoundPredicate, Double>();
+			for (BoundPredicate p : predicates) {
+				scores.put(p, p.rejectionRate() / p.predicate.cost());
+			}
+
+			Arrays.sort(predicates, new Comparator<BoundPredicate>() {
+				@Override
+				public int compare(BoundPredicate a, BoundPredicate b) {
+					return Double.compare(scores.get(b), scores.get(a));
+				}
+			});
+			order = predicates;
+		}
+	}
+
+	/**
+	 * A filter bound to the index of its column.
+	 */
+	private static class BoundPredicate {
+		final Predicate predicate;
+		final int index;
+		private final AtomicInteger evaluated = new AtomicInteger();
+		private final AtomicInteger rejected = new AtomicInteger();
+
+		BoundPredicate(Predicate predicate, int index) {
+			this.predicate = predicate;
+			this.index = index;
+		}
+
+		boolean test(String[] row) {
+			// A missing cell is empty
+			boolean accepted = predicate.test(index < row.length && row[index] != null ? row[index] : "");
+
+			evaluated.incrementAndGet();
+			if (!accepted)
+				rejected.incrementAndGet();
+
+			return accepted;
+		}
+
+		double rejectionRate() {
+			return (rejected.get() + 1.0) / (evaluated.get() + 2.0);
+		}
+	}
+
+	/**
+	 * A filter on the contents of a column.
+	 * <p>
+	 * The filter is one of:
+	 * <ul>
+	 * <li>A numeric comparison: <code>num:&gt;N</code>, <code>num:&gt;=N</code>, <code>num:&lt;N</code>, <code>num:&lt;=N</code> or <code>num:==N</code></li>
+	 * <li>An inclusive numeric range: <code>num:[N..M]</code></li>
+	 * <li>A Regex, which must match the whole cell</li>
+	 * </ul>
+	 * The numeric filters must have the <code>num:</code> prefix, so a filter without it keeps its meaning as a Regex.
+	 * Cells which are not numbers are rejected by the numeric filters.
+	 */
+	private static abstract class Predicate {
+		final String column;
+		final String filter;
+
+		Predicate(String column, String filter) {
+			this.column = column;
+			this.filter = filter;
+		}
+
+		static Predicate compile(String column, String filter, String config) {
+			if (filter.startsWith(NUMERIC_PREFIX)) {
+				String numeric = filter.substring(NUMERIC_PREFIX.length()).trim();
+				
+				Matcher m = RANGE.matcher(numeric);
+				if (m.matches())
+					return new RangePredicate(column, filter, Double.parseDouble(m.group(1)), Double.parseDouble(m.group(2)));
+
+				m = COMPARISON.matcher(numeric);
+				if (m.matches())
+					return new ComparisonPredicate(column, filter, m.group(1), Double.parseDouble(m.group(2)));
+				
+				throw new IllegalArgumentException("Filter \"" + filter + "\" on column " + column + " in CSV config \"" + config + "\" is not a numeric comparison or range");
+			}
+
+			if (!REGEX_META.matcher(filter).find())
+				return new LiteralPredicate(column, filter);
+
+			try {
+				return new RegexPredicate(column, filter, Pattern.compile(filter));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Filter \"" + filter + "\" on column " + column + " in CSV config \"" + config + "\" is not a valid Regex", e);
+			}
+		}
+
+		/**
+		 * @return the relative cost of testing a cell
+		 */
+		abstract int cost();
+
+		abstract boolean test(String cell);
+
+		@Override
+		public String toString() {
+			return column + ":" + filter;
+		}
+	}
+
+	private static class LiteralPredicate extends Predicate {
+		LiteralPredicate(String column, String literal) {
+			super(column, literal);
+		}
+
+		@Override
+		int cost() {
+			return 1;
+		}
+
+		@Override
+		boolean test(String cell) {
+			return filter.equals(cell);
+		}
+	}
+
+	private static abstract class NumericPredicate extends Predicate {
+		NumericPredicate(String column, String filter) {
+			super(column, filter);
+		}
+
+		@Override
+		int cost() {
+			return 2;
+		}
+
+		@Override
+		boolean test(String cell) {
+			double value;
+			try {
+				value = Double.parseDouble(cell.trim());
+			} catch (NumberFormatException e) {
+				return false;
+			}
+
+			return test(value);
+		}
+
+		abstract boolean test(double value);
+	}
+
+	private static class RangePredicate extends NumericPredicate {
+		private final double low;
+		private final double high;
+
+		RangePredicate(String column, String filter, double low, double high) {
+			super(column, filter);
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		boolean test(double value) {
+			return value >= low && value <= high;
+		}
+	}
+
+	private static class ComparisonPredicate extends NumericPredicate {
+		private final String operator;
+		private final double operand;
+
+		ComparisonPredicate(String column, String filter, String operator, double operand) {
+			super(column, filter);
+			this.operator = operator;
+			this.operand = operand;
+		}
+
+		@Override
+		boolean test(double value) {
+			if (operator.equals("<"))
+				return value < operand;
+			if (operator.equals("<="))
+				return value <= operand;
+			if (operator.equals(">"))
+				return value > operand;
+			if (operator.equals(">="))
+				return value >= operand;
+
+			return value == operand;
+		}
+	}
+
+	private static class RegexPredicate extends Predicate {
+		private final Pattern pattern;
+
+		RegexPredicate(String column, String filter, Pattern pattern) {
+			super(column, filter);
+			this.pattern = pattern;
+		}
+
+		@Override
+		int cost() {
+			return 10;
+		}
+
+		@Override
+		boolean test(String cell) {
+			return pattern.matcher(cell).matches();
+		}
+	}
+}
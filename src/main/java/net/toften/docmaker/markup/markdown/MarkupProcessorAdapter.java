@@ -3,9 +3,9 @@ package net.toften.docmaker.markup.markdown;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
 
 import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.markup.FragmentReader;
 import net.toften.docmaker.markup.MarkupProcessor;
 
 /**
@@ -18,11 +18,12 @@ import net.toften.docmaker.markup.MarkupProcessor;
 public abstract class MarkupProcessorAdapter implements MarkupProcessor {
 
 	private String encoding;
+	private FragmentReader fragmentReader = new FragmentReader(null);
 
 	@Override
 	public String process(File inFile, String config, AssemblyHandler handler)
 			throws IOException {
-		String markup = new Scanner(inFile, getEncoding()).useDelimiter("\\A").next();
+		String markup = getFragmentReader().read(inFile);
 
 		return process(markup, config, handler);
 	}
@@ -31,10 +32,17 @@ public abstract class MarkupProcessorAdapter implements MarkupProcessor {
 		return encoding;
 	}
 
+	/**
+	 * @return the reader of the fragments, using the {@link #getEncoding() encoding} of the processor
+	 */
+	protected FragmentReader getFragmentReader() {
+		return fragmentReader;
+	}
+
 	@Override
 	public String process(InputStream is, String config, AssemblyHandler handler)
 			throws IOException {
-		String markup = new Scanner(is, getEncoding()).useDelimiter("\\A").next();
+		String markup = getFragmentReader().read(is);
 
 		return process(markup, config, handler);
 	}
@@ -42,5 +50,6 @@ public abstract class MarkupProcessorAdapter implements MarkupProcessor {
 	@Override
 	public void setEncoding(String encodingString) {
 		this.encoding = encodingString;
+		this.fragmentReader = new FragmentReader(encodingString);
 	}
 }
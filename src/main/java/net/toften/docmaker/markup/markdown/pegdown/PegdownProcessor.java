@@ -1,6 +1,11 @@
 package net.toften.docmaker.markup.markdown.pegdown;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
 
 import net.toften.docmaker.handler.AssemblyHandler;
 import net.toften.docmaker.markup.MarkupProcessor;
@@ -9,13 +14,115 @@ import net.toften.docmaker.markup.markdown.MarkupProcessorAdapter;
 import org.pegdown.Extensions;
 import org.pegdown.PegDownProcessor;
 
+/**
+ * {@link MarkupProcessor} converting Markdown using <a href="https://github.com/sirthias/pegdown">pegdown</a>.
+ * <p>
+ * The pegdown {@link Extensions} to enable can be specified in the <code>config</code> attribute
+ * of the <code>chapter</code> element, as a <code>,</code> separated list of extension names.
+ * For example:
+ *
+ * {@code
+ * 	<chapter repo="common" fragment="intro" config="TABLES,FENCED_CODE_BLOCKS" />
+ * }
+ *
+ * If no config is given, the {@link #DEFAULT_EXTENSIONS default extensions} are used.
+ * <p>
+ * Creating a pegdown parser is expensive, so the parsers are reused. As a parser is not
+ * thread-safe, each thread keeps its own parser for each set of extensions.
+ *
+ * @author thomaslarsen
+ *
+ */
 public class PegdownProcessor extends MarkupProcessorAdapter implements MarkupProcessor {
+	private static final Logger lw = Logger.getLogger(PegdownProcessor.class.getName());
+
+	/**
+	 * The extensions used when the chapter config is not specified
+	 */
+	public static final int DEFAULT_EXTENSIONS = Extensions.TABLES;
+
+	/** The extension flags of each chapter config */
+	private final ConcurrentMap<String, Integer> extensionsByConfig = new ConcurrentHashMap<String, Integer>();
+
+	/** The parsers of the current thread, by extension flags */
+	private final ThreadLocal<Map<Integer, PegDownProcessor>> parsers = new ThreadLocal<Map<Integer, PegDownProcessor>>() {
+		@Override
+		protected Map<Integer, PegDownProcessor> initialValue() {
+			return new HashMap<Integer, PegDownProcessor>();
+		}
+	};
+
 	public String getFileExtension() {
 		return "md";
 	}
 
 	@Override
 	public String process(String inString, String config, AssemblyHandler handler) throws IOException {
-		return new PegDownProcessor(Extensions.TABLES).markdownToHtml(inString);
+		return getParser(getExtensions(config)).markdownToHtml(inString);
+	}
+
+	/**
+	 * Return the parser of the current thread for a set of extensions, creating it if needed.
+	 *
+	 * @param extensions the pegdown {@link Extensions} flags
+	 * @return the parser
+	 */
+	protected PegDownProcessor getParser(int extensions) {
+		Map<Integer, PegDownProcessor> threadParsers = parsers.get();
+		PegDownProcessor parser = threadParsers.get(extensions);
+
+		if (parser == null) {
+			lw.fine("Creating pegdown parser with extensions " + extensions + " for " + Thread.currentThread().getName());
+			parser = new PegDownProcessor(extensions);
+			threadParsers.put(extensions, parser);
+		}
+
+		return parser;
+	}
+
+	/**
+	 * Return the extension flags for a chapter config.
+	 *
+	 * @param config the chapter config; can be <code>null</code>
+	 * @return the pegdown {@link Extensions} flags
+	 */
+	protected int getExtensions(String config) {
+		if (config == null || config.trim().length() == 0)
+			return DEFAULT_EXTENSIONS;
+
+		Integer extensions = extensionsByConfig.get(config);
+		if (extensions == null) {
+			extensions = parseExtensions(config);
+			extensionsByConfig.putIfAbsent(config, extensions);
+		}
+
+		return extensions;
+	}
+
+	/**
+	 * Parse a <code>,</code> separated list of pegdown {@link Extensions} names, for example
+	 * <code>TABLES,FENCED_CODE_BLOCKS</code>.
+	 * <p>
+	 * Names that are not pegdown extensions are ignored with a warning.
+	 *
+	 * @param config the list of extension names
+	 * @return the combined extension flags
+	 */
+	public static int parseExtensions(String config) {
+		int extensions = Extensions.NONE;
+
+		for (String name : config.trim().split("\\s*,\\s*")) {
+			try {
+				extensions |= Extensions.class.getField(name.toUpperCase()).getInt(null);
+			} catch (NoSuchFieldException e) {
+				lw.warning("Unknown pegdown extension " + name + " in config \"" + config + "\" ignored");
+			} catch (IllegalAccessException e) {
+				lw.warning("Unknown pegdown extension " + name + " in config \"" + config + "\" ignored");
+			}
+		}
+
+		lw.fine("Pegdown extensions for config \"" + config + "\": " + extensions);
+
+		return extensions;
 	}
 }
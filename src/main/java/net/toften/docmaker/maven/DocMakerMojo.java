@@ -98,6 +98,79 @@ public class DocMakerMojo extends AbstractMojo {
     
     @Parameter(defaultValue = "${project.filters}")
     private String[] filters;
+    
+    /**
+     * The number of TOC files to process in parallel, when {@link #toc} is a directory.
+     */
+    @Parameter(defaultValue = "1")
+    private int threads;
+    
+    /**
+     * The number of threads used to convert the chapter fragments of a TOC; 0 converts them while the TOC is parsed.
+     */
+    @Parameter(defaultValue = "0")
+    private int chapterThreads;
+    
+    /**
+     * The number of threads used to render the rows of CSV tables; 0 renders them while the chapter is converted.
+     */
+    @Parameter(defaultValue = "0")
+    private int csvThreads;
+    
+    /**
+     * The number of chapters held in memory while the chapters of a TOC are streamed; 0 holds all the chapters in memory.
+     */
+    @Parameter(defaultValue = "0")
+    private int streamingWindow;
+    
+    /**
+     * The size of the chapter HTML of a TOC, in millions of characters, above which the chapters are moved
+     * to a memory-mapped file; 0 always holds them in memory.
+     */
+    @Parameter(defaultValue = "256")
+    private long chapterStoreThreshold;
+    
+    /**
+     * Cache the converted fragments in a persistent cache under the {@link #outputDir}.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean conversionCache;
+    
+    /**
+     * The maximum size of the conversion cache, in megabytes.
+     */
+    @Parameter(defaultValue = "256")
+    private long conversionCacheSize;
+    
+    /**
+     * The maximum size of the in-memory cache of fragments shared between TOCs, in megabytes; 0 disables it.
+     */
+    @Parameter(defaultValue = "64")
+    private long fragmentCacheSize;
+    
+    /**
+     * Write a report of the time spent by each stage of the build next to the output of each TOC.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean buildReport;
+    
+    /**
+     * Write the interim HTML file next to the output, for debugging.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean keepInterimFile;
+    
+    /**
+     * Fail the build if a key can not be resolved.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean strictKeys;
+    
+    /**
+     * Build all the TOCs, even if their output is up to date.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean force;
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
@@ -113,6 +186,17 @@ public class DocMakerMojo extends AbstractMojo {
             DocMakerMain dm = new DocMakerMain(Level.FINEST, this.encoding, this.outputDir, this.fragmentURI, this.markupProcessors, this.markupProcessorClassname,
                     this.outputProcessors, this.assemblyHandlerClassname, this.tocFileExt,
                     Arrays.asList(cssFilePaths), this.defaultExtension, Arrays.asList(filters));
+            dm.setThreads(this.threads);
+            dm.setChapterThreads(this.chapterThreads);
+            dm.setCsvThreads(this.csvThreads);
+            dm.setStreamingWindow(this.streamingWindow);
+            dm.setChapterStoreThreshold(this.chapterStoreThreshold);
+            dm.setConversionCache(this.conversionCache, this.conversionCacheSize);
+            dm.setFragmentCacheSize(this.fragmentCacheSize);
+            dm.setBuildReport(this.buildReport);
+            dm.setKeepInterimFile(this.keepInterimFile);
+            dm.setStrictKeys(this.strictKeys);
+            dm.setForce(this.force);
     		
     		dm.run(this.toc);
         } catch (DocMakerException e) {
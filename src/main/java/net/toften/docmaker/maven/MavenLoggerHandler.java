@@ -4,6 +4,8 @@ import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
+import net.toften.docmaker.DocMakerMain;
+
 import org.apache.maven.plugin.logging.Log;
 
 public class MavenLoggerHandler extends Handler {
@@ -17,15 +19,21 @@ public class MavenLoggerHandler extends Handler {
 	@Override
 	public void publish(LogRecord record) {
 		Level level = record.getLevel();
+		String message = record.getMessage();
+		
+		// Tag messages from parallel TOC processing with the worker (and TOC) they came from
+		String threadName = Thread.currentThread().getName();
+		if (threadName.startsWith(DocMakerMain.WORKER_THREAD_PREFIX))
+			message = "[" + threadName + "] " + message;
 		
 		if (level == Level.INFO)
-			l.info(record.getMessage(), record.getThrown());
+			l.info(message, record.getThrown());
 		else if (level == Level.SEVERE)
-			l.error(record.getMessage(), record.getThrown());
+			l.error(message, record.getThrown());
 		else if (level == Level.WARNING)
-			l.warn(record.getMessage(), record.getThrown());
+			l.warn(message, record.getThrown());
 		else if (level == Level.FINE || level == Level.FINER || level == Level.FINEST)
-			l.debug(record.getMessage(), record.getThrown());
+			l.debug(message, record.getThrown());
 	}
 
 	@Override
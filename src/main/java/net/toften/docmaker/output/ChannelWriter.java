@@ -0,0 +1,288 @@
+package net.toften.docmaker.output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * A {@link Writer} encoding the text into a large buffer, which is written to a channel, such as a
+ * {@link FileChannel} or the sink of a {@link java.nio.channels.Pipe}, when it is full.
+ * <p>
+ * Text encoded as UTF-8 is encoded directly into the buffer; other encodings use a {@link CharsetEncoder}.
+ * The buffer and the encoder are kept when the writer is closed, so the writer can be
+ * {@link #open(File, Charset) opened} again to write another file, or another channel.
+ * <p>
+ * The writer is not thread-safe.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class ChannelWriter extends Writer {
+	/**
+	 * The default size of the buffer, in bytes
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private WritableByteChannel channel;
+	private Charset charset;
+	private CharsetEncoder encoder;
+	private boolean utf8;
+
+	/** A high surrogate written at the end of the previous text, if any */
+	private char highSurrogate;
+
+	/**
+	 * Create a writer with a buffer of the {@link #DEFAULT_BUFFER_SIZE default size}.
+	 */
+	public ChannelWriter() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize the size of the buffer, in bytes
+	 */
+	public ChannelWriter(int bufferSize) {
+		if (bufferSize < 4)
+			throw new IllegalArgumentException("Buffer size must be at least 4 bytes, was " + bufferSize);
+
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Open a file to write to. Any existing contents of the file are replaced.
+	 *
+	 * @param file the file
+	 * @param charset the encoding of the file
+	 * @throws IOException if the file can not be opened
+	 */
+	public void open(File file, Charset charset) throws IOException {
+		open(new FileOutputStream(file).getChannel(), charset);
+	}
+
+	/**
+	 * Open a channel to write to. The channel is closed when the writer is closed.
+	 *
+	 * @param channel the channel
+	 * @param charset the encoding of the text written to the channel
+	 */
+	public void open(WritableByteChannel channel, Charset charset) {
+		if (this.channel != null)
+			throw new IllegalStateException("The writer is already open");
+
+		if (encoder == null || !encoder.charset().equals(charset))
+			encoder = charset.newEncoder();
+		else
+			encoder.reset();
+
+		this.charset = charset;
+		utf8 = charset.equals(UTF8);
+		highSurrogate = 0;
+		buffer.clear();
+		this.channel = channel;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(String.valueOf((char) c), 0, 1);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		write(CharBuffer.wrap(cbuf), off, off + len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		write((CharSequence) str, off, off + len);
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (csq == null)
+			csq = "null";
+
+		write(csq, 0, csq.length());
+
+		return this;
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null)
+			csq = "null";
+
+		write(csq, start, end);
+
+		return this;
+	}
+
+	private void write(CharSequence s, int start, int end) throws IOException {
+		if (channel == null)
+			throw new IOException("The writer is not open");
+
+		if (utf8) {
+			encodeUtf8(s, start, end);
+		} else {
+			CharBuffer in = CharBuffer.wrap(s, start, end);
+			if (highSurrogate != 0 && in.hasRemaining()) {
+				CharBuffer pair = CharBuffer.wrap(new char[] { highSurrogate, in.get() });
+				highSurrogate = 0;
+				encode(pair, false);
+			}
+
+			encode(in, false);
+
+			// Only a high surrogate is left over, waiting for the low surrogate in the next text written
+			if (in.hasRemaining())
+				highSurrogate = in.get();
+		}
+	}
+
+	private void encodeUtf8(CharSequence s, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+
+			if (buffer.remaining() < 4)
+				drain();
+
+			if (highSurrogate != 0) {
+				if (!Character.isLowSurrogate(c))
+					throw new MalformedInputException(1);
+
+				int cp = Character.toCodePoint(highSurrogate, c);
+				highSurrogate = 0;
+				buffer.put((byte) (0xf0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c)) {
+				// Wait for the low surrogate, which may be in the next text written
+				highSurrogate = c;
+			} else if (Character.isLowSurrogate(c)) {
+				throw new MalformedInputException(1);
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(in, buffer, endOfInput);
+			if (result.isOverflow()) {
+				drain();
+			} else if (result.isUnderflow()) {
+				return;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	/**
+	 * Copy the contents of a file into the channel being written, without decoding and encoding it.
+	 * <p>
+	 * The contents must already be in the {@link #getCharset() encoding} of the file being written.
+	 *
+	 * @param file the file to copy
+	 * @return the number of bytes copied
+	 * @throws IOException if the file can not be copied
+	 */
+	public long transferFrom(File file) throws IOException {
+		if (channel == null)
+			throw new IOException("The writer is not open");
+
+		if (highSurrogate != 0)
+			throw new MalformedInputException(1);
+
+		drain();
+
+		FileChannel in = new FileInputStream(file).getChannel();
+		try {
+			long size = in.size();
+			long position = 0;
+			while (position < size)
+				position += in.transferTo(position, size - position, channel);
+
+			return size;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the encoding of the file being written, or last written
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Write the contents of the buffer to the channel.
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Write the buffered text to the file.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (channel != null)
+			drain();
+	}
+
+	/**
+	 * Write the buffered text to the file, and close it. The writer can then be {@link #open(File, Charset) opened}
+	 * to write another file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+
+		try {
+			if (highSurrogate != 0)
+				throw new MalformedInputException(1);
+
+			if (!utf8) {
+				encode(CharBuffer.allocate(0), true);
+				while (encoder.flush(buffer).isOverflow())
+					drain();
+			}
+
+			drain();
+		} catch (CharacterCodingException e) {
+			buffer.clear();
+			throw e;
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+}
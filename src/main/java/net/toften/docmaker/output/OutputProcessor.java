@@ -8,7 +8,9 @@ import net.toften.docmaker.toc.TOC;
  * Interface describing the processor of the interim output file.
  * <p>
  * The {@link OutputProcessor} is responsible for converting the interim file into
- * the appropriate format and write it to the specified file or files.
+ * the appropriate format and write it to the specified file or files. Each file written should be
+ * reported to {@link net.toften.docmaker.handler.BuildContext#outputWritten(String, File)}, so a build
+ * is not skipped as up to date once the file has been removed.
  * 
  * @author tlarsen
  *
@@ -1,26 +1,39 @@
 package net.toften.docmaker.output;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.toften.docmaker.DocPart;
-import net.toften.docmaker.postprocessors.ApplyKeyValue;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.report.BuildReport.Timer;
 import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.ChapterSection;
 import net.toften.docmaker.toc.ElementsSection;
 import net.toften.docmaker.toc.GeneratedSection;
+import net.toften.docmaker.toc.PassthroughChapter;
 import net.toften.docmaker.toc.Section;
 import net.toften.docmaker.toc.TOC;
 
@@ -28,15 +41,95 @@ public class SingleInterimFile implements InterimFileHandler {
 	private static Logger lw = Logger.getLogger(SingleInterimFile.class.getName());	
 
 	private File outputFile;
-	private OutputStreamWriter htmlFile;
+	private Writer htmlFile;
+	
+	/**
+	 * Writes every interim document, whether it is kept as the interim file or piped to the parser.
+	 * Kept between the documents written by an instance, so the buffer and encoder of the writer are reused
+	 */
+	private ChannelWriter channelWriter;
+	
+	/**
+	 * Reads the interim document from a pipe, while it is written by another thread.
+	 * <p>
+	 * Closing the reader waits for the document to be written, and reports the exception thrown while it was
+	 * written, if any. The exception is not reported if the reader is closed before it has read to the end of
+	 * the document, as the writer then fails because the pipe has been closed. The reader may be closed more
+	 * than once, as the parser reading it may close it too.
+	 */
+	private static class PipeReader extends InputStreamReader {
+		private final Future<Void> writing;
+		private boolean ended;
+		private boolean closed;
+		
+		PipeReader(Pipe.SourceChannel source, Charset charset, Future<Void> writing) {
+			super(Channels.newInputStream(source), charset);
+			this.writing = writing;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			ended |= c < 0;
+			return c;
+		}
+		
+		@Override
+		public int read(char[] cbuf, int offset, int length) throws IOException {
+			int n = super.read(cbuf, offset, length);
+			ended |= n < 0;
+			return n;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			
+			closed = true;
+			boolean abandoned = !ended;
+			try {
+				super.close();
+			} finally {
+				try {
+					writing.get();
+				} catch (ExecutionException e) {
+					if (!abandoned)
+						throw new IOException("Could not write the interim document", e.getCause());
+					
+					lw.fine("Interim document abandoned by its reader: " + e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the interim document to be written");
+				}
+			}
+		}
+	}
 	
 	@Override
 	public void init(final File interimFileDir, final String filename, final String encodingString) throws IOException {
-		this.outputFile = new File(interimFileDir, filename + "." + getFileExtension());
-		this.htmlFile = new OutputStreamWriter(new FileOutputStream(outputFile), Charset.forName(encodingString).newEncoder());
+		open(getInterimFile(interimFileDir, filename), encodingString);
+	}
+	
+	private void open(File file, String encodingString) throws IOException {
+		this.outputFile = file;
+		if (channelWriter == null)
+			channelWriter = new ChannelWriter();
+		channelWriter.open(outputFile, Charset.forName(encodingString));
+		this.htmlFile = channelWriter;
 
 		lw.info("Initialised interim file: " + outputFile.getCanonicalPath() + " using encoding: " + encodingString);
-}
+	}
+	
+	private void open(WritableByteChannel channel, String encodingString) {
+		this.outputFile = null;
+		if (channelWriter == null)
+			channelWriter = new ChannelWriter();
+		channelWriter.open(channel, Charset.forName(encodingString));
+		this.htmlFile = channelWriter;
+		
+		lw.fine("Initialised interim document using encoding: " + encodingString);
+	}
 
 	@Override
 	public void close() throws IOException {
@@ -58,28 +151,113 @@ public class SingleInterimFile implements InterimFileHandler {
 		return "html";
 	}
 	
+	/**
+	 * Write the interim HTML file of a TOC.
+	 * 
+	 * @param interimFileDir the directory to write the file to
+	 * @param filename the name of the file, without extension
+	 * @param encoding the encoding of the file
+	 * @param t the TOC
+	 * @return the interim file
+	 */
 	protected File buildInterimFile(File interimFileDir, String filename, String encoding, TOC t) throws IOException, URISyntaxException {
-		init(interimFileDir, filename, encoding);
+		return writeInterimFile(getInterimFile(interimFileDir, filename), encoding, t);
+	}
+	
+	/**
+	 * Build the interim HTML document of a TOC, and open it for reading.
+	 * <p>
+	 * Unless the interim file is requested, which is useful when debugging the output, the document is not
+	 * written to disk. It is written to a pipe by another thread, and parsed from the pipe as it is written,
+	 * so neither the document nor more than a buffer of it is held in memory.
+	 * 
+	 * @param interimFileDir the directory to write the interim file to
+	 * @param filename the name of the interim file, without extension
+	 * @param encoding the encoding of the interim file
+	 * @param t the TOC
+	 * @param writeFile <code>true</code> to write the document to the interim file, and read it from there
+	 * @return a reader of the document, which must be closed; closing it reports an exception thrown while the
+	 * 	document was written
+	 */
+	protected Reader buildInterimDocument(File interimFileDir, String filename, final String encoding, final TOC t, boolean writeFile) throws IOException, URISyntaxException {
+		if (writeFile)
+			return new InputStreamReader(new FileInputStream(buildInterimFile(interimFileDir, filename, encoding, t)), Charset.forName(encoding));
 		
+		final Pipe pipe = Pipe.open();
+		FutureTask<Void> writing = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					writeInterimDocument(pipe.sink(), encoding, t);
+				} finally {
+					// The reader must see the end of the document, even if it could not be written
+					pipe.sink().close();
+				}
+				
+				return null;
+			}
+		});
+		Thread writer = new Thread(writing, "docmaker-interim-" + filename);
+		writer.setDaemon(true);
+		writer.start();
+		
+		return new PipeReader(pipe.source(), Charset.forName(encoding), writing);
+	}
+	
+	private void writeInterimDocument(WritableByteChannel channel, String encoding, TOC t) throws IOException, URISyntaxException {
+		Timer timer = BuildReport.start(t.getBuildReport(), t.getTocFileName(), BuildReport.INTERIM_FILE, null, getClass().getName());
+		open(channel, encoding);
+		try {
+			writeInterimDocument(encoding, t);
+		} finally {
+			close();
+		}
+		timer.stop();
+	}
+	
+	private File writeInterimFile(File file, String encoding, TOC t) throws IOException, URISyntaxException {
+		Timer timer = BuildReport.start(t.getBuildReport(), t.getTocFileName(), BuildReport.INTERIM_FILE, null, getClass().getName());
+		open(file, encoding);
+		try {
+			writeInterimDocument(encoding, t);
+		} finally {
+			close();
+		}
+		timer.stop(-1, file.length());
+		if (t.getBuildContext() != null)
+			t.getBuildContext().outputWritten(t.getTocFileName(), file);
+		
+		return file;
+	}
+	
+	/**
+	 * @return the interim file, which has only been written if it was requested
+	 */
+	protected File getInterimFile(File interimFileDir, String filename) {
+		return new File(interimFileDir, filename + "." + getFileExtension());
+	}
+	
+	private void writeInterimDocument(String encoding, TOC t) throws IOException, URISyntaxException {
 		Properties 							metaData 		= t.getMetaData();
 		Map<String, Map<String, String>> 	htmlMeta 		= t.getHtmlMeta();
 		List<GeneratedSection> 				headerSections 	= t.getHeaderSections();
 		List<Section> 						sections 		= t.getSections();
+		Writer 								out 			= htmlFile;
 		
-		writeToOutputFile(DocPart.DOCUMENT.preElement());
+		DocPart.DOCUMENT.appendPreElement(out);
 		
-		writeToOutputFile(DocPart.HEADER.preElement());
-		writeToOutputFile("<title>" + ApplyKeyValue.resolve(metaData, t.getDocumentTitle()) + "</title>\n");
+		DocPart.HEADER.appendPreElement(out);
+		out.append("<title>").append(t.getPropertyResolver().resolve(t.getDocumentTitle())).append("</title>\n");
 		lw.fine("Writing " + htmlMeta.size() + " keys of metadata");
 		for (String htmlHeadKey : htmlMeta.keySet()) {
 			lw.fine("Writing key: " + htmlHeadKey);
-			writeToOutputFile("<" + htmlHeadKey);
+			out.append('<').append(htmlHeadKey);
 			for (Entry<String, String> metaAttr : htmlMeta.get(htmlHeadKey).entrySet()) {
 				// Apply any potential property value to the metadata
-				String value = ApplyKeyValue.resolve(t.getMetaData(), metaAttr.getValue());
-				writeToOutputFile(" " + metaAttr.getKey() + "=\"" + value + "\"");
+				String value = t.getPropertyResolver().resolve(metaAttr.getValue());
+				out.append(' ').append(metaAttr.getKey()).append("=\"").append(value).append('"');
 			}
-			writeToOutputFile(" />\n");
+			out.append(" />\n");
 		}
 		
 		// Embed stylesheets
@@ -95,42 +273,44 @@ public class SingleInterimFile implements InterimFileHandler {
 				InputStream is = cssURI.toURL().openStream();
 				String text = new Scanner(is, encoding).useDelimiter("\\A").next();
 				// Apply any potential property value to the metadata
-				text = ApplyKeyValue.resolve(t.getMetaData(), text);
-				writeToOutputFile("<style>\n");
-				writeToOutputFile(text + "\n");
-				writeToOutputFile("</style>\n");
+				text = t.getPropertyResolver().resolve(text);
+				out.append("<style>\n");
+				out.append(text).append('\n');
+				out.append("</style>\n");
 			}
 		}
 		
 		for (GeneratedSection section : headerSections) {
-			writeToOutputFile(DocPart.HSECTION.preElement());
-			writeToOutputFile(section.getDivOpenTag(t));
+			DocPart.HSECTION.appendPreElement(out);
+			section.appendDivOpenTag(t, out);
 			writeToOutputFile(section.getAsHtml(t));
-			writeToOutputFile(section.getDivCloseTag());
-			writeToOutputFile(DocPart.HSECTION.postElement());
+			section.appendDivCloseTag(out);
+			DocPart.HSECTION.appendPostElement(out);
 		}
-		writeToOutputFile(DocPart.HEADER.postElement());
+		DocPart.HEADER.appendPostElement(out);
 		
-		writeToOutputFile(DocPart.SECTIONS.preElement());
+		DocPart.SECTIONS.appendPreElement(out);
 		
 		// Write document metadata
 		lw.fine("Writing " + metaData.size() + " metadata records.");
-		writeToOutputFile(DocPart.PROPERTIES.preElement());
+		DocPart.PROPERTIES.appendPreElement(out);
 		for (Map.Entry<Object, Object> m : metaData.entrySet()) {
 			// Apply any potential property value to the metadata
 			String key = m.getKey().toString();
-			String value = ApplyKeyValue.resolve(t.getMetaData(), m.getValue().toString());
-			lw.fine("Writing metadata: " + key + " = " + value + " (" + m.getValue().toString() + ")");
-			writeToOutputFile(DocPart.PROPERTY.preElement(new String[][]{{ "key", key}}, true));
-			writeToOutputFile(value + "\n");
-			writeToOutputFile(DocPart.PROPERTY.postElement());
+			String value = t.getPropertyResolver().resolve(m.getValue().toString());
+			if (lw.isLoggable(Level.FINE))
+				lw.fine("Writing metadata: " + key + " = " + value + " (" + m.getValue().toString() + ")");
+			DocPart.PROPERTY.appendPreElement(out, new String[][]{{ "key", key}}, true);
+			out.append(value).append('\n');
+			DocPart.PROPERTY.appendPostElement(out);
 		}
-		writeToOutputFile(DocPart.PROPERTIES.postElement());
+		DocPart.PROPERTIES.appendPostElement(out);
 
 		for (Section section : sections) {
-			lw.fine("Writing " + section.getDocPart().name() + " " + section.getName() + " (" + section.getIdAttr(t) + ")");
-			writeToOutputFile(section.getDocPart().preElement());
-			writeToOutputFile(section.getDivOpenTag(t));
+			if (lw.isLoggable(Level.FINE))
+				lw.fine("Writing " + section.getDocPart().name() + " " + section.getName() + " (" + section.getIdAttr(t) + ")");
+			section.getDocPart().appendPreElement(out);
+			section.appendDivOpenTag(t, out);
 			switch (section.getDocPart()) {
 			case SECTION:
 				writeContentSection((ChapterSection)section, metaData, t);
@@ -144,40 +324,63 @@ public class SingleInterimFile implements InterimFileHandler {
 				writePseudoSection((GeneratedSection)section, t);
 				break;
 			}
-			writeToOutputFile(section.getDivCloseTag());
-			writeToOutputFile(section.getDocPart().postElement());
+			section.appendDivCloseTag(out);
+			section.getDocPart().appendPostElement(out);
 		}
-		writeToOutputFile(DocPart.SECTIONS.postElement());
+		DocPart.SECTIONS.appendPostElement(out);
 		
-		writeToOutputFile(DocPart.DOCUMENT.postElement());
-		
-		close();
-		
-		return outputFile;
+		DocPart.DOCUMENT.appendPostElement(out);
 	}
 
 	private void writeContentSection(ChapterSection section, Properties metaData, TOC t) throws IOException, URISyntaxException {
-		writeToOutputFile(DocPart.CHAPTERS.preElement());
+		Writer out = htmlFile;
+		
+		DocPart.CHAPTERS.appendPreElement(out);
 		for (Chapter c : section.getChapters()) {
-			lw.fine("Writing CHAPTER: " + c.getFragmentURI().toString() + " (" + c.getIdAttr(t) + ")");
-			writeToOutputFile(DocPart.CHAPTER.preElement());
+			if (lw.isLoggable(Level.FINE))
+				lw.fine("Writing CHAPTER: " + c.getFragmentURI().toString() + " (" + c.getIdAttr(t) + ")");
+			DocPart.CHAPTER.appendPreElement(out);
 			
-			writeToOutputFile(c.getDivOpenTag(t));
-			writeToOutputFile(c.getAsHtml(t));
-			writeToOutputFile(c.getDivCloseTag());
+			c.appendDivOpenTag(t, out);
+			if (!transferChapter(c))
+				writeToOutputFile(c.getAsHtml(t));
+			c.appendDivCloseTag(out);
 			
-			writeToOutputFile(DocPart.CHAPTER.postElement());
+			DocPart.CHAPTER.appendPostElement(out);
 		}
-		writeToOutputFile(DocPart.CHAPTERS.postElement());
+		DocPart.CHAPTERS.appendPostElement(out);
 		// A contents section might also contain elements
 		writeMetaElements(section, metaData, t);
 	}
 
+	/**
+	 * Copy the fragment of a {@link PassthroughChapter} directly into the interim document, if it is a local file
+	 * in the encoding of the interim document.
+	 * 
+	 * @return <code>true</code> if the fragment was copied
+	 */
+	private boolean transferChapter(Chapter c) throws IOException {
+		if (!(c instanceof PassthroughChapter))
+			return false;
+		
+		PassthroughChapter pc = (PassthroughChapter) c;
+		File fragmentFile = pc.getFragmentFile();
+		if (fragmentFile == null || !pc.getEncoding().equals(channelWriter.getCharset()))
+			return false;
+		
+		long bytes = channelWriter.transferFrom(fragmentFile);
+		lw.fine("Copied " + bytes + " bytes of CHAPTER " + c.getName() + " from " + fragmentFile);
+		
+		return true;
+	}
+
 	private void writeMetaElements(ElementsSection section, Properties metaData, TOC t) throws IOException {
+		Writer out = htmlFile;
+		
 		for (String[] e : section.getElements()) {
-			writeToOutputFile(DocPart.ELEMENT.preElement(new String[][]{{ "key", e[0]}}, true));
-			writeToOutputFile(ApplyKeyValue.resolve(metaData, e[1]) + "\n");
-			writeToOutputFile(DocPart.ELEMENT.postElement());
+			DocPart.ELEMENT.appendPreElement(out, new String[][]{{ "key", e[0]}}, true);
+			out.append(t.getPropertyResolver().resolve(e[1])).append('\n');
+			DocPart.ELEMENT.appendPostElement(out);
 		}
 	}
 	
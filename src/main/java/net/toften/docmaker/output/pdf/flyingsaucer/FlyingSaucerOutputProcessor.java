@@ -3,21 +3,40 @@ package net.toften.docmaker.output.pdf.flyingsaucer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 
 import net.toften.docmaker.output.OutputProcessor;
 import net.toften.docmaker.output.SingleInterimFile;
+import net.toften.docmaker.report.BuildReport;
+import net.toften.docmaker.report.BuildReport.Timer;
 import net.toften.docmaker.toc.TOC;
 
+import org.w3c.dom.Document;
 import org.xhtmlrenderer.pdf.ITextRenderer;
+import org.xhtmlrenderer.resource.XMLResource;
 
 import com.lowagie.text.pdf.PdfWriter;
 
+/**
+ * Renders the interim HTML document as a PDF using Flying Saucer.
+ * <p>
+ * The interim document is piped into the parser building the DOM handed to the renderer while it is being
+ * written, so the document is neither written to disk nor held in memory as text. It is only written to the
+ * interim file if the {@link net.toften.docmaker.handler.BuildContext#isKeepInterimFile() build context}
+ * asks for it.
+ * <p>
+ * A new {@link ITextRenderer} is created for each document. The renderer can not render a second document
+ * correctly, as its output device keeps adding the bookmarks and metadata of every document it has rendered.
+ *
+ * @author thomaslarsen
+ *
+ */
 public class FlyingSaucerOutputProcessor extends SingleInterimFile implements OutputProcessor {
 	public void process(File outputDir, String outputName, String encoding, TOC t) throws Exception {
 		if (outputName == null)
 			throw new NullPointerException("Output filename is null");
 		
-		File inFile = buildInterimFile(outputDir, outputName, encoding, t);
+		String baseURL = getInterimFile(outputDir, outputName).toURI().toURL().toExternalForm();
 		
 		File outputFile;
 		
@@ -26,13 +45,31 @@ public class FlyingSaucerOutputProcessor extends SingleInterimFile implements Ou
 		} else
 			outputFile = outputDir;
 		
-	    OutputStream os = new FileOutputStream(outputFile);
+		// The interim document is only written to the interim file when debugging
+		Document document;
+		Reader interimDocument = buildInterimDocument(outputDir, outputName, encoding, t, t.getBuildContext().isKeepInterimFile());
+		try {
+			document = XMLResource.load(interimDocument).getDocument();
+		} finally {
+			interimDocument.close();
+		}
 		
-	    ITextRenderer renderer = new ITextRenderer();
-	    renderer.setDocument(inFile);
-	    renderer.setPDFVersion(PdfWriter.VERSION_1_7);
-	    renderer.layout();
-	    renderer.createPDF(os);
-	    os.close();
+	    OutputStream os = new FileOutputStream(outputFile);
+	    Timer timer;
+	    try {
+	    	timer = BuildReport.start(t.getBuildReport(), t.getTocFileName(), BuildReport.PDF_LAYOUT, null, null);
+		    ITextRenderer renderer = new ITextRenderer();
+		    renderer.setDocument(document, baseURL);
+		    renderer.setPDFVersion(PdfWriter.VERSION_1_7);
+		    renderer.layout();
+		    timer.stop();
+		    
+		    timer = BuildReport.start(t.getBuildReport(), t.getTocFileName(), BuildReport.PDF_WRITE, null, null);
+		    renderer.createPDF(os);
+	    } finally {
+	    	os.close();
+	    }
+	    timer.stop(-1, outputFile.length());
+	    t.getBuildContext().outputWritten(t.getTocFileName(), outputFile);
 	}
 }
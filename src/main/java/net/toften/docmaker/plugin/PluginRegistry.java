@@ -0,0 +1,71 @@
+package net.toften.docmaker.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Creates the plugins, such as the {@link net.toften.docmaker.handler.AssemblyHandler} and
+ * {@link net.toften.docmaker.output.OutputProcessor}s, used to process the documents of a run.
+ * <p>
+ * The class of a plugin is resolved once, the first time the plugin is {@link #acquire(Class, String) acquired}.
+ * How instances are created depends on what the plugin class declares:
+ * <ul>
+ * <li>{@link ThreadSafe} plugins are created once, and the same instance is returned to every caller</li>
+ * <li>other plugins are created every time they are acquired</li>
+ * </ul>
+ * The registry is thread-safe.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class PluginRegistry {
+	private static final Logger lw = Logger.getLogger(PluginRegistry.class.getName());
+
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	private final ConcurrentMap<Class<?>, Object> shared = new ConcurrentHashMap<Class<?>, Object>();
+
+	/**
+	 * Get an instance of a plugin.
+	 *
+	 * @param type the interface the plugin must implement
+	 * @param className the name of the class implementing the plugin
+	 * @return an instance of the plugin
+	 * @throws Exception if the class can not be found or instantiated, or does not implement the interface
+	 */
+	public <K> K acquire(Class<K> type, String className) throws Exception {
+		Class<?> pluginClass = resolve(type, className);
+
+		if (ThreadSafe.class.isAssignableFrom(pluginClass)) {
+			Object instance = shared.get(pluginClass);
+			if (instance == null) {
+				Object created = pluginClass.newInstance();
+				instance = shared.putIfAbsent(pluginClass, created);
+				if (instance == null) {
+					lw.fine("Sharing a single instance of " + className);
+					instance = created;
+				}
+			}
+
+			return type.cast(instance);
+		}
+
+		return type.cast(pluginClass.newInstance());
+	}
+
+	/**
+	 * Resolve the class of a plugin, and check that it implements the expected interface.
+	 */
+	private Class<?> resolve(Class<?> type, String className) throws ClassNotFoundException {
+		Class<?> pluginClass = classes.get(className);
+		if (pluginClass == null) {
+			pluginClass = Class.forName(className);
+			classes.putIfAbsent(className, pluginClass);
+		}
+
+		if (!type.isAssignableFrom(pluginClass))
+			throw new ClassCastException(className + " does not implement " + type.getName());
+
+		return pluginClass;
+	}
+}
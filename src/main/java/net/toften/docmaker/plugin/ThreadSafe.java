@@ -0,0 +1,13 @@
+package net.toften.docmaker.plugin;
+
+/**
+ * Marker interface for plugins which can be used by several documents at the same time.
+ * <p>
+ * The {@link PluginRegistry} creates a single instance of a thread-safe plugin, which is
+ * shared by every document processed in the run.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface ThreadSafe {
+}
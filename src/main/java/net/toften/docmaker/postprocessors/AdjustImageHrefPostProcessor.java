@@ -2,6 +2,9 @@ package net.toften.docmaker.postprocessors;
 
 import java.util.regex.Matcher;
 
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
+
 /**
  * Adjusts the href of image tags, so that they are relative to the interim file.
  * </br>
@@ -28,7 +31,9 @@ import java.util.regex.Matcher;
  * @author thomaslarsen
  *
  */
-public class AdjustImageHrefPostProcessor extends RegexPostProcessor {
+public class AdjustImageHrefPostProcessor extends RegexPostProcessor implements AttributeHandler {
+	private static final String[] ATTRIBUTE_NAMES = { "src" };
+
 	@Override
 	protected String getRegex() {
 		return "<img(.*?)src=\"(.*?)\"(.*?)/>";
@@ -36,9 +41,23 @@ public class AdjustImageHrefPostProcessor extends RegexPostProcessor {
 
 	@Override
 	protected String getReplacement(Matcher m) {
-		String href = getCurrentChapter().getRepo().getURI().resolve("./" + m.group(2)).normalize().getPath();
+		String href = adjustHref(getCurrentChapter(), m.group(2));
 		
 		return	"<img$1src=\"" + href + "\"$3/>";
 	}
 
+	@Override
+	public String[] getAttributeNames() {
+		return ATTRIBUTE_NAMES;
+	}
+
+	@Override
+	public String handleAttribute(HtmlTag tag, String name, String value, Chapter chapter, TOC t) {
+		return "img".equals(tag.getName()) ? adjustHref(chapter, value) : value;
+	}
+
+	private static String adjustHref(Chapter chapter, String href) {
+		return chapter.getRepo().getURI().resolve("./" + href).normalize().getPath();
+	}
+
 }
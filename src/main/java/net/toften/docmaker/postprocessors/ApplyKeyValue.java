@@ -3,8 +3,8 @@ package net.toften.docmaker.postprocessors;
 import java.util.Properties;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.TOC;
 
 /**
@@ -12,42 +12,30 @@ import net.toften.docmaker.toc.TOC;
  * <p>
  * It will look for a string with the pattern: "${<key>}" and replace this
  * with a value looked up in the {@link TOC#getMetaData() TOC metadata}.
+ * <p>
+ * When run by the {@link HtmlRewriter}, the keys in the text and in the attribute values are replaced.
  * 
  * @author thomaslarsen
  *
  */
-public class ApplyKeyValue extends RegexPostProcessor {
+public class ApplyKeyValue extends RegexPostProcessor implements TextHandler {
 	private static Logger lw = Logger.getLogger(ApplyKeyValue.class.getName());	
 
 	private static final String REGEX = "\\$\\{(.*?)\\}";
-    private static final Pattern p = Pattern.compile(REGEX);
 
+    /**
+     * Replace the keys in a string with the values of a set of properties.
+     * <p>
+     * Use the {@link TOC#getPropertyResolver() resolver of the TOC} to resolve several strings
+     * with the same properties, as it keeps the expanded values of the properties.
+     * 
+     * @param props the properties
+     * @param value the string containing the keys
+     * @return the string with the keys replaced
+     * @see PropertyResolver
+     */
     public static String resolve(final Properties props, final String value) {
-		String resolvedValue = value;
-
-    	boolean matchFound = true;
-    	while (matchFound) {
-            StringBuffer out = new StringBuffer();
-    		matchFound = false;
-    		Matcher m = p.matcher(resolvedValue);
-
-    		while (m.find()) {
-    			String foundKey = m.group(1);
-    			
-    			String replaceValue = props.containsKey(foundKey) ? props.getProperty(foundKey) : "KEY: <b>" + foundKey + "</b> NOT FOUND";
-
-    			m.appendReplacement(out, Matcher.quoteReplacement(replaceValue));
-    			matchFound = true;
-    			lw.fine(foundKey + " -> " + replaceValue);
-    		}
-
-    		m.appendTail(out);
-			resolvedValue = out.toString();
-    	}
-    	
-    	lw.fine("Processed fragment \"" + value + "\" with properties " + props.toString() + ", returning " + resolvedValue);
-    	
-    	return resolvedValue;
+    	return new PropertyResolver(props).resolve(value);
     }
 
 	@Override
@@ -61,6 +49,11 @@ public class ApplyKeyValue extends RegexPostProcessor {
 		
 		lw.fine("Found key: " + value + " in " + getCurrentChapter().getName());
 		
-		return resolve(getTOC().getMetaData(), "${" + value + "}");
+		return getTOC().getPropertyResolver().getValue(value);
+	}
+
+	@Override
+	public void handleText(String html, int start, int end, StringBuffer out, Chapter chapter, TOC t) {
+		t.getPropertyResolver().resolve(html, start, end, out);
 	}
 }
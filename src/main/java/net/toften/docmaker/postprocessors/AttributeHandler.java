@@ -0,0 +1,30 @@
+package net.toften.docmaker.postprocessors;
+
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * A handler registered with the {@link HtmlRewriter}, which is invoked for each attribute
+ * with one of the {@link #getAttributeNames() handled names}, on any start tag.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface AttributeHandler {
+	/**
+	 * @return the lower case names of the attributes to handle, for example <code>src</code>
+	 */
+	String[] getAttributeNames();
+
+	/**
+	 * Handle an attribute found in the HTML of a chapter.
+	 *
+	 * @param tag the tag the attribute belongs to
+	 * @param name the lower case name of the attribute
+	 * @param value the value of the attribute, without quotes
+	 * @param chapter the chapter being processed
+	 * @param t the {@link TOC} data model
+	 * @return the new value of the attribute; the value passed in if it is unchanged
+	 */
+	String handleAttribute(HtmlTag tag, String name, String value, Chapter chapter, TOC t);
+}
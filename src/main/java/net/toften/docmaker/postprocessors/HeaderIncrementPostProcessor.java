@@ -4,6 +4,8 @@ import java.util.regex.Matcher;
 
 import net.toften.docmaker.handler.standard.ContentSection;
 import net.toften.docmaker.handler.standard.FragmentChapter;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
 
 /**
  * This {@link PostProcessor} will normalise the header level, given the base level of
@@ -11,11 +13,13 @@ import net.toften.docmaker.handler.standard.FragmentChapter;
  * <p>
  * The <i>effective level</i> of the heading is calculated using the {@link FragmentChapter#calcEffectiveLevel()}
  * method.
+ * <p>
+ * When run by the {@link HtmlRewriter}, all header tags are adjusted, including tags with attributes.
  * 
  * @author thomaslarsen
  *
  */
-public class HeaderIncrementPostProcessor extends RegexPostProcessor {
+public class HeaderIncrementPostProcessor extends RegexPostProcessor implements TagHandler {
 	@Override
 	protected String getRegex() {
 		return "(</?h)(\\d)(>)";
@@ -27,4 +31,17 @@ public class HeaderIncrementPostProcessor extends RegexPostProcessor {
 
 		return "$1" + (increment  + Integer.valueOf(m.group(2))) + "$3";
 	}
+
+	@Override
+	public String[] getTagNames() {
+		return HtmlTag.HEADER_TAGS;
+	}
+
+	@Override
+	public void handleTag(HtmlTag tag, Chapter chapter, TOC t) {
+		int increment = chapter.calcEffectiveLevel();
+
+		if (increment != 0)
+			tag.setName("h" + (increment + Integer.valueOf(tag.getName().substring(1))));
+	}
 }
@@ -0,0 +1,259 @@
+package net.toften.docmaker.postprocessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.Heading;
+import net.toften.docmaker.toc.TOC;
+
+import org.xml.sax.Attributes;
+
+/**
+ * A {@link PostProcessor} that applies a number of rewrites to the HTML of a chapter in a single pass.
+ * <p>
+ * The HTML is scanned once, and the tags and text found are passed to the registered handlers:
+ * <ul>
+ * <li>{@link TagHandler}s are invoked for the start and end tags with the names they handle</li>
+ * <li>{@link AttributeHandler}s are invoked for the attributes with the names they handle</li>
+ * <li>{@link TextHandler}s are invoked for the text between the tags, and for the attribute values</li>
+ * </ul>
+ * The handlers are invoked in the order they were registered. Text and tags that are not changed by
+ * a handler are copied to the output as is.
+ * <p>
+ * A {@link PostProcessor} specified in the TOC that implements one of the handler interfaces is
+ * {@link #add(List, PostProcessor) added} to the rewriter preceding it, instead of being run as a
+ * separate pass.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class HtmlRewriter implements PostProcessor {
+	private final List<String> tagNames = new ArrayList<String>();
+	private final List<TagHandler> tagHandlers = new ArrayList<TagHandler>();
+	private final List<String> attributeNames = new ArrayList<String>();
+	private final List<AttributeHandler> attributeHandlers = new ArrayList<AttributeHandler>();
+	private final List<TextHandler> textHandlers = new ArrayList<TextHandler>();
+	private final List<Object> handlers = new ArrayList<Object>();
+
+	/**
+	 * Add a {@link PostProcessor} to a list of PostProcessors.
+	 * <p>
+	 * If the PostProcessor is a handler, it is registered with the {@link HtmlRewriter} at the end of the list,
+	 * or a new HtmlRewriter if the list does not end with one. Otherwise the PostProcessor is added to the list.
+	 *
+	 * @param postProcessors the list of PostProcessors
+	 * @param pp the PostProcessor to add
+	 */
+	public static void add(List<PostProcessor> postProcessors, PostProcessor pp) {
+		if (!isHandler(pp)) {
+			postProcessors.add(pp);
+			return;
+		}
+
+		HtmlRewriter rewriter;
+		if (!postProcessors.isEmpty() && postProcessors.get(postProcessors.size() - 1) instanceof HtmlRewriter) {
+			rewriter = (HtmlRewriter) postProcessors.get(postProcessors.size() - 1);
+		} else {
+			rewriter = new HtmlRewriter();
+			postProcessors.add(rewriter);
+		}
+
+		rewriter.register(pp);
+	}
+
+	/**
+	 * @param handler the object to check
+	 * @return <code>true</code> if the object implements one of the handler interfaces
+	 */
+	public static boolean isHandler(Object handler) {
+		return handler instanceof TagHandler || handler instanceof AttributeHandler || handler instanceof TextHandler;
+	}
+
+	/**
+	 * Register a handler for each of the handler interfaces it implements.
+	 *
+	 * @param handler the handler to register
+	 */
+	public void register(Object handler) {
+		if (!isHandler(handler))
+			throw new IllegalArgumentException(handler.getClass().getName() + " is not an HtmlRewriter handler");
+
+		if (handler instanceof TagHandler) {
+			for (String name : ((TagHandler) handler).getTagNames()) {
+				tagNames.add(name);
+				tagHandlers.add((TagHandler) handler);
+			}
+		}
+
+		if (handler instanceof AttributeHandler) {
+			for (String name : ((AttributeHandler) handler).getAttributeNames()) {
+				attributeNames.add(name);
+				attributeHandlers.add((AttributeHandler) handler);
+			}
+		}
+
+		if (handler instanceof TextHandler)
+			textHandlers.add((TextHandler) handler);
+		
+		handlers.add(handler);
+	}
+	
+	/**
+	 * @return the class name of the rewriter, followed by the simple class names of its handlers in the order they
+	 * 	were registered
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(getClass().getName()).append('[');
+		for (int i = 0; i < handlers.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(handlers.get(i).getClass().getSimpleName());
+		}
+		
+		return sb.append(']').toString();
+	}
+
+	@Override
+	public void init(Attributes attributes) {
+		// Empty
+	}
+
+	@Override
+	public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t) {
+		processFragment(chapter, fragmentAsHtml, out, t, null);
+	}
+
+	/**
+	 * Rewrite the HTML of a chapter, and record the headers as they are written to the output.
+	 * <p>
+	 * The headers are recorded after they have been changed by the handlers, so their level, id and
+	 * text are those found in the output. Headers spanning several lines are recorded too.
+	 *
+	 * @param chapter the chapter
+	 * @param fragmentAsHtml the HTML of the chapter
+	 * @param out the {@link StringBuffer} to write the rewritten HTML to
+	 * @param t the {@link TOC} data model
+	 * @param headings the list to add the headers to, in the order they are written; can be <code>null</code>
+	 */
+	public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t, List<Heading> headings) {
+		StringBuffer scratch = new StringBuffer();
+		int textStart = 0;
+		int i = 0;
+
+		// The header being written, if any
+		HtmlTag header = null;
+		int headerStart = 0;
+
+		while ((i = fragmentAsHtml.indexOf('<', i)) >= 0) {
+			HtmlTag tag = HtmlTag.parse(fragmentAsHtml, i);
+			if (tag == null) {
+				// Not a tag, so part of the text
+				i++;
+				continue;
+			}
+
+			processText(fragmentAsHtml, textStart, i, out, chapter, t);
+			processTag(tag, scratch, chapter, t);
+
+			if (headings != null && isHeader(tag)) {
+				if (!tag.isEndTag()) {
+					header = tag;
+				} else if (header != null) {
+					headings.add(new Heading(Integer.parseInt(header.getName().substring(1)), header.getAttribute("id"), out.substring(headerStart)));
+					header = null;
+				}
+			}
+
+			tag.write(out);
+			if (tag == header)
+				headerStart = out.length();
+
+			i = textStart = tag.getEnd();
+		}
+
+		processText(fragmentAsHtml, textStart, fragmentAsHtml.length(), out, chapter, t);
+	}
+
+	private void processTag(HtmlTag tag, StringBuffer scratch, Chapter chapter, TOC t) {
+		for (int h = 0; h < tagNames.size(); h++) {
+			if (tag.hasOriginalName(tagNames.get(h)))
+				tagHandlers.get(h).handleTag(tag, chapter, t);
+		}
+
+		if (tag.isEndTag() || (attributeHandlers.isEmpty() && textHandlers.isEmpty()))
+			return;
+
+		for (int a = 0; a < tag.getAttributeCount(); a++) {
+			String value = null;
+
+			for (int h = 0; h < attributeNames.size(); h++) {
+				if (tag.hasAttributeName(a, attributeNames.get(h))) {
+					if (value == null)
+						value = tag.getAttributeValue(a);
+
+					value = attributeHandlers.get(h).handleAttribute(tag, attributeNames.get(h), value, chapter, t);
+				}
+			}
+
+			if (!textHandlers.isEmpty() && tag.hasAttributeValue(a)) {
+				scratch.setLength(0);
+				if (value == null) {
+					int s = tag.getAttributeValueStart(a);
+					int e = tag.getAttributeValueEnd(a);
+					processText(tag.getHtml(), s, e, scratch, chapter, t);
+					if (!regionEquals(scratch, tag.getHtml(), s, e))
+						value = scratch.toString();
+				} else {
+					processText(value, 0, value.length(), scratch, chapter, t);
+					value = scratch.toString();
+				}
+			}
+
+			if (value != null)
+				tag.setAttributeValue(a, value);
+		}
+	}
+
+	private static boolean isHeader(HtmlTag tag) {
+		String name = tag.getName();
+
+		return name.length() == 2 && name.charAt(0) == 'h' && name.charAt(1) >= '1' && name.charAt(1) <= '9';
+	}
+
+	private void processText(String html, int start, int end, StringBuffer out, Chapter chapter, TOC t) {
+		if (start == end)
+			return;
+
+		if (textHandlers.isEmpty()) {
+			out.append(html, start, end);
+			return;
+		}
+
+		// Only the last handler writes directly to the output
+		String text = html;
+		for (int h = 0; h < textHandlers.size() - 1; h++) {
+			StringBuffer next = new StringBuffer(end - start);
+			textHandlers.get(h).handleText(text, start, end, next, chapter, t);
+
+			text = next.toString();
+			start = 0;
+			end = text.length();
+		}
+
+		textHandlers.get(textHandlers.size() - 1).handleText(text, start, end, out, chapter, t);
+	}
+
+	private static boolean regionEquals(StringBuffer sb, String s, int start, int end) {
+		if (sb.length() != end - start)
+			return false;
+
+		for (int i = 0; i < sb.length(); i++) {
+			if (sb.charAt(i) != s.charAt(start + i))
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,376 @@
+package net.toften.docmaker.postprocessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A start or end tag found by the {@link HtmlRewriter} in the HTML of a chapter.
+ * <p>
+ * The tag refers to the HTML it was found in, and is only copied to the output
+ * as is, unless a handler changes its name or attributes.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class HtmlTag {
+	/**
+	 * The names of the HTML header tags
+	 */
+	public static final String[] HEADER_TAGS = { "h1", "h2", "h3", "h4", "h5", "h6" };
+
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+	private static final int QUOTE = 4;
+	private static final int FIELDS = 5;
+
+	private final String html;
+	private final int start;
+	private final int nameStart;
+	private final int nameEnd;
+	private final boolean endTag;
+	private int end;
+
+	private String name;
+	private boolean renamed;
+
+	/** The positions of the attributes in the HTML, {@link #FIELDS} values for each */
+	private int[] attributes = new int[4 * FIELDS];
+	private int attributeCount;
+	private String[] changedValues;
+	private List<String> addedAttributes;
+
+	private HtmlTag(String html, int start, int nameStart, int nameEnd, boolean endTag) {
+		this.html = html;
+		this.start = start;
+		this.nameStart = nameStart;
+		this.nameEnd = nameEnd;
+		this.endTag = endTag;
+	}
+
+	/**
+	 * Parse the tag starting with the <code>&lt;</code> at the given position.
+	 *
+	 * @param html the HTML to parse
+	 * @param start the position of the <code>&lt;</code>
+	 * @return the tag, or <code>null</code> if the position does not start a tag
+	 */
+	static HtmlTag parse(String html, int start) {
+		int len = html.length();
+		int i = start + 1;
+
+		boolean endTag = i < len && html.charAt(i) == '/';
+		if (endTag)
+			i++;
+
+		if (i >= len || !Character.isLetter(html.charAt(i)))
+			return null;
+
+		int nameStart = i;
+		while (i < len && isNameChar(html.charAt(i)))
+			i++;
+
+		HtmlTag tag = new HtmlTag(html, start, nameStart, i, endTag);
+
+		while (i < len) {
+			char c = html.charAt(i);
+			if (c == '>') {
+				tag.end = i + 1;
+				return tag;
+			}
+
+			if (Character.isWhitespace(c) || c == '/') {
+				i++;
+				continue;
+			}
+
+			// Attribute name
+			int attributeStart = i;
+			while (i < len && !isAttributeNameEnd(html.charAt(i)))
+				i++;
+			int attributeEnd = i;
+
+			while (i < len && Character.isWhitespace(html.charAt(i)))
+				i++;
+
+			if (i < len && html.charAt(i) == '=') {
+				i++;
+				while (i < len && Character.isWhitespace(html.charAt(i)))
+					i++;
+				if (i >= len)
+					return null;
+
+				char quote = html.charAt(i);
+				if (quote == '"' || quote == '\'') {
+					int valueEnd = html.indexOf(quote, i + 1);
+					if (valueEnd < 0)
+						return null;
+
+					tag.addAttribute(attributeStart, attributeEnd, i + 1, valueEnd, quote);
+					i = valueEnd + 1;
+				} else {
+					int valueStart = i;
+					while (i < len && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '>')
+						i++;
+
+					tag.addAttribute(attributeStart, attributeEnd, valueStart, i, 0);
+				}
+			} else {
+				tag.addAttribute(attributeStart, attributeEnd, -1, -1, 0);
+			}
+		}
+
+		// Not terminated
+		return null;
+	}
+
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_';
+	}
+
+	private static boolean isAttributeNameEnd(char c) {
+		return Character.isWhitespace(c) || c == '=' || c == '>' || c == '/';
+	}
+
+	private void addAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd, int quote) {
+		int i = attributeCount * FIELDS;
+		if (i == attributes.length) {
+			int[] a = new int[attributes.length * 2];
+			System.arraycopy(attributes, 0, a, 0, attributes.length);
+			attributes = a;
+		}
+
+		attributes[i + NAME_START] = nameStart;
+		attributes[i + NAME_END] = nameEnd;
+		attributes[i + VALUE_START] = valueStart;
+		attributes[i + VALUE_END] = valueEnd;
+		attributes[i + QUOTE] = quote;
+		attributeCount++;
+	}
+
+	/**
+	 * @return the lower case name of the tag, as changed by any handler
+	 */
+	public String getName() {
+		if (name == null)
+			name = html.substring(nameStart, nameEnd).toLowerCase();
+
+		return name;
+	}
+
+	/**
+	 * Change the name of the tag.
+	 *
+	 * @param name the new name
+	 */
+	public void setName(String name) {
+		this.name = name;
+		this.renamed = true;
+	}
+
+	/**
+	 * @return <code>true</code> if this is an end tag, for example <code>&lt;/p&gt;</code>
+	 */
+	public boolean isEndTag() {
+		return endTag;
+	}
+
+	/**
+	 * @return <code>true</code> if the tag is closed by <code>/&gt;</code>
+	 */
+	public boolean isSelfClosing() {
+		return html.charAt(end - 2) == '/';
+	}
+
+	/**
+	 * Return the value of an attribute.
+	 *
+	 * @param name the lower case name of the attribute
+	 * @return the value, as changed by any handler; <code>null</code> if the tag does not have the attribute
+	 */
+	public String getAttribute(String name) {
+		int i = indexOfAttribute(name);
+		if (i >= 0)
+			return getAttributeValue(i);
+
+		// Attributes added by a handler are held as name/value pairs
+		for (int a = 0; addedAttributes != null && a < addedAttributes.size(); a += 2) {
+			if (addedAttributes.get(a).equals(name))
+				return addedAttributes.get(a + 1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Set the value of an attribute, adding the attribute to the tag if it does not have it.
+	 *
+	 * @param name the lower case name of the attribute
+	 * @param value the new value of the attribute
+	 */
+	public void setAttribute(String name, String value) {
+		int i = indexOfAttribute(name);
+
+		if (i < 0) {
+			if (addedAttributes == null)
+				addedAttributes = new ArrayList<String>(2);
+
+			for (int a = 0; a < addedAttributes.size(); a += 2) {
+				if (addedAttributes.get(a).equals(name)) {
+					addedAttributes.set(a + 1, value);
+					return;
+				}
+			}
+
+			addedAttributes.add(name);
+			addedAttributes.add(value);
+		} else {
+			setAttributeValue(i, value);
+		}
+	}
+
+	/**
+	 * Return the HTML between this start tag and the matching end tag, as found in the chapter.
+	 * <p>
+	 * Nested tags with the same name are not taken into account.
+	 *
+	 * @return the HTML, or <code>null</code> if this is not a start tag or the end tag is not found
+	 */
+	public String getInnerHtml() {
+		if (endTag || isSelfClosing())
+			return null;
+
+		int nameLength = nameEnd - nameStart;
+		int i = end;
+		while ((i = html.indexOf("</", i)) >= 0) {
+			int after = i + 2 + nameLength;
+			if (html.regionMatches(true, i + 2, html, nameStart, nameLength)
+					&& after < html.length()
+					&& (html.charAt(after) == '>' || Character.isWhitespace(html.charAt(after))))
+				return html.substring(end, i);
+
+			i += 2;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the HTML the tag was found in
+	 */
+	String getHtml() {
+		return html;
+	}
+
+	/**
+	 * @return the position after the <code>&gt;</code> ending the tag
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @param lowerCaseName the name to match
+	 * @return <code>true</code> if the tag was found with the given name
+	 */
+	boolean hasOriginalName(String lowerCaseName) {
+		return nameEnd - nameStart == lowerCaseName.length()
+				&& html.regionMatches(true, nameStart, lowerCaseName, 0, lowerCaseName.length());
+	}
+
+	int getAttributeCount() {
+		return attributeCount;
+	}
+
+	boolean hasAttributeName(int i, String lowerCaseName) {
+		int s = attributes[i * FIELDS + NAME_START];
+		int e = attributes[i * FIELDS + NAME_END];
+
+		return e - s == lowerCaseName.length()
+				&& html.regionMatches(true, s, lowerCaseName, 0, lowerCaseName.length());
+	}
+
+	boolean hasAttributeValue(int i) {
+		return attributes[i * FIELDS + VALUE_START] >= 0;
+	}
+
+	int getAttributeValueStart(int i) {
+		return attributes[i * FIELDS + VALUE_START];
+	}
+
+	int getAttributeValueEnd(int i) {
+		return attributes[i * FIELDS + VALUE_END];
+	}
+
+	String getAttributeValue(int i) {
+		if (changedValues != null && changedValues[i] != null)
+			return changedValues[i];
+
+		int s = attributes[i * FIELDS + VALUE_START];
+
+		return s < 0 ? "" : html.substring(s, attributes[i * FIELDS + VALUE_END]);
+	}
+
+	void setAttributeValue(int i, String value) {
+		if (changedValues == null)
+			changedValues = new String[attributeCount];
+
+		changedValues[i] = value;
+	}
+
+	private int indexOfAttribute(String name) {
+		for (int i = 0; i < attributeCount; i++) {
+			if (hasAttributeName(i, name))
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Write the tag, including any changes, to the output.
+	 *
+	 * @param out the {@link StringBuffer} to write the tag to
+	 */
+	void write(StringBuffer out) {
+		if (!renamed && changedValues == null && addedAttributes == null) {
+			out.append(html, start, end);
+			return;
+		}
+
+		out.append(html, start, nameStart).append(getName());
+
+		int pos = nameEnd;
+		for (int i = 0; changedValues != null && i < attributeCount; i++) {
+			if (changedValues[i] == null)
+				continue;
+
+			int f = i * FIELDS;
+			if (attributes[f + VALUE_START] < 0) {
+				// Attribute without a value
+				out.append(html, pos, attributes[f + NAME_END]).append("=\"").append(changedValues[i]).append('"');
+				pos = attributes[f + NAME_END];
+			} else if (attributes[f + QUOTE] == 0) {
+				out.append(html, pos, attributes[f + VALUE_START]).append('"').append(changedValues[i]).append('"');
+				pos = attributes[f + VALUE_END];
+			} else {
+				out.append(html, pos, attributes[f + VALUE_START]).append(changedValues[i]);
+				pos = attributes[f + VALUE_END];
+			}
+		}
+
+		int insert = isSelfClosing() ? end - 2 : end - 1;
+		out.append(html, pos, insert);
+
+		if (addedAttributes != null) {
+			for (int a = 0; a < addedAttributes.size(); a += 2) {
+				if (a > 0 || !Character.isWhitespace(html.charAt(insert - 1)))
+					out.append(' ');
+				out.append(addedAttributes.get(a)).append("=\"").append(addedAttributes.get(a + 1)).append('"');
+			}
+		}
+
+		out.append(html, insert, end);
+	}
+}
@@ -4,6 +4,8 @@ import java.util.regex.Matcher;
 
 import net.toften.docmaker.handler.AssemblyHandler;
 import net.toften.docmaker.handler.standard.FragmentChapter;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
 
 /**
  * This {@link PostProcessor} will inject an id attribute into all HTML
@@ -11,11 +13,13 @@ import net.toften.docmaker.handler.standard.FragmentChapter;
  * <p>
  * The value of the injected id attribute is the value of the {@link FragmentChapter#getIdAttr(AssemblyHandler) chapter id}
  * attribute with the text in the header appended.
+ * <p>
+ * When run by the {@link HtmlRewriter}, any other attributes of the header are kept.
  * 
  * @author thomaslarsen
  *
  */
-public class InjectHeaderIdPostProcessor extends RegexPostProcessor {
+public class InjectHeaderIdPostProcessor extends RegexPostProcessor implements TagHandler {
 	public static final String HEADER_SEARCH_REGEX = "<h(\\d)(.*?)>(.*?)</h\\d>";
 	
 	@Override
@@ -32,4 +36,19 @@ public class InjectHeaderIdPostProcessor extends RegexPostProcessor {
 	protected String getReplacement(Matcher m) {
 		return "<h$1 id=\"" + calcElementId(m.group(3)) + "\">$3</h$1>";
 	}
+
+	@Override
+	public String[] getTagNames() {
+		return HtmlTag.HEADER_TAGS;
+	}
+
+	@Override
+	public void handleTag(HtmlTag tag, Chapter chapter, TOC t) {
+		if (tag.isEndTag())
+			return;
+
+		String headerText = tag.getInnerHtml();
+		if (headerText != null)
+			tag.setAttribute("id", calcHeaderId(t, chapter, headerText));
+	}
 }
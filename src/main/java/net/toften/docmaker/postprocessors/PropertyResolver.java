@@ -0,0 +1,182 @@
+package net.toften.docmaker.postprocessors;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * Replaces the keys, <code>${&lt;key&gt;}</code>, in a string with the values of a set of properties.
+ * <p>
+ * The values of the properties can themselves contain keys. The fully expanded value of each property
+ * is calculated the first time the property is used, and kept for the following uses, so each string
+ * is resolved in a single scan. A property referring to itself, directly or through other properties,
+ * is reported as an error.
+ * <p>
+ * A key of a property which does not exist is replaced by a message, and a warning is logged the first
+ * time the key is found. A strict resolver instead reports the key as an error, so the build fails.
+ * <p>
+ * The properties must not be changed while the resolver is in use.
+ *
+ * @author thomaslarsen
+ *
+ * @see TOC#getPropertyResolver()
+ */
+public class PropertyResolver {
+	private static final Logger lw = Logger.getLogger(PropertyResolver.class.getName());
+
+	private final Properties props;
+	private final boolean strict;
+	private final Map<String, String> expanded = new HashMap<String, String>();
+	private final Set<String> expanding = new LinkedHashSet<String>();
+
+	/**
+	 * @param props the properties to replace the keys with
+	 */
+	public PropertyResolver(Properties props) {
+		this(props, false);
+	}
+
+	/**
+	 * @param props the properties to replace the keys with
+	 * @param strict <code>true</code> to report a key of a property which does not exist as an error
+	 */
+	public PropertyResolver(Properties props, boolean strict) {
+		this.props = props;
+		this.strict = strict;
+	}
+
+	/**
+	 * Replace the keys in a string.
+	 *
+	 * @param template the string containing the keys
+	 * @return the string with the keys replaced
+	 * @throws IllegalArgumentException if a property refers to itself, or a strict resolver finds a key of
+	 * 	a property which does not exist
+	 */
+	public String resolve(String template) {
+		if (template.indexOf("${") < 0)
+			return template;
+
+		StringBuffer out = new StringBuffer(template.length());
+		resolve(template, 0, template.length(), out);
+
+		return out.toString();
+	}
+
+	/**
+	 * Replace the keys in a region of a string, and append the result to the output.
+	 * <p>
+	 * A key does not span lines.
+	 *
+	 * @param s the string containing the keys
+	 * @param start the start of the region
+	 * @param end the end of the region
+	 * @param out the output to append to
+	 * @throws IllegalArgumentException if a property refers to itself, or a strict resolver finds a key of
+	 * 	a property which does not exist
+	 */
+	public void resolve(CharSequence s, int start, int end, StringBuffer out) {
+		int i = start;
+		int keyStart = indexOfKeyStart(s, i, end);
+
+		while (keyStart >= 0) {
+			int keyEnd = indexOfKeyEnd(s, keyStart + 2, end);
+			if (keyEnd == -1)
+				break;
+
+			if (keyEnd < 0) {
+				// Keys do not span lines; look for the next key
+				keyStart = indexOfKeyStart(s, keyStart + 1, end);
+				continue;
+			}
+
+			out.append(s, i, keyStart).append(getValue(s.subSequence(keyStart + 2, keyEnd).toString()));
+
+			i = keyEnd + 1;
+			keyStart = indexOfKeyStart(s, i, end);
+		}
+
+		out.append(s, i, end);
+	}
+
+	/**
+	 * Return the fully expanded value of a property.
+	 *
+	 * @param key the key of the property
+	 * @return the value, with the keys it contains replaced; or a message if the property does not exist
+	 * @throws IllegalArgumentException if the property refers to itself, or the resolver is strict and the
+	 * 	property does not exist
+	 */
+	public synchronized String getValue(String key) {
+		String value = expanded.get(key);
+		if (value != null)
+			return value;
+
+		String raw = props.getProperty(key);
+		if (raw == null) {
+			if (strict)
+				throw new IllegalArgumentException("Key " + key + " NOT FOUND");
+
+			value = "KEY: <b>" + key + "</b> NOT FOUND";
+			lw.warning("Key " + key + " NOT FOUND");
+		} else {
+			if (!expanding.add(key))
+				throw new IllegalArgumentException("Property " + key + " refers to itself: " + cycle(key));
+
+			try {
+				value = resolve(raw);
+			} finally {
+				expanding.remove(key);
+			}
+		}
+
+		expanded.put(key, value);
+
+		return value;
+	}
+
+	private String cycle(String key) {
+		StringBuilder sb = new StringBuilder();
+		boolean inCycle = false;
+		for (String k : expanding) {
+			inCycle |= k.equals(key);
+			if (inCycle)
+				sb.append(k).append(" -> ");
+		}
+
+		return sb.append(key).toString();
+	}
+
+	/**
+	 * @return the index of the <code>${</code> starting the next key, or <code>-1</code> if there is none
+	 */
+	private static int indexOfKeyStart(CharSequence s, int from, int end) {
+		for (int i = from; i < end - 1; i++) {
+			if (s.charAt(i) == '$' && s.charAt(i + 1) == '{')
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the index of the <code>}</code> ending the key; <code>-1</code> if there is none, or
+	 * 	<code>-2</code> if a line break is found first
+	 */
+	private static int indexOfKeyEnd(CharSequence s, int from, int end) {
+		for (int i = from; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '}')
+				return i;
+			if (c == '\n' || c == '\r')
+				return -2;
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,32 @@
+package net.toften.docmaker.postprocessors;
+
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * A handler registered with the {@link HtmlRewriter}, which is invoked for each start and end tag
+ * with one of the {@link #getTagNames() handled names}.
+ * <p>
+ * The handler can change the name and the attributes of the {@link HtmlTag}.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface TagHandler {
+	/**
+	 * @return the lower case names of the tags to handle, for example <code>img</code>
+	 */
+	String[] getTagNames();
+
+	/**
+	 * Handle a start or end tag found in the HTML of a chapter.
+	 * <p>
+	 * The tag is matched by its original name, so it is handled even if a previous
+	 * handler changed the name.
+	 *
+	 * @param tag the tag found
+	 * @param chapter the chapter being processed
+	 * @param t the {@link TOC} data model
+	 */
+	void handleTag(HtmlTag tag, Chapter chapter, TOC t);
+}
@@ -0,0 +1,27 @@
+package net.toften.docmaker.postprocessors;
+
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.TOC;
+
+/**
+ * A handler registered with the {@link HtmlRewriter}, which is invoked for the text between
+ * the tags, and for the attribute values, in the HTML of a chapter.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface TextHandler {
+	/**
+	 * Process a range of text, and append the output to the supplied {@link StringBuffer}.
+	 * <p>
+	 * Text that is not changed must be appended as is.
+	 *
+	 * @param html the HTML containing the text
+	 * @param start the start of the text in the HTML
+	 * @param end the end of the text in the HTML, exclusive
+	 * @param out the {@link StringBuffer} to write the output to
+	 * @param chapter the chapter being processed
+	 * @param t the {@link TOC} data model
+	 */
+	void handleText(String html, int start, int end, StringBuffer out, Chapter chapter, TOC t);
+}
@@ -1,16 +1,13 @@
 package net.toften.docmaker.pseudosections;
 
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import net.toften.docmaker.DocPart;
-import net.toften.docmaker.postprocessors.InjectHeaderIdPostProcessor;
 import net.toften.docmaker.postprocessors.PostProcessor;
 import net.toften.docmaker.postprocessors.RegexPostProcessor;
+import net.toften.docmaker.toc.AnchorIndex;
 import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.ChapterSection;
-import net.toften.docmaker.toc.Section;
+import net.toften.docmaker.toc.Heading;
 import net.toften.docmaker.toc.TOC;
 
 import org.xml.sax.Attributes;
@@ -56,8 +53,6 @@ import org.xml.sax.Attributes;
 public class TOCPseudoSection implements PseudoSectionHandler, PostProcessor {
 	private static Logger lw = Logger.getLogger(TOCPseudoSection.class.getName());	
 
-	protected static Pattern p = Pattern.compile(InjectHeaderIdPostProcessor.HEADER_SEARCH_REGEX);
-
 	private int maxLevel;
 
 	@Override
@@ -75,24 +70,22 @@ public class TOCPseudoSection implements PseudoSectionHandler, PostProcessor {
 		
 		StringBuffer asHtml = new StringBuffer("<div class=\"toc\">\n");
 
-		for (Section s : t.getSections()) {
-			if (s.getDocPart() == DocPart.SECTION) {
-				ChapterSection cs = (ChapterSection)s;
+		for (AnchorIndex.Entry e : t.getAnchorIndex().getEntries()) {
+			if (e.isSection()) {
+				ChapterSection cs = e.getSection();
 				int level = cs.getSectionLevel();
 
 				lw.fine("TOC section (level " + level + ")" + (level > getMaxLevel() ? "[SKIPPED]" : "") +": " + cs.getName());
 				if (level <= getMaxLevel()) {
 					asHtml.
 					append("<a class=\"toc-section level" + level + "\" href=\"#").
-					append(cs.getIdAttr(t)).
+					append(e.getId()).
 					append("\">").
 					append(cs.getName()).
 					append("</a>\n");
 				}
-
-				for (Chapter c : cs.getChapters()) {
-					processFragment(c, c.getAsHtml(t), asHtml, t);
-				}
+			} else {
+				appendHeading(e.getChapter(), e.getHeading(), asHtml, t);
 			}
 		}
 
@@ -103,27 +96,39 @@ public class TOCPseudoSection implements PseudoSectionHandler, PostProcessor {
 
 	@Override
 	public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t) {
-		Matcher m = p.matcher(fragmentAsHtml);
-		int chapterEffectiveLevel = chapter.calcEffectiveLevel();
+		for (Heading h : Heading.scan(fragmentAsHtml)) {
+			appendHeading(chapter, h, out, t);
+		}
+	}
 
-		while (m.find()) {
-			if (m.group(0).charAt(1) != '/') {	// Check it is not the close tag
-				int hLevel = Integer.parseInt(m.group(1));
-				String headerText = m.group(3);
-				
-				int level = hLevel + chapterEffectiveLevel;
+	/**
+	 * Append the entry of a header to the table-of-contents, if it is within the maximum level.
+	 * 
+	 * @param chapter the chapter containing the header
+	 * @param h the header
+	 * @param out the {@link StringBuffer} to write the entry to
+	 * @param t the {@link TOC} data model
+	 */
+	protected void appendHeading(Chapter chapter, Heading h, StringBuffer out, TOC t) {
+		int chapterEffectiveLevel = chapter.calcEffectiveLevel();
+		int level = h.getLevel() + chapterEffectiveLevel;
 
-				lw.fine("TOC chapter (level " + level + "/" + hLevel + "/" + chapterEffectiveLevel + ")" + (level > getMaxLevel() ? "[SKIPPED]" : "") +": " + chapter.getName());
-				
-				if (level <= getMaxLevel()) {
-					out.
-					append("<a class=\"toc-section level" + level + "\" href=\"#").
-					append(RegexPostProcessor.calcHeaderId(t, chapter, headerText)).
-					append("\">").
-					append(headerText).
-					append("</a>\n");
-				}
-			}
+		lw.fine("TOC chapter (level " + level + "/" + h.getLevel() + "/" + chapterEffectiveLevel + ")" + (level > getMaxLevel() ? "[SKIPPED]" : "") +": " + chapter.getName());
+		
+		if (level <= getMaxLevel()) {
+			out.
+			append("<a class=\"toc-section level" + level + "\" href=\"#").
+			append(getHeadingId(chapter, h, t)).
+			append("\">").
+			append(h.getText()).
+			append("</a>\n");
 		}
 	}
+	
+	/**
+	 * @return the id of the header; calculated from the header text if the header does not have one
+	 */
+	protected String getHeadingId(Chapter chapter, Heading h, TOC t) {
+		return h.getId() != null ? h.getId() : RegexPostProcessor.calcHeaderId(t, chapter, h.getText());
+	}
 }
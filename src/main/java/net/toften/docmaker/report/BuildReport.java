@@ -0,0 +1,248 @@
+package net.toften.docmaker.report;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Records the wall time, CPU time and data sizes of the stages of a build.
+ * <p>
+ * A single report is used by all the TOCs built by a run. Each stage is {@link #start(BuildReport, String, String, String, String) timed}
+ * for a TOC, and once the TOC has been built its report is {@link #write(String, File) written} next to
+ * the output.
+ * <p>
+ * The report is thread-safe.
+ * <p>
+ * If the CPU time of threads is not measured by the JVM, it is switched on while the report is in use, and
+ * switched off again once the report is {@link #close() closed}.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class BuildReport implements Closeable {
+	private static final Logger lw = Logger.getLogger(BuildReport.class.getName());
+
+	/** Parsing the TOC file; includes the chapters converted while the TOC is parsed */
+	public static final String PARSE = "parse";
+	/** Reading the fragment file of a chapter */
+	public static final String FETCH = "fetch";
+	/** Converting the markup of a chapter to HTML */
+	public static final String CONVERT = "convert";
+	/**
+	 * Running a post-processor on a chapter.
+	 * <p>
+	 * The rewrites run in a single pass by an {@link net.toften.docmaker.postprocessors.HtmlRewriter} are
+	 * timed as one stage, as they are applied together to each tag of the chapter. The detail of the stage
+	 * names the rewrites.
+	 */
+	public static final String POST_PROCESS = "postprocess";
+	/** Running an output processor on the TOC; includes the interim file and PDF stages */
+	public static final String OUTPUT = "output";
+	/** Writing the interim HTML file */
+	public static final String INTERIM_FILE = "interim-file";
+	/** Loading and laying out the PDF */
+	public static final String PDF_LAYOUT = "pdf-layout";
+	/** Writing the PDF */
+	public static final String PDF_WRITE = "pdf-write";
+
+	private static final Timer NO_TIMER = new Timer(null, null, null, null, null);
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final boolean cpuTime;
+	private final boolean cpuTimeEnabled;
+	private final long epoch = System.nanoTime();
+	private final List<Span> spans = new LinkedList<Span>();
+
+	public BuildReport() {
+		boolean supported = threads.isCurrentThreadCpuTimeSupported();
+		
+		// Only switch the measurement on if it is off, so it is not switched off under someone else on close
+		this.cpuTimeEnabled = supported && !threads.isThreadCpuTimeEnabled();
+		if (cpuTimeEnabled)
+			threads.setThreadCpuTimeEnabled(true);
+
+		this.cpuTime = supported;
+	}
+	
+	/**
+	 * Switch the measurement of the CPU time of threads off again, if it was switched on by the report.
+	 */
+	@Override
+	public void close() {
+		if (cpuTimeEnabled)
+			threads.setThreadCpuTimeEnabled(false);
+	}
+
+	/**
+	 * Start timing a stage.
+	 * <p>
+	 * The timer must be {@link Timer#stop(long, long) stopped} by the thread that started it.
+	 *
+	 * @param report the report to record the stage in; if <code>null</code> a timer which does
+	 * 	not record anything is returned
+	 * @param toc the filename of the TOC, without extension
+	 * @param stage the stage, one of the stage constants
+	 * @param chapter the name of the chapter, or <code>null</code> if the stage is not specific to a chapter
+	 * @param detail what is run by the stage, such as the name of a post-processor, or <code>null</code>
+	 * @return the timer
+	 */
+	public static Timer start(BuildReport report, String toc, String stage, String chapter, String detail) {
+		if (report == null)
+			return NO_TIMER;
+
+		return new Timer(report, toc, stage, chapter, detail);
+	}
+
+	/**
+	 * Times a stage of the build.
+	 */
+	public static class Timer {
+		private final BuildReport report;
+		private final String toc;
+		private final String stage;
+		private final String chapter;
+		private final String detail;
+		private final long start;
+		private final long startCpu;
+
+		private Timer(BuildReport report, String toc, String stage, String chapter, String detail) {
+			this.report = report;
+			this.toc = toc;
+			this.stage = stage;
+			this.chapter = chapter;
+			this.detail = detail;
+			this.startCpu = report == null ? 0 : report.currentCpuTime();
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Stop timing the stage, when the data sizes are not known.
+		 */
+		public void stop() {
+			stop(-1, -1);
+		}
+
+		/**
+		 * Stop timing the stage.
+		 *
+		 * @param in the input of the stage, or <code>null</code> if not known
+		 * @param out the output of the stage, or <code>null</code> if not known
+		 */
+		public void stop(CharSequence in, CharSequence out) {
+			if (report != null)
+				stop(in == null ? -1 : sizeOf(in), out == null ? -1 : sizeOf(out));
+		}
+
+		/**
+		 * Stop timing the stage.
+		 *
+		 * @param inBytes the size of the input of the stage, in bytes, or <code>-1</code> if not known
+		 * @param outBytes the size of the output of the stage, in bytes, or <code>-1</code> if not known
+		 */
+		public void stop(long inBytes, long outBytes) {
+			if (report == null)
+				return;
+
+			long end = System.nanoTime();
+			long cpu = report.currentCpuTime();
+			Thread current = Thread.currentThread();
+
+			report.add(new Span(toc, stage, chapter, detail, current.getId(), current.getName(),
+					start - report.epoch, end - start, cpu < 0 ? -1 : cpu - startCpu, inBytes, outBytes));
+		}
+	}
+
+	private long currentCpuTime() {
+		return cpuTime ? threads.getCurrentThreadCpuTime() : -1;
+	}
+
+	private synchronized void add(Span span) {
+		spans.add(span);
+	}
+
+	/**
+	 * @param toc the filename of the TOC, without extension
+	 * @return the stages recorded for the TOC, in the order they finished
+	 */
+	public synchronized List<Span> getSpans(String toc) {
+		List<Span> tocSpans = new ArrayList<Span>();
+		for (Span s : spans) {
+			if (s.getToc().equals(toc))
+				tocSpans.add(s);
+		}
+
+		return tocSpans;
+	}
+
+	/**
+	 * Write the report of a TOC, and forget the stages recorded for it.
+	 * <p>
+	 * The report is written as <code>&lt;toc&gt;.report.json</code>, <code>&lt;toc&gt;.report.html</code>
+	 * and, in the Chrome trace event format, <code>&lt;toc&gt;.trace.json</code>.
+	 *
+	 * @param toc the filename of the TOC, without extension
+	 * @param outputDir the directory to write the report to
+	 * @return the files written
+	 * @throws IOException if the report can not be written
+	 */
+	public List<File> write(String toc, File outputDir) throws IOException {
+		List<Span> tocSpans;
+		synchronized (this) {
+			tocSpans = getSpans(toc);
+			discard(toc);
+		}
+
+		BuildReportWriter writer = new BuildReportWriter(toc, tocSpans);
+		List<File> files = Arrays.asList(new File(outputDir, toc + ".report.json"), new File(outputDir, toc + ".report.html"), new File(outputDir, toc + ".trace.json"));
+		writer.writeJson(files.get(0));
+		writer.writeHtml(files.get(1));
+		writer.writeTrace(files.get(2));
+
+		lw.info("Wrote build report of " + toc + " (" + tocSpans.size() + " stages) to " + outputDir.getAbsolutePath());
+		
+		return files;
+	}
+
+	/**
+	 * Forget the stages recorded for a TOC without writing its report, for example because the TOC could not be built.
+	 *
+	 * @param toc the filename of the TOC, without extension
+	 */
+	public synchronized void discard(String toc) {
+		for (Iterator<Span> i = spans.iterator(); i.hasNext();) {
+			if (i.next().getToc().equals(toc))
+				i.remove();
+		}
+	}
+
+	/**
+	 * @return the size of the text encoded as UTF-8, in bytes
+	 */
+	static long sizeOf(CharSequence text) {
+		long size = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				size++;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				size += 4;
+				i++;
+			} else {
+				size += 3;
+			}
+		}
+
+		return size;
+	}
+}
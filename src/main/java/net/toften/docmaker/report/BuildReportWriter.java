@@ -0,0 +1,329 @@
+package net.toften.docmaker.report;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the {@link BuildReport} of a TOC as JSON, HTML and Chrome trace events.
+ * <p>
+ * All times are written in microseconds, and all sizes in bytes. A time or size of <code>-1</code>
+ * means it is not known.
+ *
+ * @author thomaslarsen
+ *
+ */
+class BuildReportWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The number of chapters and post-processors listed as the slowest */
+	static final int SLOWEST = 10;
+
+	private final String toc;
+	private final List<Span> spans;
+	private final Map<String, Total> stages = new LinkedHashMap<String, Total>();
+	private final Map<String, Map<String, Total>> chapters = new LinkedHashMap<String, Map<String, Total>>();
+	private final Map<String, Total> postProcessors = new LinkedHashMap<String, Total>();
+	private long wallTime;
+
+	/**
+	 * The sum of a number of {@link Span}s.
+	 */
+	static class Total {
+		final String name;
+		int count;
+		long wallTime;
+		long cpuTime;
+		long inBytes;
+		long outBytes;
+
+		Total(String name) {
+			this.name = name;
+		}
+
+		void add(Span s) {
+			count++;
+			wallTime += s.getWallTime();
+			cpuTime = add(cpuTime, s.getCpuTime());
+			inBytes = add(inBytes, s.getInBytes());
+			outBytes = add(outBytes, s.getOutBytes());
+		}
+
+		void add(Total t) {
+			count += t.count;
+			wallTime += t.wallTime;
+			cpuTime = add(cpuTime, t.cpuTime);
+			inBytes = add(inBytes, t.inBytes);
+			outBytes = add(outBytes, t.outBytes);
+		}
+
+		private static long add(long total, long value) {
+			return total < 0 || value < 0 ? -1 : total + value;
+		}
+	}
+
+	private static final Comparator<Total> SLOWEST_FIRST = new Comparator<Total>() {
+		@Override
+		public int compare(Total t1, Total t2) {
+			return t1.wallTime > t2.wallTime ? -1 : (t1.wallTime == t2.wallTime ? 0 : 1);
+		}
+	};
+
+	BuildReportWriter(String toc, List<Span> spans) {
+		this.toc = toc;
+		this.spans = new ArrayList<Span>(spans);
+
+		Collections.sort(this.spans, new Comparator<Span>() {
+			@Override
+			public int compare(Span s1, Span s2) {
+				return s1.getStart() < s2.getStart() ? -1 : (s1.getStart() == s2.getStart() ? 0 : 1);
+			}
+		});
+
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (Span s : this.spans) {
+			first = Math.min(first, s.getStart());
+			last = Math.max(last, s.getStart() + s.getWallTime());
+
+			total(stages, s.getStage()).add(s);
+
+			if (s.getChapter() != null) {
+				Map<String, Total> chapterStages = chapters.get(s.getChapter());
+				if (chapterStages == null) {
+					chapterStages = new LinkedHashMap<String, Total>();
+					chapters.put(s.getChapter(), chapterStages);
+				}
+				total(chapterStages, s.getStage()).add(s);
+			}
+
+			if (BuildReport.POST_PROCESS.equals(s.getStage()) && s.getDetail() != null)
+				total(postProcessors, s.getDetail()).add(s);
+		}
+
+		wallTime = this.spans.isEmpty() ? 0 : last - first;
+	}
+
+	private static Total total(Map<String, Total> totals, String name) {
+		Total t = totals.get(name);
+		if (t == null) {
+			t = new Total(name);
+			totals.put(name, t);
+		}
+
+		return t;
+	}
+
+	/**
+	 * @return the chapters, with the total of all their stages, slowest first
+	 */
+	List<Total> getSlowestChapters() {
+		List<Total> slowest = new ArrayList<Total>();
+		for (Map.Entry<String, Map<String, Total>> c : chapters.entrySet()) {
+			Total t = new Total(c.getKey());
+			for (Total stage : c.getValue().values()) {
+				t.add(stage);
+			}
+			slowest.add(t);
+		}
+
+		return slowest(slowest);
+	}
+
+	/**
+	 * @return the post-processors, with the total of all the chapters they processed, slowest first
+	 */
+	List<Total> getSlowestPostProcessors() {
+		return slowest(new ArrayList<Total>(postProcessors.values()));
+	}
+
+	private static List<Total> slowest(List<Total> totals) {
+		Collections.sort(totals, SLOWEST_FIRST);
+
+		return totals.size() > SLOWEST ? totals.subList(0, SLOWEST) : totals;
+	}
+
+	void writeJson(File f) throws IOException {
+		Writer w = open(f);
+		try {
+			w.write("{\n\"toc\": " + quote(toc) + ",\n\"wallTimeUs\": " + micros(wallTime) + ",\n");
+
+			w.write("\"stages\": [");
+			writeTotals(w, "stage", stages.values());
+			w.write("],\n\"slowestChapters\": [");
+			writeTotals(w, "chapter", getSlowestChapters());
+			w.write("],\n\"slowestPostProcessors\": [");
+			writeTotals(w, "postProcessor", getSlowestPostProcessors());
+
+			w.write("],\n\"chapters\": [");
+			String separator = "\n";
+			for (Map.Entry<String, Map<String, Total>> c : chapters.entrySet()) {
+				w.write(separator + "{\"chapter\": " + quote(c.getKey()) + ", \"stages\": [");
+				writeTotals(w, "stage", c.getValue().values());
+				w.write("]}");
+				separator = ",\n";
+			}
+
+			w.write("],\n\"spans\": [");
+			separator = "\n";
+			for (Span s : spans) {
+				w.write(separator + "{\"stage\": " + quote(s.getStage())
+						+ ", \"chapter\": " + quote(s.getChapter())
+						+ ", \"detail\": " + quote(s.getDetail())
+						+ ", \"thread\": " + quote(s.getThreadName())
+						+ ", \"startUs\": " + micros(s.getStart())
+						+ ", \"wallTimeUs\": " + micros(s.getWallTime())
+						+ ", \"cpuTimeUs\": " + micros(s.getCpuTime())
+						+ ", \"inBytes\": " + s.getInBytes()
+						+ ", \"outBytes\": " + s.getOutBytes() + "}");
+				separator = ",\n";
+			}
+			w.write("]\n}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writeTotals(Writer w, String nameKey, Iterable<Total> totals) throws IOException {
+		String separator = "\n";
+		for (Total t : totals) {
+			w.write(separator + "{\"" + nameKey + "\": " + quote(t.name)
+					+ ", \"count\": " + t.count
+					+ ", \"wallTimeUs\": " + micros(t.wallTime)
+					+ ", \"cpuTimeUs\": " + micros(t.cpuTime)
+					+ ", \"inBytes\": " + t.inBytes
+					+ ", \"outBytes\": " + t.outBytes + "}");
+			separator = ",\n";
+		}
+	}
+
+	void writeTrace(File f) throws IOException {
+		Writer w = open(f);
+		try {
+			w.write("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [");
+
+			// Name the threads
+			Map<Long, String> threadNames = new LinkedHashMap<Long, String>();
+			for (Span s : spans) {
+				threadNames.put(s.getThreadId(), s.getThreadName());
+			}
+			String separator = "\n";
+			for (Map.Entry<Long, String> t : threadNames.entrySet()) {
+				w.write(separator + "{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": " + t.getKey()
+						+ ", \"args\": {\"name\": " + quote(t.getValue()) + "}}");
+				separator = ",\n";
+			}
+
+			for (Span s : spans) {
+				String name = s.getStage() + (s.getChapter() == null ? "" : " " + s.getChapter()) + (s.getDetail() == null ? "" : " " + s.getDetail());
+				w.write(separator + "{\"name\": " + quote(name)
+						+ ", \"cat\": " + quote(s.getStage())
+						+ ", \"ph\": \"X\", \"pid\": 1, \"tid\": " + s.getThreadId()
+						+ ", \"ts\": " + micros(s.getStart())
+						+ ", \"dur\": " + micros(s.getWallTime())
+						+ ", \"args\": {\"cpuTimeUs\": " + micros(s.getCpuTime())
+						+ ", \"inBytes\": " + s.getInBytes()
+						+ ", \"outBytes\": " + s.getOutBytes() + "}}");
+				separator = ",\n";
+			}
+
+			w.write("]}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	void writeHtml(File f) throws IOException {
+		Writer w = open(f);
+		try {
+			w.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\" />\n<title>Build report: " + escape(toc) + "</title>\n"
+					+ "<style>body { font-family: sans-serif; } table { border-collapse: collapse; margin-bottom: 2em; } "
+					+ "th, td { border: 1px solid #ccc; padding: 2px 8px; } td.n { text-align: right; }</style>\n"
+					+ "</head>\n<body>\n");
+			w.write("<h1>Build report: " + escape(toc) + "</h1>\n");
+			w.write("<p>Wall time: " + millis(wallTime) + " ms. Times of the parse and output stages include the stages run within them."
+					+ " Load " + escape(toc) + ".trace.json in chrome://tracing to see the stages on a timeline.</p>\n");
+
+			writeTable(w, "Stages", "Stage", stages.values());
+			writeTable(w, "Slowest chapters", "Chapter", getSlowestChapters());
+			writeTable(w, "Slowest post-processors", "Post-processor", getSlowestPostProcessors());
+
+			w.write("</body>\n</html>\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writeTable(Writer w, String title, String nameHeader, Iterable<Total> totals) throws IOException {
+		w.write("<h2>" + title + "</h2>\n<table>\n<tr><th>" + nameHeader
+				+ "</th><th>Count</th><th>Wall time (ms)</th><th>CPU time (ms)</th><th>In (bytes)</th><th>Out (bytes)</th></tr>\n");
+		for (Total t : totals) {
+			w.write("<tr><td>" + escape(t.name) + "</td><td class=\"n\">" + t.count
+					+ "</td><td class=\"n\">" + millis(t.wallTime)
+					+ "</td><td class=\"n\">" + (t.cpuTime < 0 ? "" : millis(t.cpuTime))
+					+ "</td><td class=\"n\">" + (t.inBytes < 0 ? "" : String.valueOf(t.inBytes))
+					+ "</td><td class=\"n\">" + (t.outBytes < 0 ? "" : String.valueOf(t.outBytes)) + "</td></tr>\n");
+		}
+		w.write("</table>\n");
+	}
+
+	private static Writer open(File f) throws IOException {
+		return new OutputStreamWriter(new FileOutputStream(f), UTF8);
+	}
+
+	private static long micros(long nanos) {
+		return nanos < 0 ? -1 : nanos / 1000;
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1000000.0);
+	}
+
+	private static String quote(String s) {
+		if (s == null)
+			return "null";
+
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+
+		return sb.append('"').toString();
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,108 @@
+package net.toften.docmaker.report;
+
+/**
+ * The time spent, and the data processed, by one stage of the build of a TOC.
+ *
+ * @author thomaslarsen
+ *
+ * @see BuildReport
+ */
+public class Span {
+	private final String toc;
+	private final String stage;
+	private final String chapter;
+	private final String detail;
+	private final long threadId;
+	private final String threadName;
+	private final long start;
+	private final long wallTime;
+	private final long cpuTime;
+	private final long inBytes;
+	private final long outBytes;
+
+	Span(String toc, String stage, String chapter, String detail, long threadId, String threadName,
+			long start, long wallTime, long cpuTime, long inBytes, long outBytes) {
+		this.toc = toc;
+		this.stage = stage;
+		this.chapter = chapter;
+		this.detail = detail;
+		this.threadId = threadId;
+		this.threadName = threadName;
+		this.start = start;
+		this.wallTime = wallTime;
+		this.cpuTime = cpuTime;
+		this.inBytes = inBytes;
+		this.outBytes = outBytes;
+	}
+
+	/**
+	 * @return the filename of the TOC, without extension
+	 */
+	public String getToc() {
+		return toc;
+	}
+
+	/**
+	 * @return the stage, one of the stage constants of {@link BuildReport}
+	 */
+	public String getStage() {
+		return stage;
+	}
+
+	/**
+	 * @return the name of the chapter, or <code>null</code> if the stage is not specific to a chapter
+	 */
+	public String getChapter() {
+		return chapter;
+	}
+
+	/**
+	 * @return what was run by the stage, such as the name of a post-processor, or <code>null</code>
+	 */
+	public String getDetail() {
+		return detail;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * @return the start of the stage, in nanoseconds since the report was created
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the wall time of the stage, in nanoseconds
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	/**
+	 * @return the CPU time used by the stage, in nanoseconds, or <code>-1</code> if it can not be measured
+	 */
+	public long getCpuTime() {
+		return cpuTime;
+	}
+
+	/**
+	 * @return the size of the input of the stage, in bytes, or <code>-1</code> if it is not known
+	 */
+	public long getInBytes() {
+		return inBytes;
+	}
+
+	/**
+	 * @return the size of the output of the stage, in bytes, or <code>-1</code> if it is not known
+	 */
+	public long getOutBytes() {
+		return outBytes;
+	}
+}
@@ -0,0 +1,42 @@
+package net.toften.docmaker.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.toften.docmaker.toc.Chapter;
+
+/**
+ * Stores the processed HTML of {@link Chapter}s outside the heap, so only a handle
+ * to the HTML of each chapter has to be kept in memory.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface ChapterStore extends Closeable {
+	/**
+	 * Store the HTML of a chapter.
+	 *
+	 * @param html the HTML to store
+	 * @return the handle used to {@link #get(long) read} the HTML back
+	 * @throws IOException if the HTML can not be stored
+	 */
+	long put(String html) throws IOException;
+
+	/**
+	 * Read the HTML of a chapter.
+	 *
+	 * @param handle the handle returned when the HTML was {@link #put(String) stored}
+	 * @return the HTML
+	 * @throws IOException if the HTML can not be read
+	 */
+	String get(long handle) throws IOException;
+
+	/**
+	 * Close the store and release any resources, such as files, used by it.
+	 * <p>
+	 * The HTML can not be read after the store has been closed.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,164 @@
+package net.toften.docmaker.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ChapterStore} keeping the HTML of the chapters in a memory-mapped temporary file.
+ * <p>
+ * The file is mapped in segments as it grows, and only the position and length of each chapter
+ * are kept in the heap. The HTML is held by the operating system page cache, so repeated reads
+ * of a chapter do not require any system calls.
+ * <p>
+ * The file is deleted when the store is closed.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class MappedChapterStore implements ChapterStore {
+	private static final Logger lw = Logger.getLogger(MappedChapterStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The default size of the mapped segments of the file, in bytes
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private final File storeFile;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int segmentSize;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long size;
+
+	private long[] positions = new long[64];
+	private int[] lengths = new int[64];
+	private int count;
+
+	/**
+	 * Create a store using a new temporary file, mapped in segments of the {@link #DEFAULT_SEGMENT_SIZE default size}.
+	 *
+	 * @param name a name identifying the store, used in the name of the file
+	 * @throws IOException if the file can not be created
+	 */
+	public MappedChapterStore(String name) throws IOException {
+		this(name, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Create a store using a new temporary file.
+	 *
+	 * @param name a name identifying the store, used in the name of the file
+	 * @param segmentSize the size of the mapped segments of the file, in bytes
+	 * @throws IOException if the file can not be created
+	 */
+	public MappedChapterStore(String name, int segmentSize) throws IOException {
+		if (segmentSize <= 0)
+			throw new IllegalArgumentException("Segment size must be positive, was " + segmentSize);
+
+		this.segmentSize = segmentSize;
+		this.storeFile = File.createTempFile("docmaker-" + name + "-", ".chapters");
+		this.storeFile.deleteOnExit();
+		this.file = new RandomAccessFile(storeFile, "rw");
+		this.channel = file.getChannel();
+
+		lw.fine("Mapping chapters to " + storeFile.getAbsolutePath());
+	}
+
+	@Override
+	public synchronized long put(String html) throws IOException {
+		byte[] bytes = html.getBytes(UTF8);
+
+		if (count == positions.length) {
+			long[] p = new long[count * 2];
+			System.arraycopy(positions, 0, p, 0, count);
+			positions = p;
+
+			int[] l = new int[count * 2];
+			System.arraycopy(lengths, 0, l, 0, count);
+			lengths = l;
+		}
+
+		int written = 0;
+		while (written < bytes.length) {
+			ByteBuffer segment = getSegment(size + written);
+			int n = Math.min(bytes.length - written, segment.remaining());
+			segment.put(bytes, written, n);
+			written += n;
+		}
+
+		positions[count] = size;
+		lengths[count] = bytes.length;
+		size += bytes.length;
+
+		return count++;
+	}
+
+	@Override
+	public synchronized String get(long handle) throws IOException {
+		if (handle < 0 || handle >= count)
+			throw new IllegalArgumentException("Unknown chapter handle " + handle);
+
+		long position = positions[(int) handle];
+		byte[] bytes = new byte[lengths[(int) handle]];
+
+		int read = 0;
+		while (read < bytes.length) {
+			ByteBuffer segment = getSegment(position + read);
+			int n = Math.min(bytes.length - read, segment.remaining());
+			segment.get(bytes, read, n);
+			read += n;
+		}
+
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Return a view of the segment containing a position, positioned at that position.
+	 * The segment is mapped if it has not been mapped before.
+	 */
+	private ByteBuffer getSegment(long position) throws IOException {
+		if (!channel.isOpen())
+			throw new IOException("Chapter store " + storeFile.getAbsolutePath() + " is closed");
+
+		int index = (int) (position / segmentSize);
+		while (segments.size() <= index) {
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+		}
+
+		ByteBuffer segment = segments.get(index).duplicate();
+		segment.position((int) (position % segmentSize));
+
+		return segment;
+	}
+
+	/**
+	 * @return the total size of the stored HTML, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		// The mapped segments are released when they are garbage collected
+		segments.clear();
+
+		try {
+			file.close();
+		} finally {
+			if (!storeFile.delete())
+				lw.fine("Could not delete chapter store " + storeFile.getAbsolutePath() + " while it is mapped; it will be deleted on exit");
+		}
+
+		lw.fine("Closed chapter store " + storeFile.getAbsolutePath() + " (" + count + " chapters, " + size + " bytes)");
+	}
+}
@@ -0,0 +1,98 @@
+package net.toften.docmaker.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ChapterStore} appending the HTML of the chapters to a temporary spool file.
+ * <p>
+ * Only the position and length of each chapter are kept in memory. The spool file is
+ * deleted when the store is closed.
+ *
+ * @author thomaslarsen
+ *
+ */
+public class SpoolChapterStore implements ChapterStore {
+	private static final Logger lw = Logger.getLogger(SpoolChapterStore.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File spoolFile;
+	private final RandomAccessFile spool;
+	private long size;
+
+	private long[] positions = new long[64];
+	private int[] lengths = new int[64];
+	private int count;
+
+	/**
+	 * Create a store using a new temporary spool file.
+	 *
+	 * @param name a name identifying the store, used in the name of the spool file
+	 * @throws IOException if the spool file can not be created
+	 */
+	public SpoolChapterStore(String name) throws IOException {
+		this.spoolFile = File.createTempFile("docmaker-" + name + "-", ".spool");
+		this.spoolFile.deleteOnExit();
+		this.spool = new RandomAccessFile(spoolFile, "rw");
+
+		lw.fine("Spooling chapters to " + spoolFile.getAbsolutePath());
+	}
+
+	@Override
+	public synchronized long put(String html) throws IOException {
+		byte[] bytes = html.getBytes(UTF8);
+
+		if (count == positions.length) {
+			long[] p = new long[count * 2];
+			System.arraycopy(positions, 0, p, 0, count);
+			positions = p;
+
+			int[] l = new int[count * 2];
+			System.arraycopy(lengths, 0, l, 0, count);
+			lengths = l;
+		}
+
+		spool.seek(size);
+		spool.write(bytes);
+
+		positions[count] = size;
+		lengths[count] = bytes.length;
+		size += bytes.length;
+
+		return count++;
+	}
+
+	@Override
+	public synchronized String get(long handle) throws IOException {
+		if (handle < 0 || handle >= count)
+			throw new IllegalArgumentException("Unknown chapter handle " + handle);
+
+		byte[] bytes = new byte[lengths[(int) handle]];
+		spool.seek(positions[(int) handle]);
+		spool.readFully(bytes);
+
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * @return the total size of the stored HTML, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			spool.close();
+		} finally {
+			if (!spoolFile.delete())
+				lw.warning("Could not delete spool file " + spoolFile.getAbsolutePath());
+		}
+
+		lw.fine("Closed chapter spool " + spoolFile.getAbsolutePath() + " (" + count + " chapters, " + size + " bytes)");
+	}
+}
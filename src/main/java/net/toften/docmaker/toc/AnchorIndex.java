@@ -0,0 +1,123 @@
+package net.toften.docmaker.toc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.toften.docmaker.DocPart;
+import net.toften.docmaker.postprocessors.RegexPostProcessor;
+
+/**
+ * An index of the link targets and headers of a whole {@link TOC}.
+ * <p>
+ * The index holds the ids of the sections and headers, which can be looked up in constant time,
+ * and an entry for each section and header, in the order they appear in the document. It is built
+ * from the {@link Chapter#getHeadings(TOC) headers} of the chapters, so the HTML of the chapters
+ * does not have to be read again.
+ *
+ * @author thomaslarsen
+ *
+ * @see TOC#getAnchorIndex()
+ */
+public class AnchorIndex {
+	private final Set<String> ids = new HashSet<String>();
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Build the index of a TOC. The {@link Chapter#runPostProcessors(List, TOC, boolean) post processors}
+	 * must have been applied to the chapters.
+	 *
+	 * @param t the {@link TOC} data model
+	 */
+	public AnchorIndex(TOC t) {
+		for (Section s : t.getSections()) {
+			if (s.getDocPart() == DocPart.SECTION) {
+				ChapterSection cs = (ChapterSection)s;
+				String sectionId = cs.getIdAttr(t);
+
+				ids.add(sectionId);
+				entries.add(new Entry(cs, null, null, sectionId));
+
+				for (Chapter c : cs.getChapters()) {
+					for (Heading h : c.getHeadings(t)) {
+						if (h.getId() != null) {
+							ids.add(h.getId());
+							entries.add(new Entry(cs, c, h, h.getId()));
+						} else {
+							entries.add(new Entry(cs, c, h, RegexPostProcessor.calcHeaderId(t, c, h.getText())));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param id the id of a link target
+	 * @return <code>true</code> if a section or a header in the document has the id
+	 */
+	public boolean contains(String id) {
+		return ids.contains(id);
+	}
+
+	/**
+	 * @return the sections and headers, in the order they appear in the document
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * A section, or a header in a chapter, of the document.
+	 */
+	public static class Entry {
+		private final ChapterSection section;
+		private final Chapter chapter;
+		private final Heading heading;
+		private final String id;
+
+		private Entry(ChapterSection section, Chapter chapter, Heading heading, String id) {
+			this.section = section;
+			this.chapter = chapter;
+			this.heading = heading;
+			this.id = id;
+		}
+
+		/**
+		 * @return <code>true</code> if the entry is a section, rather than a header
+		 */
+		public boolean isSection() {
+			return heading == null;
+		}
+
+		/**
+		 * @return the section, or the section containing the header
+		 */
+		public ChapterSection getSection() {
+			return section;
+		}
+
+		/**
+		 * @return the chapter containing the header, or <code>null</code> if the entry is a section
+		 */
+		public Chapter getChapter() {
+			return chapter;
+		}
+
+		/**
+		 * @return the header, or <code>null</code> if the entry is a section
+		 */
+		public Heading getHeading() {
+			return heading;
+		}
+
+		/**
+		 * @return the id of the section or header; calculated from the header text if the header does not have one
+		 */
+		public String getId() {
+			return id;
+		}
+	}
+}
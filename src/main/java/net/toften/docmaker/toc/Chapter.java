@@ -50,6 +50,17 @@ public interface Chapter extends GeneratedSection {
 	 */
 	String runPostProcessors(List<PostProcessor> postProcessors, TOC t, boolean apply);
 
+	/**
+	 * Return the headers found in the {@link Chapter#getAsHtml() HTML} of the chapter.
+	 * <p>
+	 * The headers are indexed when the {@link PostProcessor}s are applied, so they can be
+	 * read without reading the HTML of the chapter.
+	 * 
+	 * @param t the {@link TOC} data model
+	 * @return the headers, in the order they appear in the chapter
+	 */
+	List<Heading> getHeadings(TOC t);
+
 	/**
 	 * Return the {@link Repo} from where the fragment is loaded.
 	 * 
@@ -0,0 +1,74 @@
+package net.toften.docmaker.toc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.toften.docmaker.postprocessors.InjectHeaderIdPostProcessor;
+
+/**
+ * A header found in the HTML of a {@link Chapter}.
+ * <p>
+ * The headers of a chapter form a compact index of the chapter, which can be used
+ * by generated sections, such as a table of contents, without reading the chapter HTML.
+ *
+ * @author thomaslarsen
+ *
+ * @see Chapter#getHeadings(TOC)
+ */
+public class Heading {
+	private static final Pattern HEADER = Pattern.compile(InjectHeaderIdPostProcessor.HEADER_SEARCH_REGEX);
+	private static final Pattern ID = Pattern.compile("id=\"(.*?)\"");
+
+	private final int level;
+	private final String id;
+	private final String text;
+
+	public Heading(int level, String id, String text) {
+		this.level = level;
+		this.id = id;
+		this.text = text;
+	}
+
+	/**
+	 * Find the headers in a chapter.
+	 *
+	 * @param html the HTML of the chapter
+	 * @return the headers, in the order they appear in the HTML
+	 */
+	public static List<Heading> scan(String html) {
+		List<Heading> headings = new ArrayList<Heading>();
+
+		Matcher m = HEADER.matcher(html);
+		while (m.find()) {
+			Matcher idMatcher = ID.matcher(m.group(2));
+			String id = idMatcher.find() ? idMatcher.group(1) : null;
+
+			headings.add(new Heading(Integer.parseInt(m.group(1)), id, m.group(3)));
+		}
+
+		return headings;
+	}
+
+	/**
+	 * @return the level of the header tag, as found in the chapter HTML
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the id attribute of the header, or <code>null</code> if it does not have one
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the contents of the header
+	 */
+	public String getText() {
+		return text;
+	}
+}
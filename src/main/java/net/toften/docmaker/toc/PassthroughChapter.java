@@ -0,0 +1,27 @@
+package net.toften.docmaker.toc;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import net.toften.docmaker.postprocessors.PostProcessor;
+
+/**
+ * A {@link Chapter} with a fragment which is already in the interim format, such as pre-rendered HTML.
+ * <p>
+ * The fragment is not converted, and no {@link PostProcessor}s are run over it. If the fragment is a local file in
+ * the encoding of the interim file, it can be copied into the interim file byte for byte.
+ *
+ * @author thomaslarsen
+ *
+ */
+public interface PassthroughChapter extends Chapter {
+	/**
+	 * @return the fragment file, or <code>null</code> if the fragment is not a local file
+	 */
+	File getFragmentFile();
+
+	/**
+	 * @return the encoding of the fragment
+	 */
+	Charset getEncoding();
+}
@@ -1,5 +1,7 @@
 package net.toften.docmaker.toc;
 
+import java.io.IOException;
+
 import net.toften.docmaker.DocPart;
 import net.toften.docmaker.output.InterimFileHandler;
 
@@ -26,6 +28,23 @@ public interface Section {
 	 */
 	String getDivCloseTag();
 	
+	/**
+	 * Append the {@link #getDivOpenTag(TOC) <div> open tag} to the output, without building it as a string first.
+	 * 
+	 * @param t the processed TOC
+	 * @param out the output
+	 * @throws IOException if the output can not be written
+	 */
+	void appendDivOpenTag(TOC t, Appendable out) throws IOException;
+	
+	/**
+	 * Append the {@link #getDivCloseTag() </div> close tag} to the output.
+	 * 
+	 * @param out the output
+	 * @throws IOException if the output can not be written
+	 */
+	void appendDivCloseTag(Appendable out) throws IOException;
+	
 	/**
 	 * @return <code>true</code> if the contents is rotated
 	 */
@@ -6,7 +6,10 @@ import java.util.Map;
 import java.util.Properties;
 
 import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.BuildContext;
 import net.toften.docmaker.handler.Repo;
+import net.toften.docmaker.postprocessors.PropertyResolver;
+import net.toften.docmaker.report.BuildReport;
 
 /**
  * This interface represents a single TOC. It provides a data model
@@ -63,4 +66,31 @@ public interface TOC {
 	URI getBaseURI();
 	
 	String getDocumentTitle();
+	
+	/**
+	 * @return the settings and services of the run building the TOC
+	 */
+	BuildContext getBuildContext();
+	
+	/**
+	 * @return the report recording the time spent building the TOC, or <code>null</code> if
+	 * 	the build is not timed
+	 */
+	BuildReport getBuildReport();
+	
+	/**
+	 * Return the index of the sections and headers of the document.
+	 * <p>
+	 * The index is only complete once the post processors have been applied to all the chapters.
+	 * 
+	 * @return the index
+	 */
+	AnchorIndex getAnchorIndex();
+	
+	/**
+	 * Return the resolver replacing the keys in the HTML with the values of the {@link #getMetaData() metadata}.
+	 * 
+	 * @return the resolver
+	 */
+	PropertyResolver getPropertyResolver();
 }
@@ -0,0 +1,64 @@
+package net.toften.docmaker;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildHistoryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEstimates() throws IOException {
+		File historyFile = new File(folder.getRoot(), DocMakerMain.HISTORY_FILE);
+
+		BuildHistory history = new BuildHistory(historyFile);
+		assertEquals((long) (1000 * BuildHistory.DEFAULT_DURATION_PER_BYTE), history.estimateDuration("a.xml", 1000));
+
+		history.record("a.xml", 500, 4000, 1000);
+		history.save();
+
+		// The history is loaded from the file
+		history = new BuildHistory(historyFile);
+		assertEquals(500, history.estimateDuration("a.xml", 1000));
+		assertEquals(4000, history.estimateMemory("a.xml", 1000));
+
+		// Unknown TOCs use the rates of the known TOCs
+		assertEquals(1000, history.estimateDuration("b.xml", 2000));
+		assertEquals(8000, history.estimateMemory("b.xml", 2000));
+
+		// A build whose memory use could not be measured keeps the memory use of the previous build
+		history.record("a.xml", 600, -1, 1000);
+		assertEquals(600, history.estimateDuration("a.xml", 1000));
+		assertEquals(4000, history.estimateMemory("a.xml", 1000));
+	}
+
+	@Test
+	public void testFragmentBytes() throws IOException {
+		File toc = folder.newFile("doc.xml");
+		String xml =
+				"<document>"
+				+ "<repos><repo id=\"common\" uri=\"src/test/resources/sample/sections/common/\" /></repos>"
+				+ "<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"copyright.md\" level=\"1\" />"
+				+ "<chapter repo=\"missing\" fragment=\"intro\" level=\"1\" />"
+				+ "</chapters></section>"
+				+ "</document>";
+		OutputStream out = new FileOutputStream(toc);
+		out.write(xml.getBytes(StandardCharsets.UTF_8));
+		out.close();
+
+		long expected = new File("src/test/resources/sample/sections/common/intro.md").length()
+				+ new File("src/test/resources/sample/sections/common/copyright.md").length();
+		assertEquals(expected, TocFragmentScanner.fragmentBytes(toc, new File(".").toURI(), "md"));
+	}
+}
@@ -0,0 +1,72 @@
+package net.toften.docmaker;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.handler.DependencyListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildManifestTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testUpToDate() throws IOException {
+		File fragment = folder.newFile("intro.md");
+		write(fragment, "# Intro");
+		File output = folder.newFile("doc.pdf");
+		File manifestFile = new File(folder.getRoot(), "doc.properties");
+		BuildContext context = new BuildContext();
+
+		BuildManifest manifest = new BuildManifest("doc", folder.getRoot(), "options");
+		manifest.dependencyFound("doc", fragment.toURI());
+		manifest.dependencyFound("other", folder.newFile("other.md").toURI());
+		manifest.outputWritten("doc", output);
+		manifest.outputWritten("doc.v2", folder.newFile("doc.v2.pdf"));
+		manifest.write(manifestFile);
+
+		// The dependencies are reported when the output is up to date
+		final List<URI> found = new ArrayList<URI>();
+		context.addDependencyListener(new DependencyListener() {
+			@Override
+			public void dependencyFound(String tocFileName, URI dependency) {
+				found.add(dependency);
+			}
+		});
+		assertTrue(new BuildManifest("doc", folder.getRoot(), "options").isUpToDate(manifestFile, context));
+		assertEquals(1, found.size());
+		assertEquals(fragment.toURI(), found.get(0));
+
+		assertFalse(new BuildManifest("doc", folder.getRoot(), "other options").isUpToDate(manifestFile, context));
+
+		write(fragment, "# Changed");
+		assertFalse(new BuildManifest("doc", folder.getRoot(), "options").isUpToDate(manifestFile, context));
+		write(fragment, "# Intro");
+		assertTrue(new BuildManifest("doc", folder.getRoot(), "options").isUpToDate(manifestFile, context));
+
+		// Only the output written for the TOC is checked, not the output of other TOCs named like it
+		assertTrue(new File(folder.getRoot(), "doc.v2.pdf").delete());
+		assertTrue(new BuildManifest("doc", folder.getRoot(), "options").isUpToDate(manifestFile, context));
+
+		assertTrue(output.delete());
+		assertFalse(new BuildManifest("doc", folder.getRoot(), "options").isUpToDate(manifestFile, context));
+	}
+
+	private static void write(File f, String s) throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		out.write(s.getBytes(StandardCharsets.UTF_8));
+		out.close();
+	}
+}
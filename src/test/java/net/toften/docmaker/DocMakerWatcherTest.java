@@ -0,0 +1,162 @@
+package net.toften.docmaker;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocMakerWatcherTest {
+	/** The time to wait for a build, in seconds */
+	private static final int POLL_TIMEOUT = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File tocDir;
+	private File fragmentDir;
+
+	/** The outcome of each build of the TOCs */
+	private final BlockingQueue<String> builds = new LinkedBlockingQueue<String>();
+	private boolean failBuilds;
+
+	@Before
+	public void setUp() throws Exception {
+		tocDir = folder.newFolder("tocs");
+		fragmentDir = folder.newFolder("fragments");
+
+		String toc =
+				"<document>"
+				+ "<repos><repo id=\"r\" uri=\"" + fragmentDir.toURI() + "\" /></repos>"
+				+ "<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"r\" fragment=\"later\" level=\"1\" />"
+				+ "</chapters></section>"
+				+ "</document>";
+		Files.write(new File(tocDir, "manual.xml").toPath(), toc.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private DocMakerMain createDocMaker() throws Exception {
+		return new DocMakerMain(Level.INFO, "UTF-8", folder.newFolder("out"), null, null,
+				"net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor", new LinkedList<String>(),
+				"net.toften.docmaker.handler.standard.StandardHandler", "xml", null, "md", null) {
+			@Override
+			void processTocs(List<File> tocFiles) throws DocMakerException {
+				try {
+					if (failBuilds)
+						throw new DocMakerException("Failed on purpose");
+
+					super.processTocs(tocFiles);
+					builds.add("built");
+				} catch (DocMakerException e) {
+					builds.add("failed");
+					throw e;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return <code>true</code> if the platform has no native watch service, and instead polls the watched
+	 * 	directories every few seconds, as it does on macOS
+	 */
+	private static boolean isPollingWatchService() throws Exception {
+		WatchService ws = FileSystems.getDefault().newWatchService();
+		try {
+			return ws.getClass().getSimpleName().startsWith("Polling");
+		} finally {
+			ws.close();
+		}
+	}
+
+	@Test
+	public void testMissingFragmentWatched() throws Exception {
+		// Too slow to wait for, and too slow to be reliable, if the directories are polled
+		assumeTrue(!isPollingWatchService());
+
+		final DocMakerMain docMaker = createDocMaker();
+		docMaker.setWatch(true);
+
+		Thread watching = new Thread() {
+			@Override
+			public void run() {
+				try {
+					docMaker.run(tocDir.getPath());
+				} catch (DocMakerException e) {
+					builds.add(e.getMessage());
+				}
+			}
+		};
+		watching.setDaemon(true);
+		watching.start();
+
+		try {
+			// The fragment does not exist yet, so the first build fails
+			assertEquals("failed", builds.poll(POLL_TIMEOUT, TimeUnit.SECONDS));
+
+			// Creating the fragment rebuilds the TOC; give the watcher a moment to register the directory first
+			Thread.sleep(500);
+			Files.write(new File(fragmentDir, "later.md").toPath(), "# Later".getBytes(StandardCharsets.UTF_8));
+			assertEquals("built", builds.poll(POLL_TIMEOUT, TimeUnit.SECONDS));
+		} finally {
+			watching.interrupt();
+			watching.join(TimeUnit.SECONDS.toMillis(POLL_TIMEOUT));
+		}
+	}
+
+	@Test
+	public void testFailedRebuildKeepsDependencies() throws Exception {
+		DocMakerMain docMaker = createDocMaker();
+		DocMakerWatcher watcher = new DocMakerWatcher(docMaker, tocDir.getPath(), "xml", new File(".").toURI(), null, null);
+		docMaker.getBuildContext().addDependencyListener(watcher);
+
+		Path fragment = new File(fragmentDir, "later.md").toPath();
+		Path other = new File(fragmentDir, "other.md").toPath();
+		watcher.dependencyFound("manual", fragment.toUri());
+		watcher.dependencyFound("manual", other.toUri());
+
+		// The TOC fails before finding any of its fragments
+		failBuilds = true;
+		watcher.rebuild(Collections.singleton(fragment), false);
+		assertEquals("failed", builds.poll());
+		assertTrue(watcher.isDependant(fragment, "manual"));
+		assertTrue(watcher.isDependant(other, "manual"));
+
+		// A successful rebuild replaces the dependencies with those it found
+		failBuilds = false;
+		Files.write(fragment, "# Later".getBytes(StandardCharsets.UTF_8));
+		watcher.rebuild(Collections.singleton(other), false);
+		assertEquals("built", builds.poll());
+		assertTrue(watcher.isDependant(fragment, "manual"));
+		assertFalse(watcher.isDependant(other, "manual"));
+	}
+
+	@Test
+	public void testUnrelatedChangeIgnored() throws Exception {
+		DocMakerMain docMaker = createDocMaker();
+		DocMakerWatcher watcher = new DocMakerWatcher(docMaker, tocDir.getPath(), "xml", new File(".").toURI(), null, null);
+
+		watcher.dependencyFound("manual", new File(fragmentDir, "later.md").toURI());
+		watcher.rebuild(Collections.singleton(new File(fragmentDir, "unused.md").toPath()), false);
+		assertTrue(builds.isEmpty());
+
+		// The TOC file itself is watched
+		watcher.rebuild(Collections.singleton(new File(tocDir, "manual.xml").getAbsoluteFile().toPath()), false);
+		assertEquals("failed", builds.poll());
+	}
+}
@@ -0,0 +1,108 @@
+package net.toften.docmaker.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.standard.StandardHandler;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.NoMarkupProcessor;
+import net.toften.docmaker.markup.csv.CsvProcessor;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskConversionCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMissAndHit() throws Exception {
+		ConversionCache cache = new DiskConversionCache(folder.getRoot(), 1024);
+		
+		assertNull(cache.get("a"));
+		cache.put("a", "<p>\u00e6\u00f8\u00e5</p>");
+		assertEquals("<p>\u00e6\u00f8\u00e5</p>", cache.get("a"));
+		
+		// A conversion the processor gave up on is not cached
+		cache.put("b", null);
+		assertNull(cache.get("b"));
+	}
+	
+	@Test
+	public void testPersistent() throws Exception {
+		new DiskConversionCache(folder.getRoot(), 1024).put("a", "<p>A</p>");
+		
+		assertEquals("<p>A</p>", new DiskConversionCache(folder.getRoot(), 1024).get("a"));
+	}
+	
+	@Test
+	public void testEvictLeastRecentlyUsed() throws Exception {
+		ConversionCache cache = new DiskConversionCache(folder.getRoot(), 20);
+		
+		cache.put("a", "1234567890");
+		cache.put("b", "1234567890");
+		assertNotNull(cache.get("a"));
+		
+		// Exceeds the limit, b is the least recently used
+		cache.put("c", "1234567890");
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertFalse(new File(folder.getRoot(), "b.html").exists());
+	}
+	
+	@Test
+	public void testKeys() throws Exception {
+		byte[] fragment = "# Heading".getBytes("UTF-8");
+		MarkupProcessor mp = new NoMarkupProcessor();
+		
+		// A processor without a fingerprint is identified by its class
+		assertEquals(NoMarkupProcessor.class.getName(), CacheKeys.fingerprint(mp, null, null));
+		
+		String key = CacheKeys.forFragment(fragment, mp, null, "UTF-8", null);
+		assertEquals(40, key.length());
+		assertEquals(key, CacheKeys.forFragment(fragment, mp, null, "UTF-8", null));
+		assertFalse(key.equals(CacheKeys.forFragment(fragment, mp, "t", "UTF-8", null)));
+		assertFalse(key.equals(CacheKeys.forFragment(fragment, mp, null, "ISO-8859-1", null)));
+		assertFalse(key.equals(CacheKeys.forFragment("# Heading 2".getBytes("UTF-8"), mp, null, "UTF-8", null)));
+		
+		// A fragment file has the key of its bytes
+		File file = folder.newFile("heading.md");
+		Files.write(file.toPath(), fragment);
+		assertEquals(key, CacheKeys.forFragment(file, mp, null, "UTF-8", null));
+	}
+	
+	@Test
+	public void testCsvTextProcessorInKey() throws Exception {
+		byte[] fragment = "Key,Name\n1,*Stuff*\n".getBytes("UTF-8");
+		MarkupProcessor mp = new CsvProcessor();
+		AssemblyHandler markdown = createHandler(new PegdownProcessor());
+		AssemblyHandler html = createHandler(new NoMarkupProcessor());
+		
+		// The cells are converted by the processor the handler maps the extension to
+		String key = CacheKeys.forFragment(fragment, mp, "t;0;0;md", "UTF-8", markdown);
+		assertEquals(key, CacheKeys.forFragment(fragment, mp, "t;0;0;md", "UTF-8", createHandler(new PegdownProcessor())));
+		assertFalse(key.equals(CacheKeys.forFragment(fragment, mp, "t;0;0;md", "UTF-8", html)));
+		
+		// Unless the cells are not converted
+		assertEquals(CacheKeys.forFragment(fragment, mp, "t", "UTF-8", markdown), CacheKeys.forFragment(fragment, mp, "t", "UTF-8", html));
+	}
+	
+	private static AssemblyHandler createHandler(MarkupProcessor md) throws Exception {
+		Map<String, MarkupProcessor> markupProcessors = new HashMap<String, MarkupProcessor>();
+		markupProcessors.put("md", md);
+		
+		AssemblyHandler handler = new StandardHandler();
+		handler.parse(new ByteArrayInputStream("<document />".getBytes("UTF-8")), "test", "md", new File(".").toURI(), markupProcessors, null, null);
+		
+		return handler;
+	}
+}
@@ -0,0 +1,53 @@
+package net.toften.docmaker.cache;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.NoMarkupProcessor;
+
+import org.junit.Test;
+
+public class MemoryConversionCacheTest {
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		MemoryConversionCache cache = new MemoryConversionCache(20);
+		
+		assertNull(cache.get("a"));
+		cache.put("a", "1234567890");
+		cache.put("b", "1234567890");
+		assertNotNull(cache.get("a"));
+		
+		// Exceeds the limit, b is the least recently used
+		cache.put("c", "1234567890");
+		assertNull(cache.get("b"));
+		assertEquals("1234567890", cache.get("a"));
+		assertEquals("1234567890", cache.get("c"));
+		assertEquals(20, cache.getSize());
+	}
+	
+	@Test
+	public void testTooLarge() {
+		MemoryConversionCache cache = new MemoryConversionCache(20);
+		
+		cache.put("a", "1234567890");
+		cache.put("b", "123456789012345678901");
+		cache.put("c", null);
+		
+		assertNull(cache.get("b"));
+		assertNull(cache.get("c"));
+		assertNotNull(cache.get("a"));
+	}
+	
+	@Test
+	public void testSourceKeys() throws Exception {
+		URI uri = new URI("file:/docs/common/intro.md");
+		MarkupProcessor mp = new NoMarkupProcessor();
+		
+		String key = CacheKeys.forSource(uri, mp, null, "UTF-8", null);
+		assertEquals(key, CacheKeys.forSource(new URI("file:/docs/common/intro.md"), mp, null, "UTF-8", null));
+		assertFalse(key.equals(CacheKeys.forSource(uri, mp, "t", "UTF-8", null)));
+		assertFalse(key.equals(CacheKeys.forSource(new URI("file:/docs/common/copyright.md"), mp, null, "UTF-8", null)));
+	}
+}
@@ -0,0 +1,36 @@
+package net.toften.docmaker.handler;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import net.toften.docmaker.DocMakerException;
+
+import org.junit.Test;
+
+public class RepoTest {
+	@Test
+	public void testFragmentFilename() {
+		assertEquals("intro.md", Repo.getFragmentFilename("intro", "md"));
+		assertEquals("api.html", Repo.getFragmentFilename("api.html", "md"));
+		assertEquals("sub/intro.md", Repo.getFragmentFilename("sub/intro", "md"));
+
+		// A leading dot is not an extension
+		assertEquals(".hidden.md", Repo.getFragmentFilename(".hidden", "md"));
+	}
+
+	@Test
+	public void testFragmentURI() throws Exception {
+		URI base = new URI("file:/docs/tocs/");
+		Repo repo = new Repo("common", base, "../sections/common/");
+
+		assertEquals(new URI("file:/docs/sections/common/"), Repo.resolveURI(base, "../sections/common/"));
+		assertEquals(new URI("file:/docs/sections/common/intro.md"), repo.getFragmentURI("./intro.md"));
+		assertEquals(repo.getFragmentURI("intro.md"), Repo.getFragmentURI(repo.getURI(), "intro.md"));
+	}
+
+	@Test(expected = DocMakerException.class)
+	public void testRelativeWithoutBase() throws Exception {
+		Repo.resolveURI(null, "sections/common/");
+	}
+}
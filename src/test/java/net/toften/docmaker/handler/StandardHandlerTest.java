@@ -4,24 +4,36 @@ import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.toften.docmaker.DocPart;
+import net.toften.docmaker.cache.MemoryConversionCache;
 import net.toften.docmaker.handler.standard.StandardHandler;
 import net.toften.docmaker.markup.MarkupProcessor;
 import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+import net.toften.docmaker.postprocessors.PostProcessor;
+import net.toften.docmaker.toc.AnchorIndex;
 import net.toften.docmaker.toc.Chapter;
 import net.toften.docmaker.toc.ChapterSection;
+import net.toften.docmaker.toc.Heading;
 import net.toften.docmaker.toc.Section;
 import net.toften.docmaker.toc.TOC;
 
+import org.junit.After;
 import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
 
 public class StandardHandlerTest {
 	String 	tocName = "test", 
@@ -30,6 +42,15 @@ public class StandardHandlerTest {
 	Map<String, MarkupProcessor> markupProcessor = new HashMap<String, MarkupProcessor>(); 
 	Properties baseProperties = null; 
 	List<String> cssFiles = null;
+	
+	/** The handlers created by {@link #parseToc(String, BuildContext)}, closed after each test */
+	private final List<StandardHandler> handlers = new LinkedList<StandardHandler>();
+	
+	@After
+	public void tearDown() throws IOException {
+		for (StandardHandler handler : handlers)
+			handler.close();
+	}
 
 	@Test
 	public void testSectionNoChapters() throws Exception {
@@ -96,6 +117,28 @@ public class StandardHandlerTest {
 		assertFalse(c.isRotated());
 	}
 
+	@Test
+	public void testAnchorIndex() throws Exception {
+		TOC t = parseToc(
+				"<section title=\"S1\" level=\"2\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "</chapters></section>", null);
+		
+		List<AnchorIndex.Entry> entries = t.getAnchorIndex().getEntries();
+		assertEquals(2, entries.size());
+		assertTrue(entries.get(0).isSection());
+		assertEquals(t.getSections().get(0).getIdAttr(t), entries.get(0).getId());
+		
+		AnchorIndex.Entry h = entries.get(1);
+		assertFalse(h.isSection());
+		assertEquals("Intro", h.getHeading().getText());
+		assertEquals("intro", h.getChapter().getName());
+		
+		assertTrue(t.getAnchorIndex().contains(entries.get(0).getId()));
+		assertTrue(t.getAnchorIndex().contains(h.getId()));
+		assertFalse(t.getAnchorIndex().contains("missing"));
+	}
+
 	@Test
 	public void testSectionMultipleChapters() throws Exception {
 		AssemblyHandler handler = new StandardHandler();
@@ -155,4 +198,264 @@ public class StandardHandlerTest {
 		assertTrue(c.isRotated());
 		assertEquals("<div class=\"chapter rotate\" id=\"test-s1-copyright\" title=\"copyright\">\n", c.getDivOpenTag(t));
 	}
+
+	@Test
+	public void testAsyncChapters() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		BuildContext context = new BuildContext();
+		context.setChapterExecutor(executor);
+		
+		try {
+			TOC t = parseToc(
+					"<section title=\"S1\" level=\"1\"><chapters>"
+					+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+					+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+					+ "<chapter repo=\"installation\" fragment=\"overview\" level=\"1\" />"
+					+ "<chapter repo=\"installation\" fragment=\"steps\" level=\"1\" />"
+					+ "</chapters></section>", context);
+			
+			List<Chapter> chapters = ((ChapterSection)t.getSections().get(0)).getChapters();
+			assertEquals(4, chapters.size());
+			assertEquals("intro", chapters.get(0).getName());
+			assertEquals("copyright", chapters.get(1).getName());
+			assertEquals("overview", chapters.get(2).getName());
+			assertEquals("steps", chapters.get(3).getName());
+			
+			// Post processors have been run over the converted chapters
+			assertTrue(chapters.get(0).getAsHtml(t).startsWith("<h1 id=\"test-s1-intro-intro\">Intro</h1>"));
+			assertEquals("<p>Copyright me</p>", chapters.get(1).getAsHtml(t));
+			assertTrue(chapters.get(2).getAsHtml(t).contains("<h2 id=\"test-s1-overview-pre-requisites\">"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testStreamedChapters() throws Exception {
+		BuildContext context = new BuildContext();
+		context.setStreamingWindow(2);
+		
+		TOC t = parseToc(
+				"<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+				+ "<chapter repo=\"installation\" fragment=\"overview\" level=\"1\" />"
+				+ "</chapters></section>", context);
+		
+		List<Chapter> chapters = ((ChapterSection)t.getSections().get(0)).getChapters();
+		assertEquals(3, chapters.size());
+		
+		// The chapters are read back from the chapter store
+		assertTrue(chapters.get(0).getAsHtml(t).startsWith("<h1 id=\"test-s1-intro-intro\">Intro</h1>"));
+		assertEquals("<p>Copyright me</p>", chapters.get(1).getAsHtml(t));
+		
+		// The headers are indexed
+		assertEquals(0, chapters.get(1).getHeadings(t).size());
+		Heading h = chapters.get(0).getHeadings(t).get(0);
+		assertEquals(1, h.getLevel());
+		assertEquals("test-s1-intro-intro", h.getId());
+		assertEquals("Intro", h.getText());
+	}
+
+	@Test
+	public void testStreamingWindowBoundsConversions() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		BuildContext context = new BuildContext();
+		context.setChapterExecutor(executor);
+		context.setStreamingWindow(2);
+		
+		WindowPostProcessor.reset();
+		MarkupProcessor mdProcessor = new PegdownProcessor() {
+			@Override
+			public String process(String inString, String config, AssemblyHandler handler) throws IOException {
+				WindowPostProcessor.converted.incrementAndGet();
+				return super.process(inString, config, handler);
+			}
+		};
+		mdProcessor.setEncoding("UTF-8");
+		
+		try {
+			TOC t = parseToc(tocName,
+					"<postprocessor classname=\"" + WindowPostProcessor.class.getName() + "\" />"
+					+ "<section title=\"S1\" level=\"1\"><chapters>"
+					+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+					+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+					+ "<chapter repo=\"installation\" fragment=\"overview\" level=\"1\" />"
+					+ "<chapter repo=\"installation\" fragment=\"steps\" level=\"1\" />"
+					+ "</chapters></section>", context, mdProcessor);
+			
+			// The chapters are processed in order, with at most the window converted ahead
+			assertEquals("[intro, copyright, overview, steps]", WindowPostProcessor.processed.toString());
+			assertTrue(WindowPostProcessor.maxConverted <= 2);
+			assertEquals("<p>Copyright me</p>", ((ChapterSection)t.getSections().get(0)).getChapters().get(1).getAsHtml(t));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Records the order the chapters are processed in, and how many chapters have been converted
+	 * but not yet processed when each chapter is processed.
+	 */
+	public static class WindowPostProcessor implements PostProcessor {
+		static final AtomicInteger converted = new AtomicInteger();
+		static final List<String> processed = new LinkedList<String>();
+		static int maxConverted;
+		
+		static void reset() {
+			converted.set(0);
+			processed.clear();
+			maxConverted = 0;
+		}
+		
+		@Override
+		public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t) {
+			maxConverted = Math.max(maxConverted, converted.get() - processed.size());
+			processed.add(chapter.getName());
+			out.append(fragmentAsHtml);
+		}
+		
+		@Override
+		public void init(Attributes attributes) {
+		}
+	}
+
+	@Test
+	public void testChapterStoreThreshold() throws Exception {
+		BuildContext context = new BuildContext();
+		context.setChapterStoreThreshold(1);
+		
+		TOC t = parseToc(
+				"<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+				+ "</chapters></section>", context);
+		
+		// The chapters are read back from the memory-mapped chapter store
+		List<Chapter> chapters = ((ChapterSection)t.getSections().get(0)).getChapters();
+		assertTrue(chapters.get(0).getAsHtml(t).startsWith("<h1 id=\"test-s1-intro-intro\">Intro</h1>"));
+		assertEquals("<p>Copyright me</p>", chapters.get(1).getAsHtml(t));
+	}
+
+	@Test
+	public void testLocalFragmentConvertedFromFile() throws Exception {
+		BuildContext context = new BuildContext();
+		context.setConversionCache(new MemoryConversionCache(1024 * 1024));
+		
+		// The local fragment files are handed to the processor, rather than read into a stream
+		final AtomicInteger files = new AtomicInteger();
+		MarkupProcessor mdProcessor = new PegdownProcessor() {
+			@Override
+			public String process(File inFile, String config, AssemblyHandler handler) throws IOException {
+				files.incrementAndGet();
+				return super.process(inFile, config, handler);
+			}
+			
+			@Override
+			public String process(InputStream is, String config, AssemblyHandler handler) throws IOException {
+				throw new AssertionError("Local fragment read as a stream");
+			}
+		};
+		mdProcessor.setEncoding("UTF-8");
+		
+		String sections = 
+				"<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+				+ "</chapters></section>";
+		TOC t = parseToc(tocName, sections, context, mdProcessor);
+		assertEquals(2, files.get());
+		assertEquals("<p>Copyright me</p>", ((ChapterSection)t.getSections().get(0)).getChapters().get(1).getAsHtml(t));
+		
+		// The conversions are cached by the contents of the files
+		parseToc(tocName, sections, context, mdProcessor);
+		assertEquals(2, files.get());
+	}
+
+	@Test
+	public void testStrictKeys() throws Exception {
+		String sections = 
+				"<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"keys\" level=\"1\" />"
+				+ "</chapters></section>";
+		
+		// By default an unresolved key is replaced by a message
+		TOC t = parseToc(sections, null);
+		assertEquals("<p>Built for KEY: <b>product</b> NOT FOUND</p>", ((ChapterSection)t.getSections().get(0)).getChapters().get(0).getAsHtml(t));
+		
+		BuildContext context = new BuildContext();
+		context.setStrictKeys(true);
+		try {
+			parseToc(sections, context);
+			fail("Unresolved key did not fail the build");
+		} catch (SAXException e) {
+			assertEquals("Key product NOT FOUND", e.getException().getMessage());
+		}
+	}
+
+	@Test
+	public void testSharedFragmentCache() throws Exception {
+		BuildContext context = new BuildContext();
+		context.setFragmentCache(new MemoryConversionCache(1024 * 1024));
+		
+		final AtomicInteger conversions = new AtomicInteger();
+		MarkupProcessor mdProcessor = new PegdownProcessor() {
+			@Override
+			public String process(String inString, String config, AssemblyHandler handler) throws IOException {
+				conversions.incrementAndGet();
+				return super.process(inString, config, handler);
+			}
+		};
+		mdProcessor.setEncoding("UTF-8");
+		
+		String[] html = new String[2];
+		for (int level = 1; level <= 2; level++) {
+			TOC t = parseToc("test" + level,
+					"<section title=\"S1\" level=\"" + level + "\"><chapters>"
+					+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+					+ "</chapters></section>", context, mdProcessor);
+			html[level - 1] = ((ChapterSection)t.getSections().get(0)).getChapters().get(0).getAsHtml(t);
+		}
+		
+		// The fragment is converted once, but post-processed for each TOC
+		assertEquals(1, conversions.get());
+		assertTrue(html[0].startsWith("<h1 id=\"test1-s1-intro-intro\">Intro</h1>"));
+		assertTrue(html[1].startsWith("<h2 id=\"test2-s1-intro-intro\">Intro</h2>"));
+	}
+	
+	/**
+	 * Parse a TOC using the repos of the sample fragments, converting the markdown fragments with pegdown.
+	 * 
+	 * @param sectionsXml the section elements of the TOC
+	 * @param context the build context of the handler, or <code>null</code> to use the default
+	 * @return the parsed TOC; its handler is closed after the test
+	 */
+	private TOC parseToc(String sectionsXml, BuildContext context) throws Exception {
+		MarkupProcessor mdProcessor = new PegdownProcessor();
+		mdProcessor.setEncoding("UTF-8");
+		
+		return parseToc(tocName, sectionsXml, context, mdProcessor);
+	}
+	
+	private TOC parseToc(String name, String sectionsXml, BuildContext context, MarkupProcessor mdProcessor) throws Exception {
+		StandardHandler handler = new StandardHandler();
+		handlers.add(handler);
+		if (context != null)
+			handler.setBuildContext(context);
+		
+		Map<String, MarkupProcessor> processors = new HashMap<String, MarkupProcessor>();
+		processors.put("md", mdProcessor);
+		
+		String toc =
+				"<document>"
+				+ "<repos>"
+				+ "<repo id=\"common\" uri=\"src/test/resources/sample/sections/common/\" />"
+				+ "<repo id=\"installation\" uri=\"src/test/resources/sample/sections/installation/\" />"
+				+ "</repos>"
+				+ sectionsXml
+				+ "</document>";
+		InputStream is = new ByteArrayInputStream(toc.getBytes(StandardCharsets.UTF_8));
+		
+		return handler.parse(is, name, defaultExtension, baseURI, processors, baseProperties, cssFiles);
+	}
 }
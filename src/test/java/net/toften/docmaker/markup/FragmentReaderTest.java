@@ -0,0 +1,69 @@
+package net.toften.docmaker.markup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FragmentReaderTest {
+	private static final String TEXT = "# \u00c6bler\n\n<pre>\n  a\n</pre>\n\u20ac \ud83d\ude00\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadFile() throws Exception {
+		File file = folder.newFile("fragment.md");
+		Files.write(file.toPath(), TEXT.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(TEXT, new FragmentReader("UTF-8").read(file));
+		// Memory-mapped
+		assertEquals(TEXT, new FragmentReader("UTF-8", 0).read(file));
+	}
+
+	@Test
+	public void testReadStream() throws Exception {
+		FragmentReader reader = new FragmentReader("UTF-16");
+
+		assertEquals(TEXT, reader.read(new ByteArrayInputStream(TEXT.getBytes(StandardCharsets.UTF_16))));
+		// The decoder is reused
+		assertEquals("b", reader.read(new ByteArrayInputStream("b".getBytes(StandardCharsets.UTF_16))));
+	}
+
+	@Test
+	public void testOpen() throws Exception {
+		FragmentReader reader = new FragmentReader("UTF-8");
+
+		// Decoded as it is read, replacing malformed input as the other read methods do
+		byte[] bytes = TEXT.getBytes(StandardCharsets.UTF_8);
+		byte[] malformed = Arrays.copyOf(bytes, bytes.length + 1);
+		malformed[bytes.length] = (byte) 0xff;
+		Reader r = reader.open(new ByteArrayInputStream(malformed));
+		StringBuilder read = new StringBuilder();
+		try {
+			int c;
+			while ((c = r.read()) >= 0)
+				read.append((char) c);
+		} finally {
+			r.close();
+		}
+		assertEquals(reader.read(new ByteArrayInputStream(malformed)), read.toString());
+		assertTrue(read.toString().startsWith(TEXT));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		FragmentReader reader = new FragmentReader("UTF-8");
+
+		assertEquals("", reader.read(folder.newFile("empty.md")));
+		assertEquals("", reader.read(new ByteArrayInputStream(new byte[0])));
+	}
+}
@@ -0,0 +1,109 @@
+package net.toften.docmaker.markup.csv;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+
+import org.junit.Test;
+
+public class CellBatchTest {
+	private static final String[] CELLS = {
+		"Gold", "*Silver* item", "- a\n- b", "", "Para 1\n\nPara 2", "    code", "Done, 50% (approx.)", "x <div>y", "1. One"
+	};
+
+	private static class CountingProcessor extends PegdownProcessor {
+		int calls;
+
+		@Override
+		public String process(String inString, String config, AssemblyHandler handler) throws IOException {
+			calls++;
+			return super.process(inString, config, handler);
+		}
+	}
+
+	@Test
+	public void testSameAsSingleCells() throws Exception {
+		CountingProcessor mp = new CountingProcessor();
+
+		StringBuilder expected = new StringBuilder();
+		for (String cell : CELLS) {
+			expected.append("<td>").append(mp.process(cell, null, null)).append("</td>\n");
+		}
+
+		mp.calls = 0;
+		CellBatch batch = new CellBatch(mp, null, 100);
+		StringBuilder out = new StringBuilder();
+		for (String cell : CELLS) {
+			batch.append("<td>");
+			batch.appendCell(cell);
+			batch.append("</td>\n");
+		}
+		batch.flush(out);
+
+		assertEquals(expected.toString(), out.toString());
+		// The probe and one batch
+		assertEquals(2, mp.calls);
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		CountingProcessor mp = new CountingProcessor();
+		CellBatch batch = new CellBatch(mp, null, 100);
+
+		// A link reference must not be seen by the other cells
+		StringBuilder out = new StringBuilder();
+		batch.appendCell("[x]: http://example.com");
+		batch.append("|");
+		batch.appendCell("[a][x]");
+		batch.flush(out);
+
+		assertEquals("|<p>[a][x]</p>", out.toString());
+		assertEquals(3, mp.calls);
+	}
+
+	@Test
+	public void testBatchNotConverted() throws Exception {
+		// Pegdown returns null when it runs out of time, which here happens for the joined batch only
+		CountingProcessor mp = new CountingProcessor() {
+			@Override
+			public String process(String inString, String config, AssemblyHandler handler) throws IOException {
+				String html = super.process(inString, config, handler);
+				return inString.contains("docmaker-cell-separator") ? null : html;
+			}
+		};
+
+		StringBuilder expected = new StringBuilder();
+		for (String cell : CELLS) {
+			expected.append("<td>").append(mp.process(cell, null, null).trim()).append("</td>\n");
+		}
+
+		mp.calls = 0;
+		CellBatch batch = new CellBatch(mp, null, 100);
+		StringBuilder out = new StringBuilder();
+		for (String cell : CELLS) {
+			batch.append("<td>");
+			batch.appendCell(cell);
+			batch.append("</td>\n");
+		}
+		batch.flush(out);
+
+		assertEquals(expected.toString(), out.toString());
+		// The probe, the batch, and each cell which is not plain
+		assertTrue(mp.calls > 2);
+	}
+
+	@Test
+	public void testPlain() {
+		assertTrue(CellBatch.isPlain("Gold"));
+		assertTrue(CellBatch.isPlain("Done, 50% (approx.)"));
+		assertFalse(CellBatch.isPlain("1. One"));
+		assertFalse(CellBatch.isPlain("*Silver*"));
+		assertFalse(CellBatch.isPlain("Wait..."));
+		assertFalse(CellBatch.isPlain("See www.example.com"));
+		assertFalse(CellBatch.isPlain("Two\nlines"));
+		assertFalse(CellBatch.isPlain(""));
+	}
+}
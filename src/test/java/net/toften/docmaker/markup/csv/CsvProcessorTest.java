@@ -0,0 +1,88 @@
+package net.toften.docmaker.markup.csv;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.handler.standard.StandardHandler;
+
+import org.junit.Test;
+
+public class CsvProcessorTest {
+	private static final String CSV =
+			"Exported,,\n"
+			+ "Key,Name,Value\n"
+			+ "1,Stuff,Gold\n"
+			+ "2,Piles,Silver\n"
+			+ "3,Heaps,Bronze\n"
+			+ ",,\n"
+			+ "Total,,3\n";
+
+	@Test
+	public void testTable() throws Exception {
+		String html = new CsvProcessor().process(CSV, "t;1;2;;Name,Value;Value:(Gold|Silver)", null);
+
+		assertEquals("<table class=\"csv\">\n"
+				+ "<thead>\n<tr>\n<th>Name</th>\n<th>Value</th>\n</tr>\n</thead>\n"
+				+ "<tbody>\n"
+				+ "<tr>\n<td>Stuff</td>\n<td>Gold</td>\n</tr>\n"
+				+ "<tr>\n<td>Piles</td>\n<td>Silver</td>\n</tr>\n"
+				+ "</tbody>\n</table>\n", html);
+	}
+
+	@Test
+	public void testHeadings() throws Exception {
+		String html = new CsvProcessor().process(CSV, "h;1;2;;Name:2,Value", null);
+
+		assertEquals("<h2>\nStuff\n</h2>\n<p>Gold</p>\n"
+				+ "<h2>\nPiles\n</h2>\n<p>Silver</p>\n"
+				+ "<h2>\nHeaps\n</h2>\n<p>Bronze</p>\n", html);
+	}
+
+	@Test
+	public void testAllColumns() throws Exception {
+		CsvProcessor processor = new CsvProcessor();
+		String html = processor.process("Key,Name\n1,Stuff\n2,Piles\n", "t;0;0;;;Key:num:==2", null);
+
+		assertEquals("<table class=\"csv\">\n"
+				+ "<thead>\n<tr>\n<th>Key</th>\n<th>Name</th>\n</tr>\n</thead>\n"
+				+ "<tbody>\n"
+				+ "<tr>\n<td>2</td>\n<td>Piles</td>\n</tr>\n"
+				+ "</tbody>\n</table>\n", html);
+		assertSame(processor.getView("t;0;0;;;Key:num:==2"), processor.getView("t;0;0;;;Key:num:==2"));
+	}
+
+	@Test
+	public void testSkipAll() throws Exception {
+		assertEquals("<table class=\"csv\">\n</tbody>\n</table>\n", new CsvProcessor().process(CSV, "t;1;6;;Name", null));
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		StringBuilder csv = new StringBuilder("Key,Name,Value\n");
+		for (int i = 0; i < 2 * CsvProcessor.CHUNK_ROWS + 10; i++) {
+			csv.append(i).append(",Name ").append(i).append(",").append(i % 3).append("\n");
+		}
+		csv.append("Total,,\n");
+
+		AssemblyHandler handler = new StandardHandler();
+		BuildContext context = new BuildContext();
+		handler.setBuildContext(context);
+
+		for (String config : new String[] { "t;0;1;;Name,Value;Value:[01]", "h;0;1;;Name:3,Key" }) {
+			String expected = new CsvProcessor().process(csv.toString(), config, handler);
+
+			ExecutorService executor = new ForkJoinPool(4);
+			try {
+				context.setCsvExecutor(executor);
+				assertEquals(config, expected, new CsvProcessor().process(csv.toString(), config, handler));
+			} finally {
+				context.setCsvExecutor(null);
+				executor.shutdownNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package net.toften.docmaker.markup.csv;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CsvViewTest {
+	private static final String[] HEADER = { "Key", "Name", "Priority" };
+
+	@Test
+	public void testCompile() {
+		CsvView view = CsvView.compile("h;3;2;md;Name:2,Key");
+
+		assertEquals("h", view.getFormat());
+		assertEquals(3, view.getStartSkip());
+		assertEquals(2, view.getEndSkip());
+		assertEquals("md", view.getTextProcessor());
+
+		CsvView.Bound bound = view.bind(HEADER);
+		assertArrayEquals(new int[] { 1, 0 }, bound.getColumns());
+		assertArrayEquals(new int[] { 2, -1 }, bound.getLevels());
+
+		// The defaults
+		view = CsvView.compile(null);
+		assertEquals("t", view.getFormat());
+		assertNull(view.getTextProcessor());
+		assertArrayEquals(new int[] { 0, 1, 2 }, view.bind(HEADER).getColumns());
+	}
+
+	@Test
+	public void testMalformed() {
+		for (String config : new String[] { "x", "t;-1", "t;0;a", "h;0;0;;Name:a", "t;0;0;;;Name", "t;0;0;;;Name:(", "t;0;0;;;Name:num:3", "t;0;0;;;;" + "x;y" }) {
+			try {
+				CsvView.compile(config);
+				fail(config);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(config));
+			}
+		}
+	}
+
+	@Test
+	public void testFilters() {
+		CsvView.Bound bound = CsvView.compile("t;0;0;;;Key:K.*,Priority:num:[1..3],Priority:num:<3,Name:Gold").bind(HEADER);
+
+		assertTrue(bound.accept(new String[] { "K1", "Gold", "2" }));
+		assertFalse(bound.accept(new String[] { "K1", "Gold", "3" }));
+		assertFalse(bound.accept(new String[] { "K1", "Gold", "high" }));
+		assertFalse(bound.accept(new String[] { "X1", "Gold", "1" }));
+		assertFalse(bound.accept(new String[] { "K1", "Golden", "1" }));
+		assertFalse(bound.accept(new String[] { "K1", "Gold" }));
+
+		// The order the filters are checked in is adjusted, but not the rows accepted
+		for (int i = 0; i < 5000; i++) {
+			String priority = String.valueOf(i % 5);
+			assertEquals(priority, i % 5 < 3 && i % 5 >= 1, bound.accept(new String[] { "K" + i, "Gold", priority }));
+		}
+	}
+
+	@Test
+	public void testFiltersInParallel() throws Exception {
+		final CsvView.Bound bound = CsvView.compile("t;0;0;;;Key:K.*,Priority:num:[1..3],Name:Gold").bind(HEADER);
+		final AtomicInteger wrong = new AtomicInteger();
+
+		// The rows are checked by several threads, as the CSV rows are rendered
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						String priority = String.valueOf(i % 5);
+						if (bound.accept(new String[] { "K" + i, i % 7 == 0 ? "Silver" : "Gold", priority }) != (i % 5 >= 1 && i % 5 <= 3 && i % 7 != 0))
+							wrong.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(0, wrong.get());
+	}
+
+	@Test
+	public void testRegexFiltersUnchanged() {
+		// Without the numeric prefix, a range is a character class
+		CsvView.Bound bound = CsvView.compile("t;0;0;;;Priority:[1..3]").bind(HEADER);
+		assertTrue(bound.accept(new String[] { "K1", "Gold", "1" }));
+		assertTrue(bound.accept(new String[] { "K1", "Gold", "." }));
+		assertFalse(bound.accept(new String[] { "K1", "Gold", "2" }));
+
+		// and a comparison is a literal
+		bound = CsvView.compile("t;0;0;;;Priority:>=5").bind(HEADER);
+		assertTrue(bound.accept(new String[] { "K1", "Gold", ">=5" }));
+		assertFalse(bound.accept(new String[] { "K1", "Gold", "7" }));
+	}
+}
@@ -0,0 +1,30 @@
+package net.toften.docmaker.markup.markdown.pegdown;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.pegdown.Extensions;
+
+public class PegdownProcessorTest {
+	@Test
+	public void testParseExtensions() {
+		assertEquals(Extensions.TABLES | Extensions.FENCED_CODE_BLOCKS, PegdownProcessor.parseExtensions("TABLES, fenced_code_blocks"));
+		assertEquals(Extensions.TABLES, PegdownProcessor.parseExtensions("TABLES,NOT_AN_EXTENSION"));
+	}
+
+	@Test
+	public void testConfig() throws Exception {
+		PegdownProcessor p = new PegdownProcessor();
+
+		assertFalse(p.process("one\ntwo", null, null).contains("<br/>"));
+		assertTrue(p.process("one\ntwo", "HARDWRAPS", null).contains("<br/>"));
+	}
+
+	@Test
+	public void testParserReused() throws Exception {
+		PegdownProcessor p = new PegdownProcessor();
+
+		assertSame(p.getParser(Extensions.TABLES), p.getParser(Extensions.TABLES));
+		assertNotSame(p.getParser(Extensions.TABLES), p.getParser(Extensions.NONE));
+	}
+}
@@ -0,0 +1,47 @@
+package net.toften.docmaker.output;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChannelWriterTest {
+	private static final String TEXT = "<p>A \u00e6\u00f8\u00e5 \u20ac \ud83d\ude00</p>\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEncodings() throws Exception {
+		// A small buffer, so it is drained several times
+		ChannelWriter writer = new ChannelWriter(8);
+
+		for (String encoding : new String[] { "UTF-8", "UTF-16", "ISO-8859-1" }) {
+			Charset charset = Charset.forName(encoding);
+			String text = encoding.equals("ISO-8859-1") ? "<p>A \u00e6\u00f8\u00e5</p>\n" : TEXT;
+			File file = folder.newFile(encoding);
+
+			writer.open(file, charset);
+			// Split the surrogate pair over two writes
+			int split = Math.max(text.indexOf("\ude00"), 0);
+			writer.write(text.substring(0, split));
+			writer.append(text, split, text.length());
+			writer.close();
+
+			assertEquals(encoding, text, new String(Files.readAllBytes(file.toPath()), charset));
+		}
+	}
+
+	@Test(expected = MalformedInputException.class)
+	public void testUnpairedSurrogate() throws Exception {
+		ChannelWriter writer = new ChannelWriter();
+		writer.open(folder.newFile("unpaired"), Charset.forName("UTF-8"));
+		writer.write("A \ud83d B");
+	}
+}
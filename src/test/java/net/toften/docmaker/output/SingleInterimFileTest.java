@@ -0,0 +1,197 @@
+package net.toften.docmaker.output;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.BuildContext;
+import net.toften.docmaker.handler.standard.StandardHandler;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+import net.toften.docmaker.toc.TOC;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SingleInterimFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TOC t;
+
+	@Before
+	public void setUp() throws Exception {
+		t = parse(null);
+	}
+
+	private static TOC parse(List<String> cssFiles) throws Exception {
+		Map<String, MarkupProcessor> markupProcessors = new HashMap<String, MarkupProcessor>();
+		MarkupProcessor mdProcessor = new PegdownProcessor();
+		mdProcessor.setEncoding("UTF-8");
+		markupProcessors.put("md", mdProcessor);
+
+		String toc =
+				"<document>"
+				+ "<header title=\"${product} manual\" />"
+				+ "<properties><property key=\"product\" value=\"Widget\" /></properties>"
+				+ "<repos><repo id=\"common\" uri=\"src/test/resources/sample/sections/common/\" /></repos>"
+				+ "<psection title=\"Contents\" classname=\"net.toften.docmaker.pseudosections.TOCPseudoSection\" level=\"3\" />"
+				+ "<section title=\"S1\" level=\"1\"><chapters>"
+				+ "<chapter repo=\"common\" fragment=\"intro\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"copyright\" level=\"1\" />"
+				+ "<chapter repo=\"common\" fragment=\"api.html\" passthrough=\"true\" />"
+				+ "</chapters></section>"
+				+ "</document>";
+
+		// The encoding of the interim documents, so the passthrough chapter can be copied into them
+		BuildContext context = new BuildContext();
+		context.setEncoding("UTF-8");
+
+		AssemblyHandler handler = new StandardHandler();
+		handler.setBuildContext(context);
+		return handler.parse(new ByteArrayInputStream(toc.getBytes(StandardCharsets.UTF_8)), "test", "md", new File(".").toURI(), markupProcessors, null, cssFiles);
+	}
+
+	@Test
+	public void testDocumentSameAsFile() throws Exception {
+		SingleInterimFile interim = new SingleInterimFile();
+
+		File dir = folder.newFolder("file");
+		String expected = new String(Files.readAllBytes(interim.buildInterimFile(dir, "test", "UTF-8", t).toPath()), StandardCharsets.UTF_8);
+
+		// The passthrough chapter is included as it is
+		String api = new String(Files.readAllBytes(new File("src/test/resources/sample/sections/common/api.html").toPath()), StandardCharsets.UTF_8);
+		assertTrue(expected.contains(">\n" + api + "</div>"));
+
+		// The document is piped to the reader, and not written to disk
+		File pipeDir = folder.newFolder("pipe");
+		Reader reader = interim.buildInterimDocument(pipeDir, "piped", "UTF-8", t, false);
+		assertEquals(expected, read(reader));
+		reader.close();
+		assertEquals(0, pipeDir.list().length);
+
+		// The interim file can still be written, for debugging
+		read(interim.buildInterimDocument(pipeDir, "piped", "UTF-8", t, true));
+		assertEquals(expected, new String(Files.readAllBytes(interim.getInterimFile(pipeDir, "piped").toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testWriterReusedBetweenDocuments() throws Exception {
+		SingleInterimFile interim = new SingleInterimFile();
+
+		File dir = folder.newFolder("reuse");
+		String expected = new String(Files.readAllBytes(interim.buildInterimFile(dir, "test", "UTF-8", t).toPath()), StandardCharsets.UTF_8);
+
+		// The same writer pipes the next documents, in another encoding and back again
+		assertEquals(expected, read(interim.buildInterimDocument(dir, "latin", "ISO-8859-1", t, false)));
+		assertEquals(expected, read(interim.buildInterimDocument(dir, "again", "UTF-8", t, false)));
+	}
+
+	@Test
+	public void testTocLinksResolve() throws Exception {
+		String document = read(new SingleInterimFile().buildInterimDocument(folder.newFolder("toc"), "toc", "UTF-8", t, false));
+
+		// Only the header of the passthrough chapter with an id is in the table of contents
+		assertTrue(document.contains("href=\"#api\""));
+		assertFalse(document.contains(">Types</a>"));
+
+		// Every entry of the table of contents links to an element of the document
+		Matcher m = Pattern.compile("href=\"#(.*?)\"").matcher(document);
+		int links = 0;
+		while (m.find()) {
+			assertTrue("No element with id " + m.group(1), document.contains("id=\"" + m.group(1) + "\""));
+			links++;
+		}
+		assertTrue(links > 1);
+	}
+
+	@Test
+	public void testPassthroughChapterTransferred() throws Exception {
+		final List<String> messages = new ArrayList<String>();
+		Handler handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				messages.add(record.getMessage());
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Logger logger = Logger.getLogger(SingleInterimFile.class.getName());
+		Level level = logger.getLevel();
+		logger.setLevel(Level.FINE);
+		logger.addHandler(handler);
+		try {
+			// The fragment is copied into the piped document, as it is into the interim file
+			read(new SingleInterimFile().buildInterimDocument(folder.newFolder("transfer"), "transfer", "UTF-8", t, false));
+		} finally {
+			logger.removeHandler(handler);
+			logger.setLevel(level);
+		}
+
+		boolean copied = false;
+		for (String message : messages)
+			copied |= message.startsWith("Copied ") && message.contains("CHAPTER api.html");
+		assertTrue(messages.toString(), copied);
+	}
+
+	@Test
+	public void testWriterFailureReported() throws Exception {
+		TOC broken = parse(Arrays.asList("src/test/resources/missing.css"));
+
+		try {
+			read(new SingleInterimFile().buildInterimDocument(folder.newFolder("broken"), "broken", "UTF-8", broken, false));
+			fail("The document could not be written");
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof FileNotFoundException);
+		}
+	}
+
+	@Test
+	public void testReaderClosedEarly() throws Exception {
+		// The writer fails once the pipe is closed, which is not reported
+		Reader reader = new SingleInterimFile().buildInterimDocument(folder.newFolder("early"), "early", "UTF-8", t, false);
+		assertTrue(reader.read() >= 0);
+		reader.close();
+	}
+
+	private static String read(Reader r) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[1024];
+		int n;
+		try {
+			while ((n = r.read(buffer)) >= 0) {
+				sb.append(buffer, 0, n);
+			}
+		} finally {
+			r.close();
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,39 @@
+package net.toften.docmaker.plugin;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PluginRegistryTest {
+	public interface Plugin {
+	}
+
+	public static class PlainPlugin implements Plugin {
+	}
+
+	public static class ThreadSafePlugin implements Plugin, ThreadSafe {
+	}
+
+	private final PluginRegistry registry = new PluginRegistry();
+
+	@Test
+	public void testPlainPluginCreatedEachTime() throws Exception {
+		Plugin p1 = registry.acquire(Plugin.class, PlainPlugin.class.getName());
+		Plugin p2 = registry.acquire(Plugin.class, PlainPlugin.class.getName());
+
+		assertNotSame(p1, p2);
+	}
+
+	@Test
+	public void testThreadSafePluginShared() throws Exception {
+		Plugin p1 = registry.acquire(Plugin.class, ThreadSafePlugin.class.getName());
+		Plugin p2 = registry.acquire(Plugin.class, ThreadSafePlugin.class.getName());
+
+		assertSame(p1, p2);
+	}
+
+	@Test(expected = ClassCastException.class)
+	public void testWrongType() throws Exception {
+		registry.acquire(Runnable.class, PlainPlugin.class.getName());
+	}
+}
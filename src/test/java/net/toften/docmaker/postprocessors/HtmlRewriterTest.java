@@ -0,0 +1,151 @@
+package net.toften.docmaker.postprocessors;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.toften.docmaker.handler.AssemblyHandler;
+import net.toften.docmaker.handler.standard.StandardHandler;
+import net.toften.docmaker.markup.MarkupProcessor;
+import net.toften.docmaker.markup.markdown.pegdown.PegdownProcessor;
+import net.toften.docmaker.toc.Chapter;
+import net.toften.docmaker.toc.ChapterSection;
+import net.toften.docmaker.toc.Heading;
+import net.toften.docmaker.toc.TOC;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+
+public class HtmlRewriterTest {
+	private static final String HTML =
+			"<h1>Intro to ${product}</h1>\n"
+			+ "<p>Version ${version} < 2, see <a href=\"#x-${product}\">here</a>.</p>\n"
+			+ "<p><img src=\"images/pic.png\" alt=\"Pic\"/></p>\n"
+			+ "<!-- ${product} -->\n"
+			+ "<h2>Second</h2>\n";
+
+	private TOC t;
+	private Chapter c;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, MarkupProcessor> markupProcessors = new HashMap<String, MarkupProcessor>();
+		MarkupProcessor mdProcessor = new PegdownProcessor();
+		mdProcessor.setEncoding("UTF-8");
+		markupProcessors.put("md", mdProcessor);
+
+		String toc =
+				"<document>"
+				+ "<properties><property key=\"product\" value=\"Widget\" /><property key=\"version\" value=\"${product}-1.0\" /></properties>"
+				+ "<repos><repo id=\"common\" uri=\"src/test/resources/sample/sections/common/\" /></repos>"
+				+ "<section title=\"S1\" level=\"2\"><chapters><chapter repo=\"common\" fragment=\"intro\" level=\"1\" /></chapters></section>"
+				+ "</document>";
+
+		AssemblyHandler handler = new StandardHandler();
+		t = handler.parse(new ByteArrayInputStream(toc.getBytes(StandardCharsets.UTF_8)), "test", "md", new File(".").toURI(), markupProcessors, null, null);
+		c = ((ChapterSection) t.getSections().get(0)).getChapters().get(0);
+	}
+
+	@Test
+	public void testSameAsRegexPostProcessors() {
+		List<PostProcessor> regex = new LinkedList<PostProcessor>();
+		regex.add(new HeaderIncrementPostProcessor());
+		regex.add(new InjectHeaderIdPostProcessor());
+		regex.add(new AdjustImageHrefPostProcessor());
+		regex.add(new ApplyKeyValue());
+
+		String expected = HTML;
+		for (PostProcessor pp : regex) {
+			StringBuffer out = new StringBuffer();
+			pp.processFragment(c, expected, out, t);
+			expected = out.toString();
+		}
+
+		List<PostProcessor> fused = new LinkedList<PostProcessor>();
+		for (PostProcessor pp : regex)
+			HtmlRewriter.add(fused, pp);
+		assertEquals(1, fused.size());
+
+		StringBuffer out = new StringBuffer();
+		fused.get(0).processFragment(c, HTML, out, t);
+
+		assertEquals(expected, out.toString());
+	}
+
+	@Test
+	public void testTagChanges() {
+		HtmlRewriter rewriter = new HtmlRewriter();
+		rewriter.register(new HeaderIncrementPostProcessor());
+		rewriter.register(new InjectHeaderIdPostProcessor());
+
+		StringBuffer out = new StringBuffer();
+		rewriter.processFragment(c, "<h1 class='a' >A</h1><br/><H2\n>B</H2>", out, t);
+
+		assertEquals("<h2 class='a' id=\"test-s1-intro-a\">A</h2><br/><h3\nid=\"test-s1-intro-b\">B</h3>", out.toString());
+	}
+
+	@Test
+	public void testNamesRewrites() {
+		HtmlRewriter rewriter = new HtmlRewriter();
+		rewriter.register(new HeaderIncrementPostProcessor());
+		rewriter.register(new InjectHeaderIdPostProcessor());
+
+		// The name of the fused pass in the build report
+		assertEquals(HtmlRewriter.class.getName() + "[HeaderIncrementPostProcessor, InjectHeaderIdPostProcessor]", rewriter.toString());
+	}
+
+	@Test
+	public void testOutline() {
+		HtmlRewriter rewriter = new HtmlRewriter();
+		rewriter.register(new HeaderIncrementPostProcessor());
+		rewriter.register(new InjectHeaderIdPostProcessor());
+		rewriter.register(new ApplyKeyValue());
+
+		List<Heading> headings = new ArrayList<Heading>();
+		StringBuffer out = new StringBuffer();
+		rewriter.processFragment(c, HTML + "<h3>Spans\nlines</h3>", out, t, headings);
+
+		assertEquals(3, headings.size());
+
+		// The same headers as found in the output
+		List<Heading> scanned = Heading.scan(out.toString());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(scanned.get(i).getLevel(), headings.get(i).getLevel());
+			assertEquals(scanned.get(i).getId(), headings.get(i).getId());
+			assertEquals(scanned.get(i).getText(), headings.get(i).getText());
+		}
+		assertEquals("Intro to Widget", headings.get(0).getText());
+
+		assertEquals(4, headings.get(2).getLevel());
+		assertEquals("Spans\nlines", headings.get(2).getText());
+		assertNotNull(headings.get(2).getId());
+	}
+
+	@Test
+	public void testNonHandlerNotFused() {
+		List<PostProcessor> postProcessors = new LinkedList<PostProcessor>();
+		HtmlRewriter.add(postProcessors, new ApplyKeyValue());
+		HtmlRewriter.add(postProcessors, new PostProcessor() {
+			@Override
+			public void processFragment(Chapter chapter, String fragmentAsHtml, StringBuffer out, TOC t) {
+				out.append(fragmentAsHtml);
+			}
+
+			@Override
+			public void init(Attributes attributes) {
+			}
+		});
+		HtmlRewriter.add(postProcessors, new ApplyKeyValue());
+
+		assertEquals(3, postProcessors.size());
+		assertTrue(postProcessors.get(2) instanceof HtmlRewriter);
+	}
+}
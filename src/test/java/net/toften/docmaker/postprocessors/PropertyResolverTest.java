@@ -0,0 +1,63 @@
+package net.toften.docmaker.postprocessors;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class PropertyResolverTest {
+	@Test
+	public void testNestedValues() {
+		Properties p = new Properties();
+		p.put("product", "Widget");
+		p.put("version", "${product}-${release}");
+		p.put("release", "1.0");
+
+		PropertyResolver resolver = new PropertyResolver(p);
+		assertEquals("Widget-1.0", resolver.getValue("version"));
+		assertEquals("About Widget-1.0, ${not\na key}", resolver.resolve("About ${version}, ${not\na key}"));
+		assertEquals("KEY: <b>missing</b> NOT FOUND", resolver.resolve("${missing}"));
+	}
+
+	@Test
+	public void testStrict() {
+		Properties p = new Properties();
+		p.put("product", "Widget");
+		p.put("title", "${product} ${edition}");
+
+		PropertyResolver resolver = new PropertyResolver(p, true);
+		assertEquals("Widget", resolver.resolve("${product}"));
+		try {
+			resolver.resolve("${title}");
+			fail("Unresolved key not reported");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Key edition NOT FOUND", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRegion() {
+		Properties p = new Properties();
+		p.put("key", "value");
+
+		StringBuffer out = new StringBuffer();
+		new PropertyResolver(p).resolve("${key} and ${key}", 7, 17, out);
+		assertEquals("and value", out.toString());
+	}
+
+	@Test
+	public void testCycle() {
+		Properties p = new Properties();
+		p.put("a", "${b}");
+		p.put("b", "x${c}");
+		p.put("c", "${a}");
+
+		try {
+			new PropertyResolver(p).resolve("${a}");
+			fail("Cycle not detected");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("a -> b -> c -> a"));
+		}
+	}
+}
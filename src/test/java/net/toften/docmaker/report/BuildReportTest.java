@@ -0,0 +1,118 @@
+package net.toften.docmaker.report;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import net.toften.docmaker.report.BuildReport.Timer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildReportTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testNoReport() {
+		Timer timer = BuildReport.start(null, "toc", BuildReport.PARSE, null, null);
+		timer.stop("in", "out");
+		timer.stop();
+	}
+
+	@Test
+	public void testSpans() throws Exception {
+		BuildReport report = new BuildReport();
+
+		BuildReport.start(report, "a", BuildReport.CONVERT, "intro", "md").stop("# \u00e6", "<h1>\u00e6</h1>");
+		BuildReport.start(report, "b", BuildReport.PARSE, null, null).stop(10, -1);
+
+		List<Span> spans = report.getSpans("a");
+		assertEquals(1, spans.size());
+
+		Span s = spans.get(0);
+		assertEquals("a", s.getToc());
+		assertEquals(BuildReport.CONVERT, s.getStage());
+		assertEquals("intro", s.getChapter());
+		assertEquals("md", s.getDetail());
+		assertEquals(Thread.currentThread().getName(), s.getThreadName());
+		assertEquals(4, s.getInBytes());
+		assertEquals(11, s.getOutBytes());
+		assertTrue(s.getWallTime() >= 0);
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		BuildReport report = new BuildReport();
+
+		BuildReport.start(report, "a", BuildReport.PARSE, null, null).stop(100, -1);
+		BuildReport.start(report, "a", BuildReport.POST_PROCESS, "intro", "Fast").stop("<p>", "<p>");
+		Timer slow = BuildReport.start(report, "a", BuildReport.POST_PROCESS, "copyright", "Slow");
+		Thread.sleep(5);
+		slow.stop("<p>", "<p>");
+		BuildReport.start(report, "b", BuildReport.PARSE, null, null).stop(100, -1);
+
+		report.write("a", folder.getRoot());
+
+		// The stages of the TOC are forgotten once written
+		assertTrue(report.getSpans("a").isEmpty());
+		assertEquals(1, report.getSpans("b").size());
+
+		String json = read(new File(folder.getRoot(), "a.report.json"));
+		assertTrue(json.startsWith("{\n\"toc\": \"a\""));
+		assertTrue(json.indexOf("\"postProcessor\": \"Slow\"") < json.indexOf("\"postProcessor\": \"Fast\""));
+		assertTrue(json.indexOf("\"chapter\": \"copyright\"") < json.indexOf("\"chapter\": \"intro\""));
+
+		String trace = read(new File(folder.getRoot(), "a.trace.json"));
+		assertTrue(trace.contains("\"name\": \"postprocess copyright Slow\""));
+		assertTrue(trace.contains("\"ph\": \"X\""));
+
+		assertTrue(read(new File(folder.getRoot(), "a.report.html")).contains("<h2>Slowest post-processors</h2>"));
+	}
+
+	@Test
+	public void testDiscard() {
+		BuildReport report = new BuildReport();
+
+		BuildReport.start(report, "failed", BuildReport.PARSE, null, null).stop();
+		BuildReport.start(report, "b", BuildReport.PARSE, null, null).stop();
+		report.discard("failed");
+
+		assertTrue(report.getSpans("failed").isEmpty());
+		assertEquals(1, report.getSpans("b").size());
+	}
+
+	@Test
+	public void testCpuTimeRestored() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+
+		boolean enabled = threads.isThreadCpuTimeEnabled();
+		try {
+			// Switched on by the report, and off again when it is closed
+			threads.setThreadCpuTimeEnabled(false);
+			BuildReport report = new BuildReport();
+			assertTrue(threads.isThreadCpuTimeEnabled());
+			report.close();
+			assertFalse(threads.isThreadCpuTimeEnabled());
+
+			// Left on if it was already on
+			threads.setThreadCpuTimeEnabled(true);
+			new BuildReport().close();
+			assertTrue(threads.isThreadCpuTimeEnabled());
+		} finally {
+			threads.setThreadCpuTimeEnabled(enabled);
+		}
+	}
+
+	private static String read(File f) throws Exception {
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+	}
+}
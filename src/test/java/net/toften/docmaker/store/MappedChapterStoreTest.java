@@ -0,0 +1,35 @@
+package net.toften.docmaker.store;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class MappedChapterStoreTest {
+	@Test
+	public void testPutGet() throws Exception {
+		MappedChapterStore store = new MappedChapterStore("test", 16);
+		try {
+			long a = store.put("<p>A</p>");
+			long b = store.put("<h1>\u00e6\u00f8\u00e5 spans several segments</h1>");
+			long c = store.put("");
+			
+			assertEquals("<h1>\u00e6\u00f8\u00e5 spans several segments</h1>", store.get(b));
+			assertEquals("<p>A</p>", store.get(a));
+			assertEquals("", store.get(c));
+			assertEquals(8 + 38, store.getSize());
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testClosed() throws Exception {
+		MappedChapterStore store = new MappedChapterStore("test");
+		long a = store.put("<p>A</p>");
+		store.close();
+		
+		store.get(a);
+	}
+}